@@ -0,0 +1,17 @@
+package com.github.yungene.taxcalc;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Same as the JMH main, but always adds the GC profiler, so every benchmark
+ * reports the allocation rate next to the throughput.
+ */
+public class BenchmarkMain {
+	public static void main(String[] args) throws Exception {
+		var options = new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,120 @@
+package com.github.yungene.taxcalc;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates a random, but realistic, Degiro Transactions.csv. Same seed and
+ * parameters always give the same file.
+ *
+ * Every ISIN trades on its own clock. The time between two trades of an ISIN
+ * is exponentially distributed, with the mean picked so that a fraction
+ * fourWeekDensity of them is within 28 days, i.e. falls under the 4 week rule.
+ * So the history gets longer with more rows per ISIN: 100 rows per ISIN at a
+ * density of 0.3 span about 20 years.
+ *
+ * A fraction partialFillRate of the orders is executed as 2 or 3 rows with the
+ * same time and order ID. Sells never exceed what is held.
+ */
+class DegiroHistoryGenerator {
+	static final String HEADER = "Date,Time,Product,ISIN,Reference exchange,Venue,Quantity,Price,,Local value,,Value EUR,Exchange rate,AutoFX Fee,Transaction and/or third party fees EUR,Total EUR,Order ID";
+	private static final LocalDateTime START = LocalDateTime.of(2000, 1, 1, 9, 0);
+	private static final int MINUTES_PER_FOUR_WEEKS = TaxEngine.FOUR_WEEK_RULE_DAYS * Transaction.MINUTES_PER_DAY;
+
+	private final long seed;
+	private final int rowCount;
+	private final int isinCount;
+	private final double partialFillRate;
+	private final double fourWeekDensity;
+
+	DegiroHistoryGenerator(long seed, int rowCount, int isinCount, double partialFillRate, double fourWeekDensity) {
+		if (rowCount < 0 || isinCount <= 0 || partialFillRate < 0 || partialFillRate > 1 || fourWeekDensity < 0
+				|| fourWeekDensity > 1) {
+			throw new IllegalArgumentException("Some arguments are out of range. Please investigate.");
+		}
+		this.seed = seed;
+		this.rowCount = rowCount;
+		this.isinCount = isinCount;
+		this.partialFillRate = partialFillRate;
+		this.fourWeekDensity = fourWeekDensity;
+	}
+
+	private static class Row {
+		final LocalDateTime datetime;
+		final String line;
+
+		Row(LocalDateTime datetime, String line) {
+			this.datetime = datetime;
+			this.line = line;
+		}
+	}
+
+	/**
+	 * @return the CSV with a header, newest rows first like in Degiro exports.
+	 */
+	String generate() {
+		var random = new Random(this.seed);
+		// Mean time between two trades of the same ISIN, in minutes.
+		double meanGap = this.fourWeekDensity >= 1 ? 1
+				: -MINUTES_PER_FOUR_WEEKS / Math.log(1 - Math.max(this.fourWeekDensity, 1e-6));
+		var clocks = new LocalDateTime[this.isinCount];
+		int[] held = new int[this.isinCount];
+		for (int i = 0; i < this.isinCount; i++) {
+			clocks[i] = START.plusMinutes(random.nextInt(MINUTES_PER_FOUR_WEEKS));
+		}
+
+		List<Row> rows = new ArrayList<>(this.rowCount);
+		while (rows.size() < this.rowCount) {
+			int isin = random.nextInt(this.isinCount);
+			long gap = Math.max(1, Math.round(-meanGap * Math.log(1 - random.nextDouble())));
+			clocks[isin] = clocks[isin].plusMinutes(gap);
+
+			int quantity;
+			if (held[isin] > 0 && random.nextInt(3) == 0) {
+				quantity = -(1 + random.nextInt(held[isin]));
+			} else {
+				quantity = 1 + random.nextInt(100);
+			}
+			held[isin] += quantity;
+			double price = 1 + random.nextInt(10000) / 100.0;
+			String orderId = new UUID(random.nextLong(), random.nextLong()).toString();
+
+			int fills = 1;
+			if (random.nextDouble() < this.partialFillRate) {
+				fills = 2 + random.nextInt(2);
+			}
+			fills = Math.min(fills, Math.min(Math.abs(quantity), this.rowCount - rows.size()));
+			int rest = Math.abs(quantity);
+			for (int fill = fills - 1; fill >= 0; fill--) {
+				int part = fill == 0 ? rest : 1 + random.nextInt(rest - fill);
+				rest -= part;
+				int signedPart = quantity < 0 ? -part : part;
+				rows.add(new Row(clocks[isin], this.formatRow(random, clocks[isin], isin, signedPart, price, orderId)));
+			}
+		}
+
+		// Stable, so fills of an order stay in order.
+		rows.sort(Comparator.comparing((Row row) -> row.datetime));
+		var sb = new StringBuilder(HEADER.length() + 160 * this.rowCount);
+		sb.append(HEADER).append('\n');
+		for (int i = rows.size() - 1; i >= 0; i--) {
+			sb.append(rows.get(i).line).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private String formatRow(Random random, LocalDateTime datetime, int isin, int quantity, double price,
+			String orderId) {
+		double value = -quantity * price;
+		double fees = -random.nextInt(300) / 100.0;
+		return String.format(Locale.ROOT,
+				"%02d-%02d-%04d,%02d:%02d,STOCK %d,IE%010d,IRL,XMSM,%d,%.4f,EUR,%.2f,EUR,%.2f,,,%.2f,%.2f,%s",
+				datetime.getDayOfMonth(), datetime.getMonthValue(), datetime.getYear(), datetime.getHour(),
+				datetime.getMinute(), isin, isin, quantity, price, value, value, fees, value + fees, orderId);
+	}
+}
@@ -0,0 +1,67 @@
+package com.github.yungene.taxcalc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineBenchmark {
+
+	/**
+	 * Engine with the transactions already sorted, as reports are only
+	 * calculated once per engine.
+	 */
+	@State(Scope.Thread)
+	public static class SortedEngine {
+		TaxEngine engine;
+
+		@Setup(Level.Invocation)
+		public void setUp(HistoryState history) {
+			this.engine = new TaxEngine(history.transactions);
+		}
+	}
+
+	/**
+	 * Sort of the transactions into chronological order, done when the engine
+	 * is created.
+	 */
+	@Benchmark
+	public TaxEngine sort(HistoryState history) {
+		return new TaxEngine(history.transactions);
+	}
+
+	/**
+	 * Same as {@link #sort(HistoryState)}, for transactions in no particular
+	 * order.
+	 */
+	@Benchmark
+	public TaxEngine sortShuffled(HistoryState history) {
+		return new TaxEngine(history.shuffled);
+	}
+
+	@Benchmark
+	public TaxEngine calculateTaxFull(SortedEngine sorted) {
+		sorted.engine.calculateTaxFull();
+		return sorted.engine;
+	}
+
+	@Benchmark
+	public TaxEngine calculateTaxFullParallel(SortedEngine sorted) {
+		sorted.engine.calculateTaxFullParallel();
+		return sorted.engine;
+	}
+}
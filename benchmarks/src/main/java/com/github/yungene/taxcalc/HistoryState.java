@@ -0,0 +1,67 @@
+package com.github.yungene.taxcalc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Generated history shared by all the benchmarks, as a CSV string, as a file
+ * and as parsed transactions. Override the parameters with e.g.
+ * {@code -p rows=1000000 -p isins=10000}.
+ */
+@State(Scope.Benchmark)
+public class HistoryState {
+	@Param("42")
+	long seed;
+
+	@Param("100000")
+	int rows;
+
+	@Param("1000")
+	int isins;
+
+	@Param("0.1")
+	double partialFillRate;
+
+	@Param("0.3")
+	double fourWeekDensity;
+
+	String csv;
+	File file;
+	// In the order of the CSV, i.e. newest first.
+	List<Transaction> transactions;
+	// Same transactions in random order.
+	List<Transaction> shuffled;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		var generator = new DegiroHistoryGenerator(this.seed, this.rows, this.isins, this.partialFillRate,
+				this.fourWeekDensity);
+		this.csv = generator.generate();
+		this.file = File.createTempFile("Transactions", ".csv");
+		Files.write(this.file.toPath(), this.csv.getBytes(StandardCharsets.UTF_8));
+		this.transactions = Collections
+				.unmodifiableList(new TransactionsParser().parseCsv(new StringReader(this.csv)));
+		List<Transaction> shuffled = new ArrayList<>(this.transactions);
+		Collections.shuffle(shuffled, new Random(this.seed));
+		this.shuffled = Collections.unmodifiableList(shuffled);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.file.delete();
+	}
+}
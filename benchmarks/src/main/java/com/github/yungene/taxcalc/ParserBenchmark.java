@@ -0,0 +1,37 @@
+package com.github.yungene.taxcalc;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+
+	@Benchmark
+	public List<Transaction> parseCsv(HistoryState history) throws IOException {
+		return new TransactionsParser().parseCsv(new StringReader(history.csv));
+	}
+
+	@Benchmark
+	public List<Transaction> parseFile(HistoryState history) throws IOException {
+		return new TransactionsParser().parseFile(history.file);
+	}
+
+	@Benchmark
+	public List<Transaction> parseFileParallel(HistoryState history) throws IOException {
+		return new TransactionsParser().parseFileParallel(history.file);
+	}
+}
@@ -0,0 +1,45 @@
+package com.github.yungene.taxcalc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReportBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class CalculatedEngine {
+		TaxEngine engine;
+
+		@Setup(Level.Trial)
+		public void setUp(HistoryState history) {
+			this.engine = new TaxEngine(history.transactions);
+			this.engine.calculateTaxFull();
+		}
+	}
+
+	/**
+	 * Pretty print of all the yearly reports, same as the command line output.
+	 */
+	@Benchmark
+	public void prettyPrint(CalculatedEngine calculated, Blackhole blackhole) {
+		for (var report : calculated.engine.reports.values()) {
+			blackhole.consume(report.prettyPrint());
+		}
+	}
+}
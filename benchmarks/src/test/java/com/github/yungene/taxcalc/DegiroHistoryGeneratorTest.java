@@ -0,0 +1,43 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class DegiroHistoryGeneratorTest {
+
+	@Test
+	public void testGeneratedHistoryIsValid() throws IOException {
+		var csv = new DegiroHistoryGenerator(7, 20000, 100, 0.2, 0.3).generate();
+		assertEquals(csv, new DegiroHistoryGenerator(7, 20000, 100, 0.2, 0.3).generate());
+
+		var transactions = new TransactionsParser().parseCsv(new StringReader(csv));
+		assertEquals(20000, transactions.size());
+		var engine = new TaxEngine(transactions);
+		// Throws if something is sold that was not bought.
+		engine.calculateTaxFull();
+
+		// Fraction of trades within 4 weeks after the previous trade of the ISIN.
+		Map<String, Transaction> previous = new HashMap<>();
+		int orders = 0;
+		int withinFourWeeks = 0;
+		for (var tx : engine.transactions) {
+			var prev = previous.put(tx.getStock().getIsin(), tx);
+			if (prev == null || prev.getOrderId().equals(tx.getOrderId())) {
+				continue;
+			}
+			orders++;
+			if (tx.getEpochMinute() - prev.getEpochMinute() < TaxEngine.FOUR_WEEK_RULE_DAYS * Transaction.MINUTES_PER_DAY) {
+				withinFourWeeks++;
+			}
+		}
+		double density = (double) withinFourWeeks / orders;
+		assertTrue(density > 0.27 && density < 0.33, "density " + density);
+	}
+}
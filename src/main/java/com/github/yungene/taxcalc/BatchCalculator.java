@@ -0,0 +1,156 @@
+package com.github.yungene.taxcalc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Calculates the tax of many accounts, one Transactions.csv each, and writes
+ * a report next to every file.
+ *
+ * Files are processed on a fixed number of threads. Every thread keeps its own
+ * parser, so tokenizer buffers are reused from file to file. Every file gets
+ * an {@link IsinTable} of its own, so the product names in a report are those
+ * of its own account.
+ */
+class BatchCalculator {
+	static final String REPORT_SUFFIX = ".report.";
+
+	private final int threads;
+	private final boolean cache;
+	private final ReportWriter.Format format;
+	private final ThreadLocal<TransactionsParser> parsers;
+
+	BatchCalculator(int threads) {
+		this(threads, false, ReportWriter.Format.TEXT);
+	}
+
+	/**
+	 * @param cache  whether to use the binary cache next to every file, see
+	 *               {@link TransactionCache}.
+	 * @param format format of the reports.
+	 */
+	BatchCalculator(int threads, boolean cache, ReportWriter.Format format) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("Number of threads should be > 0.");
+		}
+		this.threads = threads;
+		this.cache = cache;
+		this.format = format;
+		this.parsers = ThreadLocal.withInitial(TransactionsParser::new);
+	}
+
+	/**
+	 * @param input directory that is searched for .csv files, other than
+	 *              reports, or a manifest with one file per line. Relative paths
+	 *              in the manifest are relative to the manifest, empty lines and
+	 *              lines starting with # are skipped.
+	 * @return input files, sorted.
+	 */
+	static List<File> listInputs(File input) throws IOException {
+		Path root = input.toPath();
+		if (input.isDirectory()) {
+			try (Stream<Path> paths = Files.walk(root)) {
+				return paths.filter(Files::isRegularFile)
+						.filter(path -> isInput(path.getFileName().toString()))
+						.sorted().map(Path::toFile).collect(Collectors.toList());
+			}
+		}
+		List<File> files = new ArrayList<>();
+		Path base = root.toAbsolutePath().getParent();
+		for (String line : Files.readAllLines(root, StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			files.add(base.resolve(line).toFile());
+		}
+		return files;
+	}
+
+	private static boolean isInput(String name) {
+		name = name.toLowerCase(Locale.ROOT);
+		// CSV reports of an earlier run are not inputs.
+		return name.endsWith(".csv") && !name.endsWith(REPORT_SUFFIX + "csv");
+	}
+
+	/**
+	 * Report of Transactions.csv is written to Transactions.report.txt in the
+	 * same directory.
+	 */
+	static File reportFile(File input) {
+		return reportFile(input, ReportWriter.Format.TEXT);
+	}
+
+	/**
+	 * Same as {@link #reportFile(File)}, with the extension of the format.
+	 */
+	static File reportFile(File input, ReportWriter.Format format) {
+		String name = input.getName();
+		if (name.toLowerCase(Locale.ROOT).endsWith(".csv")) {
+			name = name.substring(0, name.length() - 4);
+		}
+		return new File(input.getParentFile(), name + REPORT_SUFFIX + ReportWriter.extension(format));
+	}
+
+	/**
+	 * Process all the files. A file that fails does not stop the others, the
+	 * error is printed instead.
+	 *
+	 * @return number of files that failed.
+	 */
+	int run(List<File> inputs) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.threads, Math.max(inputs.size(), 1)));
+		try {
+			List<Future<File>> results = new ArrayList<>(inputs.size());
+			for (var input : inputs) {
+				results.add(executor.submit(() -> this.process(input)));
+			}
+			int failed = 0;
+			for (int i = 0; i < inputs.size(); i++) {
+				try {
+					System.out.println(String.format("%s -> %s", inputs.get(i), results.get(i).get()));
+				} catch (ExecutionException e) {
+					failed++;
+					System.err.println(String.format("Failed to process %s: %s", inputs.get(i), e.getCause()));
+				}
+			}
+			return failed;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the report file.
+	 */
+	File process(File input) throws IOException {
+		var parser = this.parsers.get();
+		parser.reset(new IsinTable());
+		var transactions = this.cache ? parser.parseFileCached(input, false) : parser.parseFile(input);
+		var taxEngine = new TaxEngine(transactions, parser.getCorporateActions());
+		taxEngine.calculateTaxFull();
+		var output = reportFile(input, this.format);
+		try (Writer writer = new OutputStreamWriter(Files.newOutputStream(output.toPath()), StandardCharsets.UTF_8)) {
+			var reportWriter = new ReportWriter(writer, this.format);
+			for (var report : taxEngine.reports.values()) {
+				reportWriter.writeReport(report);
+			}
+			reportWriter.finish();
+		}
+		return output;
+	}
+}
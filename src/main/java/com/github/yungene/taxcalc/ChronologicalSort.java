@@ -0,0 +1,319 @@
+package com.github.yungene.taxcalc;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sorts transactions into {@link TaxEngine#CHRONOLOGICAL_ORDER}, stable like
+ * List.sort.
+ *
+ * Input is usually one or a few Degiro exports, each newest first. So the
+ * input is split into runs first: ascending runs are kept, strictly
+ * descending ones are reversed, and a few runs are merged. Anything else is
+ * sorted by a primitive key, epoch minute and inverse sequence number packed
+ * into a long, with an LSD radix sort that carries the indexes along.
+ */
+class ChronologicalSort {
+	// Most runs that are merged rather than radix sorted, e.g. exports of many
+	// accounts or years. Merging costs log2 of this many passes, about what the
+	// radix sort costs.
+	static final int MAX_MERGED_RUNS = 64;
+	private static final int RADIX_BITS = 8;
+	private static final int RADIX = 1 << RADIX_BITS;
+
+	/**
+	 * @return a new list with the transactions in chronological order. The list
+	 *         has a fixed size, like Arrays.asList.
+	 */
+	@SuppressWarnings("unchecked")
+	static List<Transaction> sort(List<Transaction> transactions) {
+		// Object[] rather than Transaction[], as a typed copy checks every element.
+		Object[] txs = transactions.toArray();
+		if (!sortRuns(txs)) {
+			txs = radixSort(txs);
+		}
+		return (List<Transaction>) (List<?>) Arrays.asList(txs);
+	}
+
+	/**
+	 * Sort in place if there are at most MAX_MERGED_RUNS runs. Otherwise some
+	 * runs may be reversed already, which is fine for a stable sort after, as
+	 * descending runs have no equal transactions.
+	 *
+	 * @return whether txs got sorted.
+	 */
+	static boolean sortRuns(Object[] txs) {
+		int n = txs.length;
+		int[] runEnds = new int[MAX_MERGED_RUNS + 1];
+		int runs = 0;
+		int start = 0;
+		while (start < n) {
+			if (runs == MAX_MERGED_RUNS) {
+				return false;
+			}
+			int end = start + 1;
+			if (end < n && compare(txs[start], txs[end]) > 0) {
+				// Strictly descending only, so that reversing keeps equal
+				// transactions in their order.
+				while (end < n && compare(txs[end - 1], txs[end]) > 0) {
+					end++;
+				}
+				reverse(txs, start, end);
+			} else {
+				while (end < n && compare(txs[end - 1], txs[end]) <= 0) {
+					end++;
+				}
+			}
+			runEnds[runs++] = end;
+			start = end;
+		}
+		if (runs <= 1) {
+			return true;
+		}
+
+		// Merge neighbouring runs until one is left.
+		Object[] buffer = new Object[n];
+		while (runs > 1) {
+			int merged = 0;
+			int from = 0;
+			for (int r = 0; r < runs; r += 2) {
+				if (r + 1 == runs) {
+					runEnds[merged++] = runEnds[r];
+					break;
+				}
+				merge(txs, from, runEnds[r], runEnds[r + 1], buffer);
+				from = runEnds[r + 1];
+				runEnds[merged++] = from;
+			}
+			runs = merged;
+		}
+		return true;
+	}
+
+	/**
+	 * Merge the sorted ranges [from, mid) and [mid, to). On ties the left one
+	 * comes first. Runs of an export are mostly before or after each other, so
+	 * the length of every stretch taken from one side is found with an
+	 * exponential search, and the stretch is copied as a block.
+	 */
+	private static void merge(Object[] txs, int from, int mid, int to, Object[] buffer) {
+		if (compare(txs[mid - 1], txs[mid]) <= 0) {
+			return;
+		}
+		System.arraycopy(txs, from, buffer, from, mid - from);
+		int left = from;
+		int right = mid;
+		int out = from;
+		while (left < mid) {
+			int count = countBefore(txs, right, to, buffer[left], false);
+			System.arraycopy(txs, right, txs, out, count);
+			out += count;
+			right += count;
+			if (right == to) {
+				break;
+			}
+			count = countBefore(buffer, left, mid, txs[right], true);
+			System.arraycopy(buffer, left, txs, out, count);
+			out += count;
+			left += count;
+		}
+		System.arraycopy(buffer, left, txs, out, mid - left);
+	}
+
+	/**
+	 * @return number of transactions at the start of the sorted range [from, to)
+	 *         that come before key, or are equal to it if inclusive.
+	 */
+	private static int countBefore(Object[] txs, int from, int to, Object key, boolean inclusive) {
+		int bound = 1;
+		while (from + bound <= to && isBefore(txs[from + bound - 1], key, inclusive)) {
+			bound <<= 1;
+		}
+		// Everything before lo is before key, txs[hi] is not, if there is one.
+		int lo = from + (bound >> 1);
+		int hi = Math.min(from + bound - 1, to);
+		while (lo < hi) {
+			int m = (lo + hi) >>> 1;
+			if (isBefore(txs[m], key, inclusive)) {
+				lo = m + 1;
+			} else {
+				hi = m;
+			}
+		}
+		return lo - from;
+	}
+
+	private static boolean isBefore(Object tx, Object key, boolean inclusive) {
+		int comp = compare(tx, key);
+		return inclusive ? comp <= 0 : comp < 0;
+	}
+
+	private static void reverse(Object[] txs, int from, int to) {
+		for (int i = from, j = to - 1; i < j; i++, j--) {
+			Object tmp = txs[i];
+			txs[i] = txs[j];
+			txs[j] = tmp;
+		}
+	}
+
+	/**
+	 * Same as CHRONOLOGICAL_ORDER, inlined for the scans over the runs.
+	 */
+	private static int compare(Object o1, Object o2) {
+		var tx1 = (Transaction) o1;
+		var tx2 = (Transaction) o2;
+		long m1 = tx1.getEpochMinute();
+		long m2 = tx2.getEpochMinute();
+		if (m1 != m2) {
+			return m1 < m2 ? -1 : 1;
+		}
+		return tx2.getSeqNum() - tx1.getSeqNum();
+	}
+
+	/**
+	 * Key is the minute since the first one in the high 32 bits, and the
+	 * sequence number counted down from the highest one in the low 32 bits, so
+	 * keys sort the same as CHRONOLOGICAL_ORDER. LSD radix sort is stable, so
+	 * equal keys keep their order.
+	 */
+	static Object[] radixSort(Object[] txs) {
+		int n = txs.length;
+		long minMinute = Long.MAX_VALUE;
+		long maxMinute = Long.MIN_VALUE;
+		int maxSeqNum = Integer.MIN_VALUE;
+		for (var o : txs) {
+			var tx = (Transaction) o;
+			minMinute = Math.min(minMinute, tx.getEpochMinute());
+			maxMinute = Math.max(maxMinute, tx.getEpochMinute());
+			maxSeqNum = Math.max(maxSeqNum, tx.getSeqNum());
+		}
+		if (n == 0 || maxMinute - minMinute >= Integer.MAX_VALUE) {
+			// Thousands of years, keys would not fit.
+			var sorted = txs.clone();
+			Arrays.sort(sorted, ChronologicalSort::compare);
+			return sorted;
+		}
+
+		long[] keys = new long[n];
+		long maxKey = 0;
+		for (int i = 0; i < n; i++) {
+			var tx = (Transaction) txs[i];
+			keys[i] = (tx.getEpochMinute() - minMinute) << 32 | ((long) maxSeqNum - tx.getSeqNum());
+			maxKey |= keys[i];
+		}
+		int[] indexes = radixSortIndexes(keys, maxKey);
+
+		Object[] sorted = new Object[n];
+		for (int i = 0; i < n; i++) {
+			sorted[i] = txs[indexes[i]];
+		}
+		return sorted;
+	}
+
+	/**
+	 * Same as {@link #sort(List)}, for the rows of a table.
+	 *
+	 * @return row indexes in chronological order.
+	 */
+	static int[] sortRows(TransactionTable table) {
+		int n = table.size();
+		int[] rows = new int[n];
+		// Single exports are newest first, so check for that before building keys.
+		boolean ascending = true;
+		boolean descending = true;
+		for (int row = 1; row < n && (ascending || descending); row++) {
+			int comp = compareRows(table, row - 1, row);
+			ascending &= comp <= 0;
+			descending &= comp > 0;
+		}
+		if (ascending || descending) {
+			for (int i = 0; i < n; i++) {
+				rows[i] = ascending ? i : n - 1 - i;
+			}
+			return rows;
+		}
+
+		long minMinute = Long.MAX_VALUE;
+		long maxMinute = Long.MIN_VALUE;
+		int maxSeqNum = Integer.MIN_VALUE;
+		for (int row = 0; row < n; row++) {
+			minMinute = Math.min(minMinute, table.epochMinute(row));
+			maxMinute = Math.max(maxMinute, table.epochMinute(row));
+			maxSeqNum = Math.max(maxSeqNum, table.seqNum(row));
+		}
+		if (maxMinute - minMinute >= Integer.MAX_VALUE) {
+			Integer[] boxed = new Integer[n];
+			for (int i = 0; i < n; i++) {
+				boxed[i] = i;
+			}
+			Arrays.sort(boxed, (r1, r2) -> compareRows(table, r1, r2));
+			for (int i = 0; i < n; i++) {
+				rows[i] = boxed[i];
+			}
+			return rows;
+		}
+		long[] keys = new long[n];
+		long maxKey = 0;
+		for (int row = 0; row < n; row++) {
+			keys[row] = (table.epochMinute(row) - minMinute) << 32 | ((long) maxSeqNum - table.seqNum(row));
+			maxKey |= keys[row];
+		}
+		return radixSortIndexes(keys, maxKey);
+	}
+
+	private static int compareRows(TransactionTable table, int r1, int r2) {
+		long m1 = table.epochMinute(r1);
+		long m2 = table.epochMinute(r2);
+		if (m1 != m2) {
+			return m1 < m2 ? -1 : 1;
+		}
+		return table.seqNum(r2) - table.seqNum(r1);
+	}
+
+	/**
+	 * LSD radix sort of the keys, which are left in an undefined order.
+	 *
+	 * @param maxKey all the keys or-ed together, to skip the digits that are
+	 *               always 0.
+	 * @return indexes of the keys in sorted order.
+	 */
+	private static int[] radixSortIndexes(long[] keys, long maxKey) {
+		int n = keys.length;
+		int[] indexes = new int[n];
+		for (int i = 0; i < n; i++) {
+			indexes[i] = i;
+		}
+		long[] keysOut = new long[n];
+		int[] indexesOut = new int[n];
+		int[] counts = new int[RADIX];
+		for (int shift = 0; shift < Long.SIZE && (maxKey >>> shift) != 0; shift += RADIX_BITS) {
+			Arrays.fill(counts, 0);
+			for (long key : keys) {
+				counts[(int) (key >>> shift) & (RADIX - 1)]++;
+			}
+			if (counts[(int) (keys[0] >>> shift) & (RADIX - 1)] == n) {
+				// Same digit everywhere, nothing to move.
+				continue;
+			}
+			int sum = 0;
+			for (int d = 0; d < RADIX; d++) {
+				int count = counts[d];
+				counts[d] = sum;
+				sum += count;
+			}
+			for (int i = 0; i < n; i++) {
+				int pos = counts[(int) (keys[i] >>> shift) & (RADIX - 1)]++;
+				keysOut[pos] = keys[i];
+				indexesOut[pos] = indexes[i];
+			}
+			long[] tmpKeys = keys;
+			keys = keysOut;
+			keysOut = tmpKeys;
+			int[] tmpIndexes = indexes;
+			indexes = indexesOut;
+			indexesOut = tmpIndexes;
+		}
+
+		return indexes;
+	}
+}
@@ -0,0 +1,134 @@
+package com.github.yungene.taxcalc;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Split, reverse split or ISIN change: every fromQuantity shares of from held
+ * before the action are toQuantity shares of to after it. A 4 for 1 split is
+ * 1 to 4 shares of the same ISIN, a 1 for 10 reverse split 10 to 1, and an
+ * ISIN change 1 to 1 of another ISIN, possibly with a split at the same time.
+ *
+ * Degiro exports an action as two rows without an order ID at the same time:
+ * a sell of every share held before it, and a buy of every share held after
+ * it. Those rows are the legs of the action, see {@link #pair(List)}.
+ *
+ * Actions apply to transactions after them, and to those in the same minute,
+ * as the shares of the day are already the new ones.
+ */
+class CorporateAction {
+	private final LocalDateTime datetime;
+	private final long epochMinute;
+	private final Stock from;
+	private final Stock to;
+	private final int fromQuantity;
+	private final int toQuantity;
+
+	CorporateAction(LocalDateTime datetime, Stock from, Stock to, int fromQuantity, int toQuantity) {
+		if (fromQuantity <= 0 || toQuantity <= 0) {
+			throw new IllegalArgumentException(
+					String.format("Quantities of a corporate action have to be > 0, got %d to %d.", fromQuantity,
+							toQuantity));
+		}
+		this.datetime = datetime;
+		this.epochMinute = Math.floorDiv(datetime.toEpochSecond(ZoneOffset.UTC), 60);
+		this.from = from;
+		this.to = to;
+		this.fromQuantity = fromQuantity;
+		this.toQuantity = toQuantity;
+	}
+
+	LocalDateTime getDatetime() {
+		return this.datetime;
+	}
+
+	long getEpochMinute() {
+		return this.epochMinute;
+	}
+
+	Stock getFrom() {
+		return this.from;
+	}
+
+	Stock getTo() {
+		return this.to;
+	}
+
+	int getFromQuantity() {
+		return this.fromQuantity;
+	}
+
+	int getToQuantity() {
+		return this.toQuantity;
+	}
+
+	boolean isIsinChange() {
+		return !this.from.getIsin().equals(this.to.getIsin());
+	}
+
+	/**
+	 * Pair the legs of the actions. Within a minute, a sell leg is paired with a
+	 * buy leg of the same ISIN if there is one, as a split keeps the ISIN, and
+	 * with the first buy leg left otherwise, as for an ISIN change. Legs left
+	 * without a pair are dropped.
+	 *
+	 * @param legs rows without an order ID, as transactions, in file order.
+	 * @return actions in chronological order.
+	 */
+	static List<CorporateAction> pair(List<Transaction> legs) {
+		List<Transaction> sorted = new ArrayList<>(legs);
+		sorted.sort(Comparator.comparingLong(Transaction::getEpochMinute));
+		List<CorporateAction> actions = new ArrayList<>();
+		int start = 0;
+		while (start < sorted.size()) {
+			int end = start;
+			while (end < sorted.size() && sorted.get(end).getEpochMinute() == sorted.get(start).getEpochMinute()) {
+				end++;
+			}
+			List<Transaction> ins = new ArrayList<>();
+			for (var leg : sorted.subList(start, end)) {
+				if (leg.isBuy()) {
+					ins.add(leg);
+				}
+			}
+			List<Transaction> outs = new ArrayList<>();
+			for (var leg : sorted.subList(start, end)) {
+				if (leg.isSell()) {
+					var in = takeSameIsin(ins, leg.getStock());
+					if (in == null) {
+						outs.add(leg);
+					} else {
+						actions.add(new CorporateAction(leg.getDatetime(), leg.getStock(), in.getStock(),
+								leg.getQuantity(), in.getQuantity()));
+					}
+				}
+			}
+			for (int i = 0; i < Math.min(outs.size(), ins.size()); i++) {
+				var out = outs.get(i);
+				var in = ins.get(i);
+				actions.add(new CorporateAction(out.getDatetime(), out.getStock(), in.getStock(), out.getQuantity(),
+						in.getQuantity()));
+			}
+			start = end;
+		}
+		return actions;
+	}
+
+	private static Transaction takeSameIsin(List<Transaction> ins, Stock stock) {
+		for (int i = 0; i < ins.size(); i++) {
+			if (ins.get(i).getStock().getIsin().equals(stock.getIsin())) {
+				return ins.remove(i);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return "CorporateAction [datetime=" + datetime + ", from=" + from + ", to=" + to + ", fromQuantity="
+				+ fromQuantity + ", toQuantity=" + toQuantity + "]";
+	}
+}
@@ -0,0 +1,115 @@
+package com.github.yungene.taxcalc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Layout of the CSV export of a broker: the header names of the columns a
+ * transaction is made of, where the columns are in files without a header,
+ * and the order of day, month and year in dates.
+ *
+ * Parsers resolve the columns by name once per file, from the header row, so
+ * exports with other or reordered columns work as long as the names are
+ * known. Another broker only needs another layout here.
+ */
+class CsvLayout {
+	enum Column {
+		DATE, TIME, PRODUCT_NAME, ISIN, QUANTITY, VALUE_EUR, TOTAL_VALUE_EUR, ORDER_ID
+	}
+
+	enum DateOrder {
+		DAY_MONTH_YEAR, YEAR_MONTH_DAY
+	}
+
+	private static final int COLUMNS = Column.values().length;
+
+	static final CsvLayout DEGIRO = new CsvLayout("Degiro", DateOrder.DAY_MONTH_YEAR, '-')
+			.column(Column.DATE, 0, "Date")
+			.column(Column.TIME, 1, "Time")
+			.column(Column.PRODUCT_NAME, 2, "Product")
+			.column(Column.ISIN, 3, "ISIN")
+			.column(Column.QUANTITY, 6, "Quantity")
+			.column(Column.VALUE_EUR, 11, "Value EUR", "Value")
+			.column(Column.TOTAL_VALUE_EUR, 15, "Total EUR", "Total")
+			.column(Column.ORDER_ID, 16, "Order ID");
+
+	final String broker;
+	final DateOrder dateOrder;
+	final char dateSeparator;
+	private final int[] defaultIndexes;
+	private final List<List<String>> names;
+
+	CsvLayout(String broker, DateOrder dateOrder, char dateSeparator) {
+		this.broker = broker;
+		this.dateOrder = dateOrder;
+		this.dateSeparator = dateSeparator;
+		this.defaultIndexes = new int[COLUMNS];
+		Arrays.fill(this.defaultIndexes, -1);
+		this.names = new ArrayList<>(COLUMNS);
+		for (int i = 0; i < COLUMNS; i++) {
+			this.names.add(List.of());
+		}
+	}
+
+	/**
+	 * @param defaultIndex where the column is in files without a header.
+	 * @param names        header names of the column, the first one that is in
+	 *                     the header is used.
+	 */
+	CsvLayout column(Column column, int defaultIndex, String... names) {
+		this.defaultIndexes[column.ordinal()] = defaultIndex;
+		this.names.set(column.ordinal(), List.of(names));
+		return this;
+	}
+
+	/**
+	 * @return index of every column, by ordinal, in files without a header.
+	 */
+	int[] defaultColumns() {
+		return this.defaultIndexes.clone();
+	}
+
+	/**
+	 * @return whether the value of the date column is its name, i.e. the row is
+	 *         a header.
+	 */
+	boolean isHeaderDate(String value) {
+		return this.names.get(Column.DATE.ordinal()).contains(value);
+	}
+
+	/**
+	 * @param header fields of the header row.
+	 * @return index of every column, by ordinal.
+	 * @throws IllegalArgumentException if a column is not in the header.
+	 */
+	int[] resolve(List<String> header) {
+		int[] columns = new int[COLUMNS];
+		for (var column : Column.values()) {
+			int index = -1;
+			for (var name : this.names.get(column.ordinal())) {
+				index = header.indexOf(name);
+				if (index >= 0) {
+					break;
+				}
+			}
+			if (index < 0) {
+				throw new IllegalArgumentException(String.format("%s column %s is not in the header, expected one of %s.",
+						this.broker, column, this.names.get(column.ordinal())));
+			}
+			columns[column.ordinal()] = index;
+		}
+		return columns;
+	}
+
+	/**
+	 * @return number of fields of a row that have to be read for the columns.
+	 */
+	static int fieldsNeeded(int[] columns, Column... needed) {
+		int fields = 0;
+		for (var column : needed) {
+			fields = Math.max(fields, columns[column.ordinal()] + 1);
+		}
+		return fields;
+	}
+}
@@ -0,0 +1,176 @@
+package com.github.yungene.taxcalc;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers "what if I sold N shares of an ISIN on a given day" on top of a
+ * finished {@link TaxEngine} run, without matching the history again.
+ *
+ * The sale is matched with {@link TaxEngine#matchSell} against a snapshot of
+ * the state the ISIN was left in, see {@link StockState#snapshot()}. The
+ * state synced to the day of the sale is kept, so further questions about the
+ * same ISIN and day only take a snapshot of it and match from the heads of
+ * the queues.
+ *
+ * The sale has to be after all the transactions of the ISIN, as it can't
+ * change how earlier sells were matched. Shares held are counted after the
+ * corporate actions up to the sale, and an ISIN that was changed is sold as
+ * the ISIN it was changed into. Not thread safe.
+ */
+public class DisposalSimulator {
+	private static final String ORDER_ID = "simulated";
+	// Lower than all the sequence numbers from a parser, so in the same minute
+	// the simulated sale comes last.
+	private static final int SEQ_NUM = -1;
+
+	private final TaxEngine engine;
+	private final Map<String, IsinState> isins;
+
+	private static class IsinState {
+		final Stock stock;
+		final StockState state;
+		final Transaction last;
+		// Shares held after the corporate actions after the last transaction.
+		final int held;
+		// State synced to syncedDay, in epoch days, with syncedActions corporate
+		// actions applied, and the shares held then.
+		StockState synced = null;
+		long syncedDay;
+		int syncedActions;
+		int syncedHeld;
+
+		IsinState(Stock stock, StockState state, Transaction last) {
+			this.stock = stock;
+			this.state = state;
+			this.last = last;
+			var afterActions = state.snapshot();
+			afterActions.applyActions(Long.MAX_VALUE);
+			this.held = afterActions.held();
+		}
+	}
+
+	/**
+	 * Result of a simulated sale.
+	 */
+	public static class Result {
+		private final List<SellReport> sales;
+		private final long taxableNetGains;
+		private final long yearNetGains;
+
+		Result(List<SellReport> sales, long yearNetGainsBefore) {
+			this.sales = Collections.unmodifiableList(sales);
+			long gains = 0;
+			for (var sale : sales) {
+				gains += sale.getTaxableNetGains();
+			}
+			this.taxableNetGains = gains;
+			this.yearNetGains = yearNetGainsBefore + gains;
+		}
+
+		/**
+		 * @return matches of the sale, same as the engine would report them.
+		 */
+		public List<SellReport> getSales() {
+			return this.sales;
+		}
+
+		/**
+		 * @return taxable gains of the sale alone.
+		 */
+		public long getTaxableNetGains() {
+			return this.taxableNetGains;
+		}
+
+		/**
+		 * @return taxable gains of the year, with the sale.
+		 */
+		public long getYearNetGains() {
+			return this.yearNetGains;
+		}
+
+		/**
+		 * @return tax due for the year, with the sale.
+		 */
+		public long getTaxDue() {
+			return TaxEngine.taxDue(this.yearNetGains);
+		}
+
+		/**
+		 * @return how much more tax is due for the year because of the sale.
+		 */
+		public long getAdditionalTax() {
+			return this.getTaxDue() - TaxEngine.taxDue(this.yearNetGains - this.taxableNetGains);
+		}
+	}
+
+	/**
+	 * @param engine engine that already calculated the tax.
+	 */
+	public DisposalSimulator(TaxEngine engine) {
+		if (engine.states == null) {
+			throw new IllegalArgumentException("Tax should be calculated before simulating sales.");
+		}
+		this.engine = engine;
+		this.isins = new HashMap<>();
+		for (var tx : engine.transactions) {
+			// Transactions are sorted, so the last one wins. States are by holding,
+			// see TaxEngine#holding.
+			var holding = engine.holding(tx.getStock());
+			this.isins.put(holding.getIsin(), new IsinState(holding, engine.states.get(holding), tx));
+		}
+	}
+
+	/**
+	 * @return number of shares of the ISIN held after all the transactions and
+	 *         corporate actions.
+	 */
+	public int getHeld(String isin) {
+		var isinState = this.isins.get(isin);
+		return isinState == null ? 0 : isinState.held;
+	}
+
+	/**
+	 * Simulate selling quantity shares of the ISIN at datetime, for
+	 * euroTotalPrice per share, fees included.
+	 */
+	public Result simulateSale(String isin, int quantity, LocalDateTime datetime, long euroTotalPrice) {
+		var isinState = this.isins.get(isin);
+		if (isinState == null) {
+			throw new IllegalArgumentException(String.format("No transactions of ISIN %s.", isin));
+		}
+		if (quantity <= 0) {
+			throw new IllegalArgumentException(
+					String.format("Can only sell more than 0 shares of %s, not %d.", isin, quantity));
+		}
+		var tx = new Transaction(false, datetime, isinState.stock, quantity, euroTotalPrice, euroTotalPrice, ORDER_ID,
+				SEQ_NUM);
+		if (TaxEngine.CHRONOLOGICAL_ORDER.compare(tx, isinState.last) < 0) {
+			throw new IllegalArgumentException(String.format("Sale at %s is before the last transaction of %s at %s.",
+					datetime, isin, isinState.last.getDatetime()));
+		}
+
+		int actions = isinState.state.actionsAt(tx.getEpochMinute());
+		if (isinState.synced == null || isinState.syncedDay != tx.getEpochDay()
+				|| isinState.syncedActions != actions) {
+			isinState.synced = isinState.state.snapshot();
+			isinState.synced.syncQueues(tx);
+			isinState.syncedDay = tx.getEpochDay();
+			isinState.syncedActions = actions;
+			isinState.syncedHeld = isinState.synced.held();
+		}
+		if (quantity > isinState.syncedHeld) {
+			throw new IllegalArgumentException(String.format("Can sell 1 to %d shares of %s at %s, not %d.",
+					isinState.syncedHeld, isin, datetime, quantity));
+		}
+		List<SellReport> sales = new ArrayList<>();
+		TaxEngine.matchSell(isinState.synced.snapshot(), tx, sales);
+
+		var report = this.engine.reports.get(datetime.getYear());
+		return new Result(sales, report == null ? 0 : report.getTaxableNetGains());
+	}
+}
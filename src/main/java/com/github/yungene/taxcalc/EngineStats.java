@@ -0,0 +1,229 @@
+package com.github.yungene.taxcalc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Where the time of a run goes: duration of every phase, and counters of the
+ * matching summed over all the ISINs. The counters themselves are kept in
+ * every StockState, so matching ISINs in parallel does not share anything.
+ *
+ * Phases and ISINs are also JDK Flight Recorder events, so they show up in a
+ * recording of a production run, e.g. with -XX:StartFlightRecording.
+ */
+class EngineStats {
+	static final String PARSE = "parse";
+	static final String SORT = "sort";
+	static final String MATCH = "match";
+	static final String REPORT = "report";
+
+	// Nanoseconds spent in every phase, in the order the phases started.
+	private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+
+	// Rows of the CSV that were not transactions, e.g. stock splits.
+	int skippedRows;
+	int isins;
+	// ISINs whose reports came from a MatchCache, not counted in the rest.
+	int cachedIsins;
+	// ISINs left out of a single year, see TaxEngine.calculateTaxYear.
+	int skippedIsins;
+	long transactions;
+	long sells;
+	long matches;
+	long lotSplits;
+	long buyWithinFourWeeksAfterSell;
+	long sellWithinFourWeeksAfterBuy;
+	long fourWeekMatches;
+	long queueDepthSum;
+	int maxQueueDepth;
+	String maxQueueDepthIsin;
+	long slowestIsinNanos;
+	String slowestIsin;
+
+	@Name("com.github.yungene.taxcalc.Phase")
+	@Label("Phase")
+	@Category("Tax Calculator")
+	@Description("Parsing, sorting, matching or writing the reports of a run.")
+	static class PhaseEvent extends Event {
+		@Label("Phase")
+		String phase;
+
+		@Label("Items")
+		@Description("Number of transactions or reports handled in the phase.")
+		int items;
+
+		@Label("Heap Used")
+		@DataAmount
+		long heapUsed;
+	}
+
+	@Name("com.github.yungene.taxcalc.IsinMatch")
+	@Label("ISIN Match")
+	@Category("Tax Calculator")
+	@Description("Matching all the sells of one ISIN against its buys.")
+	static class IsinMatchEvent extends Event {
+		@Label("ISIN")
+		String isin;
+
+		@Label("Transactions")
+		int transactions;
+
+		@Label("Sells")
+		int sells;
+
+		@Label("Matches")
+		int matches;
+
+		@Label("Lot Splits")
+		@Description("Matches that took only part of a lot.")
+		int lotSplits;
+
+		@Label("Four Week Rule Matches")
+		int fourWeekMatches;
+
+		@Label("Max Queue Depth")
+		@Description("Most open lots before a transaction of the ISIN.")
+		int maxQueueDepth;
+	}
+
+	/**
+	 * A running phase, ended by close().
+	 */
+	class Phase implements AutoCloseable {
+		private final String name;
+		private final long start;
+		private final PhaseEvent event;
+
+		private Phase(String name) {
+			this.name = name;
+			this.event = new PhaseEvent();
+			this.event.phase = name;
+			this.event.begin();
+			this.start = System.nanoTime();
+		}
+
+		/**
+		 * @param items number of transactions or reports handled in the phase.
+		 */
+		void setItems(int items) {
+			this.event.items = items;
+		}
+
+		@Override
+		public void close() {
+			long nanos = System.nanoTime() - this.start;
+			phaseNanos.merge(this.name, nanos, Long::sum);
+			if (this.event.shouldCommit()) {
+				var runtime = Runtime.getRuntime();
+				this.event.heapUsed = runtime.totalMemory() - runtime.freeMemory();
+				this.event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Start timing a phase. Time of a phase that runs more than once is summed.
+	 * Its number of items is set once it is known, see {@link Phase#setItems(int)}.
+	 */
+	Phase startPhase(String name) {
+		return new Phase(name);
+	}
+
+	/**
+	 * @return nanoseconds spent in the phase so far, 0 if it never ran.
+	 */
+	long getPhaseNanos(String name) {
+		return this.phaseNanos.getOrDefault(name, 0L);
+	}
+
+	/**
+	 * Add the counters of an ISIN that is fully matched.
+	 */
+	void addIsin(StockState state) {
+		this.isins++;
+		this.transactions += state.transactions;
+		this.sells += state.sells;
+		this.matches += state.matches;
+		this.lotSplits += state.lotSplits;
+		this.buyWithinFourWeeksAfterSell += state.buyWithinFourWeeksAfterSell;
+		this.sellWithinFourWeeksAfterBuy += state.sellWithinFourWeeksAfterBuy;
+		this.fourWeekMatches += state.fourWeekMatches;
+		this.queueDepthSum += state.queueDepthSum;
+		if (state.maxQueueDepth > this.maxQueueDepth || this.maxQueueDepthIsin == null) {
+			this.maxQueueDepth = state.maxQueueDepth;
+			this.maxQueueDepthIsin = state.isin;
+		}
+		if (state.matchNanos > this.slowestIsinNanos || this.slowestIsin == null) {
+			this.slowestIsinNanos = state.matchNanos;
+			this.slowestIsin = state.isin;
+		}
+	}
+
+	/**
+	 * Record the counters of an ISIN as an IsinMatchEvent, begun before its
+	 * first transaction.
+	 */
+	static void commit(IsinMatchEvent event, StockState state) {
+		if (!event.shouldCommit()) {
+			return;
+		}
+		event.isin = state.isin;
+		event.transactions = state.transactions;
+		event.sells = state.sells;
+		event.matches = state.matches;
+		event.lotSplits = state.lotSplits;
+		event.fourWeekMatches = state.fourWeekMatches;
+		event.maxQueueDepth = state.maxQueueDepth;
+		event.commit();
+	}
+
+	/**
+	 * @return a few lines for people, see --stats.
+	 */
+	String summary() {
+		var sb = new StringBuilder();
+		sb.append("Phases:");
+		String separator = " ";
+		for (var phase : this.phaseNanos.entrySet()) {
+			sb.append(separator).append(phase.getKey()).append(' ').append(millis(phase.getValue()));
+			separator = ", ";
+		}
+		sb.append(System.lineSeparator());
+		sb.append(String.format("Transactions: %d of %d ISINs, %d sells%n", this.transactions, this.isins,
+				this.sells));
+		if (this.skippedRows > 0) {
+			sb.append(String.format("Skipped: %d rows that are not transactions%n", this.skippedRows));
+		}
+		if (this.cachedIsins > 0) {
+			sb.append(String.format("Cached: %d ISINs%n", this.cachedIsins));
+		}
+		if (this.skippedIsins > 0) {
+			sb.append(String.format("Skipped: %d ISINs without sells in the year%n", this.skippedIsins));
+		}
+		sb.append(String.format("Matches: %d, lot splits %d%n", this.matches, this.lotSplits));
+		sb.append(String.format(
+				"Four week rule: %d matches, %d with a buy within 4 weeks after the sell, %d sold within 4 weeks after the buy%n",
+				this.fourWeekMatches, this.buyWithinFourWeeksAfterSell, this.sellWithinFourWeeksAfterBuy));
+		if (this.isins > 0) {
+			double average = this.transactions == 0 ? 0 : (double) this.queueDepthSum / this.transactions;
+			sb.append(String.format("Open lots before a transaction: %.1f on average, at most %d (%s)%n", average,
+					this.maxQueueDepth, this.maxQueueDepthIsin));
+			sb.append(String.format("Slowest ISIN: %s, %s%n", this.slowestIsin, millis(this.slowestIsinNanos)));
+		}
+		var runtime = Runtime.getRuntime();
+		sb.append(String.format("Heap: %d MB used of %d MB%n",
+				(runtime.totalMemory() - runtime.freeMemory()) >> 20, runtime.totalMemory() >> 20));
+		return sb.toString();
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.1f ms", nanos / 1e6);
+	}
+}
@@ -0,0 +1,476 @@
+package com.github.yungene.taxcalc;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Picks sales of open lots on a given day that make the best use of the
+ * annual exemption: realise gains up to the exemption, or, if the gains of
+ * the year are above it already, realise losses to offset them.
+ *
+ * Every sale is matched with {@link DisposalSimulator}, so FIFO and the 4 week
+ * rule apply as they would for a real sale, e.g. a loss on shares bought in
+ * the last 4 weeks does not count. Selling the whole holding of an ISIN gives
+ * its matches in order, and selling fewer shares takes a prefix of them, so
+ * the candidates of an ISIN are the quantities at the ends of its matches.
+ *
+ * Candidates of all the ISINs are searched with branch and bound on the
+ * common fork-join pool. The year's net gains that the rest of the ISINs can
+ * still reach bound every branch. Once the plan is within the tolerance of
+ * the exemption, or the node budget is used up, the best plan so far is
+ * taken. What is left of the exemption is then filled with part of the next
+ * match of any ISIN, chosen or not.
+ */
+public class HarvestOptimizer {
+	// Most candidate quantities per ISIN. ISINs with more matches keep evenly
+	// spaced ones, along with the lowest and highest gains.
+	static final int MAX_OPTIONS = 32;
+	private static final long TAXED = Long.MAX_VALUE / 2;
+
+	private final TaxEngine engine;
+	private final DisposalSimulator simulator;
+	private final long tolerance;
+	private final long maxNodes;
+
+	/**
+	 * Disposal of a plan.
+	 */
+	public static class Disposal {
+		private final String isin;
+		private final int quantity;
+		private final DisposalSimulator.Result result;
+
+		Disposal(String isin, int quantity, DisposalSimulator.Result result) {
+			this.isin = isin;
+			this.quantity = quantity;
+			this.result = result;
+		}
+
+		public String getIsin() {
+			return this.isin;
+		}
+
+		public int getQuantity() {
+			return this.quantity;
+		}
+
+		public long getTaxableNetGains() {
+			return this.result.getTaxableNetGains();
+		}
+
+		public List<SellReport> getSales() {
+			return this.result.getSales();
+		}
+
+		@Override
+		public String toString() {
+			return "Disposal [isin=" + isin + ", quantity=" + quantity + ", taxableNetGains="
+					+ this.getTaxableNetGains() + "]";
+		}
+	}
+
+	/**
+	 * Disposals picked by the optimizer, and the year's gains with them.
+	 */
+	public static class Plan {
+		private final List<Disposal> disposals;
+		private final long yearNetGains;
+
+		Plan(List<Disposal> disposals, long yearNetGains) {
+			this.disposals = Collections.unmodifiableList(disposals);
+			this.yearNetGains = yearNetGains;
+		}
+
+		public List<Disposal> getDisposals() {
+			return this.disposals;
+		}
+
+		/**
+		 * @return taxable gains of the year, with the disposals.
+		 */
+		public long getYearNetGains() {
+			return this.yearNetGains;
+		}
+
+		public long getTaxDue() {
+			return TaxEngine.taxDue(this.yearNetGains);
+		}
+
+		/**
+		 * @return part of the exemption that is still not used.
+		 */
+		public long getUnusedExemption() {
+			return Math.max(TaxEngine.TAX_EXEMPTION_MIL - this.yearNetGains, 0);
+		}
+
+		@Override
+		public String toString() {
+			return "Plan [disposals=" + disposals + ", yearNetGains=" + yearNetGains + "]";
+		}
+	}
+
+	/**
+	 * Candidate quantities of one ISIN, and their taxable gains.
+	 */
+	private static class Candidate {
+		final String isin;
+		final long price;
+		final List<SellReport> matches;
+		final int[] quantities;
+		final long[] gains;
+		long minGain = 0;
+		long maxGain = 0;
+
+		Candidate(String isin, long price, List<SellReport> matches) {
+			this.isin = isin;
+			this.price = price;
+			this.matches = matches;
+			int[] quantities = new int[matches.size() + 1];
+			long[] gains = new long[matches.size() + 1];
+			for (int i = 0; i < matches.size(); i++) {
+				quantities[i + 1] = quantities[i] + matches.get(i).getQuantity();
+				gains[i + 1] = gains[i] + matches.get(i).getTaxableNetGains();
+			}
+			int[] kept = keep(gains);
+			this.quantities = new int[kept.length];
+			this.gains = new long[kept.length];
+			for (int i = 0; i < kept.length; i++) {
+				this.quantities[i] = quantities[kept[i]];
+				this.gains[i] = gains[kept[i]];
+				this.minGain = Math.min(this.minGain, this.gains[i]);
+				this.maxGain = Math.max(this.maxGain, this.gains[i]);
+			}
+		}
+
+		/**
+		 * @return indexes of the options to keep, at most MAX_OPTIONS.
+		 */
+		private static int[] keep(long[] gains) {
+			int count = gains.length;
+			if (count <= MAX_OPTIONS) {
+				int[] all = new int[count];
+				Arrays.setAll(all, i -> i);
+				return all;
+			}
+			int min = 0;
+			int max = 0;
+			for (int i = 1; i < count; i++) {
+				min = gains[i] < gains[min] ? i : min;
+				max = gains[i] > gains[max] ? i : max;
+			}
+			int[] kept = new int[MAX_OPTIONS];
+			kept[0] = 0;
+			kept[1] = min;
+			kept[2] = max;
+			for (int i = 3; i < MAX_OPTIONS; i++) {
+				kept[i] = (int) ((long) (i - 2) * (count - 1) / (MAX_OPTIONS - 2));
+			}
+			return Arrays.stream(kept).sorted().distinct().toArray();
+		}
+	}
+
+	/**
+	 * Best choice of options so far, and its score.
+	 */
+	private static class Best {
+		final long score;
+		final int[] choice;
+
+		Best(long score, int[] choice) {
+			this.score = score;
+			this.choice = choice;
+		}
+	}
+
+	public HarvestOptimizer(TaxEngine engine) {
+		this(engine, Transaction.euroToMil(1, 0), 10_000_000);
+	}
+
+	/**
+	 * @param tolerance how close to the exemption, in mil, is close enough to
+	 *                  stop the search.
+	 * @param maxNodes  budget of search nodes, after which the best plan so far
+	 *                  is taken.
+	 */
+	HarvestOptimizer(TaxEngine engine, long tolerance, long maxNodes) {
+		if (tolerance < 0 || maxNodes <= 0) {
+			throw new IllegalArgumentException("Tolerance should be >= 0 and node budget > 0.");
+		}
+		this.engine = engine;
+		this.simulator = new DisposalSimulator(engine);
+		this.tolerance = tolerance;
+		this.maxNodes = maxNodes;
+	}
+
+	public Plan optimize(LocalDateTime datetime, Map<String, Long> prices) {
+		return this.optimize(datetime, prices, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param datetime when the disposals would be made, after all the
+	 *                 transactions of the ISINs.
+	 * @param prices   price per share, fees included, of every ISIN that may be
+	 *                 sold. ISINs that are not held are skipped.
+	 */
+	public Plan optimize(LocalDateTime datetime, Map<String, Long> prices, ForkJoinPool pool) {
+		var report = this.engine.reports.get(datetime.getYear());
+		long yearNetGains = report == null ? 0 : report.getTaxableNetGains();
+
+		List<Candidate> candidates = new ArrayList<>();
+		for (var entry : prices.entrySet()) {
+			int held = this.simulator.getHeld(entry.getKey());
+			if (held > 0) {
+				var result = this.simulator.simulateSale(entry.getKey(), held, datetime, entry.getValue());
+				candidates.add(new Candidate(entry.getKey(), entry.getValue(), result.getSales()));
+			}
+		}
+		// Widest ranges first, so the bounds get tight early.
+		candidates.sort(Comparator.comparingLong((Candidate c) -> c.maxGain - c.minGain).reversed()
+				.thenComparing(c -> c.isin));
+
+		var search = new Search(candidates, yearNetGains);
+		search.run(pool);
+		int[] quantities = search.quantities();
+		this.fill(candidates, quantities, yearNetGains);
+
+		List<Disposal> disposals = new ArrayList<>();
+		long planNetGains = yearNetGains;
+		for (int i = 0; i < candidates.size(); i++) {
+			if (quantities[i] > 0) {
+				var candidate = candidates.get(i);
+				var result = this.simulator.simulateSale(candidate.isin, quantities[i], datetime, candidate.price);
+				disposals.add(new Disposal(candidate.isin, quantities[i], result));
+				planNetGains += result.getTaxableNetGains();
+			}
+		}
+		disposals.sort(Comparator.comparing(Disposal::getIsin));
+		return new Plan(disposals, planNetGains);
+	}
+
+	/**
+	 * Use what is left of the exemption for part of the next match of every
+	 * ISIN, if that match is a gain. For an ISIN the search did not choose, that
+	 * is its first match.
+	 */
+	private void fill(List<Candidate> candidates, int[] quantities, long yearNetGains) {
+		long netGains = yearNetGains;
+		for (int i = 0; i < candidates.size(); i++) {
+			netGains += gainOf(candidates.get(i), quantities[i]);
+		}
+		for (int i = 0; i < candidates.size() && netGains < TaxEngine.TAX_EXEMPTION_MIL; i++) {
+			var candidate = candidates.get(i);
+			int sold = 0;
+			for (var match : candidate.matches) {
+				if (sold + match.getQuantity() > quantities[i]) {
+					long gains = match.getTaxableNetGains();
+					if (gains > 0) {
+						// Shares of the match already sold by the chosen quantity.
+						int taken = quantities[i] - sold;
+						// Most shares of the match whose gains stay within the exemption.
+						long limit = TaxEngine.TAX_EXEMPTION_MIL - netGains + gainOf(match, taken);
+						int most = (int) Math.min(match.getQuantity(),
+								(Math.multiplyExact(limit + 1, match.getQuantity()) - 1) / gains);
+						quantities[i] += most - taken;
+						netGains += gainOf(match, most) - gainOf(match, taken);
+					}
+					break;
+				}
+				sold += match.getQuantity();
+			}
+		}
+	}
+
+	/**
+	 * @return taxable gains of selling quantity shares, from the matches.
+	 */
+	private static long gainOf(Candidate candidate, int quantity) {
+		long gains = 0;
+		for (var match : candidate.matches) {
+			int taken = Math.min(quantity, match.getQuantity());
+			if (taken <= 0) {
+				break;
+			}
+			gains += gainOf(match, taken);
+			quantity -= taken;
+		}
+		return gains;
+	}
+
+	/**
+	 * @return taxable gains of the first shares of a match, rounded toward 0.
+	 */
+	private static long gainOf(SellReport match, int shares) {
+		return Math.multiplyExact(match.getTaxableNetGains(), shares) / match.getQuantity();
+	}
+
+	/**
+	 * Lower is better. Any tax is worse than an unused exemption. Below the
+	 * exemption it is the unused part, above it the gains that are taxed.
+	 */
+	private static long score(long netGains) {
+		if (netGains > TaxEngine.TAX_EXEMPTION_MIL) {
+			return TAXED + (netGains - TaxEngine.TAX_EXEMPTION_MIL);
+		}
+		return TaxEngine.TAX_EXEMPTION_MIL - netGains;
+	}
+
+	/**
+	 * @return lowest score of any net gains in [lo, hi].
+	 */
+	private static long bound(long lo, long hi) {
+		if (lo > TaxEngine.TAX_EXEMPTION_MIL) {
+			return score(lo);
+		}
+		return hi >= TaxEngine.TAX_EXEMPTION_MIL ? 0 : score(hi);
+	}
+
+	private class Search {
+		final List<Candidate> candidates;
+		final long yearNetGains;
+		// Sums of the lowest and highest gains of candidates i and after.
+		final long[] suffixMin;
+		final long[] suffixMax;
+		final AtomicReference<Best> best;
+		final AtomicLong nodes = new AtomicLong();
+
+		Search(List<Candidate> candidates, long yearNetGains) {
+			this.candidates = candidates;
+			this.yearNetGains = yearNetGains;
+			int n = candidates.size();
+			this.suffixMin = new long[n + 1];
+			this.suffixMax = new long[n + 1];
+			for (int i = n - 1; i >= 0; i--) {
+				this.suffixMin[i] = this.suffixMin[i + 1] + candidates.get(i).minGain;
+				this.suffixMax[i] = this.suffixMax[i + 1] + candidates.get(i).maxGain;
+			}
+			this.best = new AtomicReference<>(this.greedy());
+		}
+
+		/**
+		 * Starting plan: the lowest gains of every ISIN, then ISIN by ISIN the
+		 * option that gets closest to the exemption without going over.
+		 */
+		private Best greedy() {
+			int n = this.candidates.size();
+			int[] choice = new int[n];
+			long netGains = this.yearNetGains + this.suffixMin[0];
+			for (int i = 0; i < n; i++) {
+				var candidate = this.candidates.get(i);
+				int lowest = 0;
+				for (int j = 1; j < candidate.gains.length; j++) {
+					lowest = candidate.gains[j] < candidate.gains[lowest] ? j : lowest;
+				}
+				choice[i] = lowest;
+			}
+			for (int i = 0; i < n; i++) {
+				var candidate = this.candidates.get(i);
+				long base = netGains - candidate.gains[choice[i]];
+				for (int j = 0; j < candidate.gains.length; j++) {
+					if (score(base + candidate.gains[j]) < score(base + candidate.gains[choice[i]])) {
+						choice[i] = j;
+					}
+				}
+				netGains = base + candidate.gains[choice[i]];
+			}
+			return new Best(score(netGains), choice);
+		}
+
+		void run(ForkJoinPool pool) {
+			if (this.best.get().score <= HarvestOptimizer.this.tolerance || this.candidates.isEmpty()) {
+				return;
+			}
+			// Split the first levels into tasks, until there are a few per thread.
+			int splitDepth = 0;
+			long tasks = 1;
+			while (splitDepth < this.candidates.size() && tasks < 8L * pool.getParallelism()) {
+				tasks *= this.candidates.get(splitDepth++).gains.length;
+			}
+			pool.invoke(new Node(0, this.yearNetGains, new int[this.candidates.size()], splitDepth));
+		}
+
+		int[] quantities() {
+			int[] choice = this.best.get().choice;
+			int[] quantities = new int[choice.length];
+			for (int i = 0; i < choice.length; i++) {
+				quantities[i] = this.candidates.get(i).quantities[choice[i]];
+			}
+			return quantities;
+		}
+
+		private boolean pruned(int i, long netGains) {
+			long bestScore = this.best.get().score;
+			return bestScore <= HarvestOptimizer.this.tolerance
+					|| this.nodes.incrementAndGet() > HarvestOptimizer.this.maxNodes
+					|| bound(netGains + this.suffixMin[i], netGains + this.suffixMax[i]) >= bestScore;
+		}
+
+		void search(int i, long netGains, int[] choice) {
+			if (this.pruned(i, netGains)) {
+				return;
+			}
+			if (i == choice.length) {
+				this.offer(netGains, choice);
+				return;
+			}
+			var candidate = this.candidates.get(i);
+			for (int j = 0; j < candidate.gains.length; j++) {
+				choice[i] = j;
+				this.search(i + 1, netGains + candidate.gains[j], choice);
+			}
+		}
+
+		private void offer(long netGains, int[] choice) {
+			long score = score(netGains);
+			var current = this.best.get();
+			while (score < current.score) {
+				if (this.best.compareAndSet(current, new Best(score, choice.clone()))) {
+					return;
+				}
+				current = this.best.get();
+			}
+		}
+
+		@SuppressWarnings("serial")
+		private class Node extends RecursiveAction {
+			final int i;
+			final long netGains;
+			final int[] choice;
+			final int splitDepth;
+
+			Node(int i, long netGains, int[] choice, int splitDepth) {
+				this.i = i;
+				this.netGains = netGains;
+				this.choice = choice;
+				this.splitDepth = splitDepth;
+			}
+
+			@Override
+			protected void compute() {
+				if (this.i >= this.splitDepth || this.i == this.choice.length) {
+					Search.this.search(this.i, this.netGains, this.choice);
+					return;
+				}
+				if (Search.this.pruned(this.i, this.netGains)) {
+					return;
+				}
+				var candidate = Search.this.candidates.get(this.i);
+				List<Node> children = new ArrayList<>(candidate.gains.length);
+				for (int j = 0; j < candidate.gains.length; j++) {
+					int[] choice = this.choice.clone();
+					choice[this.i] = j;
+					children.add(new Node(this.i + 1, this.netGains + candidate.gains[j], choice, this.splitDepth));
+				}
+				invokeAll(children);
+			}
+		}
+	}
+}
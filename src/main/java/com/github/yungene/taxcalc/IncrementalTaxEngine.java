@@ -0,0 +1,179 @@
+package com.github.yungene.taxcalc;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Tax engine that accepts transactions in batches, e.g. a new broker export
+ * every day, without re-processing the whole history.
+ *
+ * For every ISIN we keep the live state with all the sells whose 4 week window
+ * is closed already matched, see {@link PendingStockState}. Sells that are
+ * still inside their window are matched on a copy of the state, and their
+ * reports are provisional. When a new batch comes in, only the provisional
+ * reports are taken out of the yearly reports and the pending sells are
+ * matched again.
+ *
+ * After all the batches are added, reports are the same as if
+ * {@link TaxEngine#calculateTaxFull()} was run on all the transactions at once.
+ *
+ * Sequence numbers start from 0 in every export, so a batch is renumbered
+ * below the batches before it when they overlap. In the same minute, the
+ * transactions of an earlier batch then still come first.
+ *
+ * The {@link TaxLedger} of the reports is kept up to date as well, with only
+ * the years a batch changed folded again.
+ */
+public class IncrementalTaxEngine {
+
+	Map<Integer, TaxReport> reports;
+	// Latest transaction time we know about. Batches can't go back past it.
+	private LocalDateTime horizon;
+	private final StockRegistry<PendingStockState> states;
+	// Number of provisional sell reports at the end of each yearly report.
+	private final Map<Integer, Integer> provisionalCounts;
+	private final TaxLedger ledger;
+	// Lowest sequence number of the transactions added so far.
+	private int lowestSeqNum;
+
+	public IncrementalTaxEngine() {
+		this.reports = new HashMap<>();
+		this.horizon = null;
+		this.states = new StockRegistry<>(PendingStockState::new);
+		this.provisionalCounts = new HashMap<>();
+		this.ledger = new TaxLedger();
+		this.lowestSeqNum = Integer.MAX_VALUE;
+	}
+
+	public LocalDateTime getHorizon() {
+		return this.horizon;
+	}
+
+	TaxLedger getLedger() {
+		return this.ledger;
+	}
+
+	/**
+	 * Add a batch of transactions that happened at or after all the transactions
+	 * added before.
+	 */
+	public void addTransactions(List<Transaction> batch) {
+		LocalDateTime asOf = this.horizon;
+		for (var tx : batch) {
+			if (asOf == null || tx.getDatetime().isAfter(asOf)) {
+				asOf = tx.getDatetime();
+			}
+		}
+		if (asOf == null) {
+			// Nothing added yet, and nothing to add.
+			return;
+		}
+		this.addTransactions(batch, asOf);
+	}
+
+	/**
+	 * Same as {@link #addTransactions(List)}, but the batch is known to cover
+	 * everything up to asOf, even if there are no transactions that late. This
+	 * lets sells with no buys after them get committed sooner.
+	 */
+	public void addTransactions(List<Transaction> batch, LocalDateTime asOf) {
+		if (this.horizon != null && asOf.isBefore(this.horizon)) {
+			throw new IllegalArgumentException(
+					String.format("asOf %s is before already processed %s.", asOf, this.horizon));
+		}
+		List<Transaction> sorted = this.renumber(batch);
+		sorted.sort(TaxEngine.CHRONOLOGICAL_ORDER);
+		if (!sorted.isEmpty()) {
+			var first = sorted.get(0).getDatetime();
+			var last = sorted.get(sorted.size() - 1).getDatetime();
+			if (this.horizon != null && first.isBefore(this.horizon)) {
+				throw new IllegalArgumentException(String.format(
+						"Transactions can only be appended. %s is before already processed %s.", first, this.horizon));
+			}
+			if (last.isAfter(asOf)) {
+				throw new IllegalArgumentException(String.format("asOf %s is before transaction at %s.", asOf, last));
+			}
+		}
+		this.horizon = asOf;
+
+		// Years whose reports the batch changed.
+		var changed = new TreeSet<Integer>(this.provisionalCounts.keySet());
+		for (var tx : sorted) {
+			this.lowestSeqNum = Math.min(this.lowestSeqNum, tx.getSeqNum());
+			int txYear = tx.getDatetime().getYear();
+			this.reports.putIfAbsent(txYear, new TaxReport(txYear));
+			this.states.get(tx.getStock()).add(tx);
+			changed.add(txYear);
+		}
+
+		this.reopenProvisional();
+
+		List<SellReport> committed = new ArrayList<>();
+		List<SellReport> provisional = new ArrayList<>();
+		long horizonDay = this.horizon.toLocalDate().toEpochDay();
+		for (var state : this.states.values()) {
+			if (state.hasPendingSells()) {
+				state.commitClosed(horizonDay, committed);
+				state.matchPending(provisional);
+			}
+		}
+		// Committed sells are all before the provisional ones, as sells of all the
+		// ISINs are committed up to the same day.
+		committed.sort((o1, o2) -> TaxEngine.CHRONOLOGICAL_ORDER.compare(o1.originalSellTransaction,
+				o2.originalSellTransaction));
+		provisional.sort((o1, o2) -> TaxEngine.CHRONOLOGICAL_ORDER.compare(o1.originalSellTransaction,
+				o2.originalSellTransaction));
+		for (var sellReport : committed) {
+			int year = sellReport.originalSellTransaction.getDatetime().getYear();
+			this.reports.get(year).addSale(sellReport);
+			changed.add(year);
+		}
+		for (var sellReport : provisional) {
+			int year = sellReport.originalSellTransaction.getDatetime().getYear();
+			this.reports.get(year).addSale(sellReport);
+			this.provisionalCounts.merge(year, 1, Integer::sum);
+			changed.add(year);
+		}
+
+		List<TaxReport> changedReports = new ArrayList<>();
+		for (int year : changed) {
+			changedReports.add(this.reports.get(year));
+		}
+		this.ledger.update(changedReports);
+	}
+
+	/**
+	 * @return the batch, with sequence numbers moved below those of the
+	 *         transactions added before, if any of them are not. Higher sequence
+	 *         numbers come first in the same minute, see
+	 *         {@link TaxEngine#CHRONOLOGICAL_ORDER}.
+	 */
+	private List<Transaction> renumber(List<Transaction> batch) {
+		int highest = Integer.MIN_VALUE;
+		for (var tx : batch) {
+			highest = Math.max(highest, tx.getSeqNum());
+		}
+		List<Transaction> renumbered = new ArrayList<>(batch.size());
+		int shift = this.lowestSeqNum == Integer.MAX_VALUE || highest < this.lowestSeqNum ? 0
+				: Math.subtractExact(highest, this.lowestSeqNum) + 1;
+		for (var tx : batch) {
+			renumbered.add(shift == 0 ? tx : tx.copyWithNewSeqNum(Math.subtractExact(tx.getSeqNum(), shift)));
+		}
+		return renumbered;
+	}
+
+	/**
+	 * Take the provisional reports out of the yearly reports. They are always at
+	 * the end of the sales list.
+	 */
+	private void reopenProvisional() {
+		for (var entry : this.provisionalCounts.entrySet()) {
+			this.reports.get(entry.getKey()).removeLastSales(entry.getValue());
+		}
+		this.provisionalCounts.clear();
+	}
+}
@@ -1,10 +1,17 @@
 package com.github.yungene.taxcalc;
 
 import java.io.File;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.function.Consumer;
 
 import picocli.CommandLine;
+import picocli.CommandLine.ArgGroup;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 
@@ -16,21 +23,244 @@ import picocli.CommandLine.Option;
 @Command(name = "IrelandTaxCalculator", mixinStandardHelpOptions = true, version = "IrelandTaxCalculator 0.1", description = "IrelandTaxCalculator")
 public class IrelandTaxCalculator implements Callable<Integer> {
 
-	@Option(names = "--f", required = true, description = "Transactions.csv as exported from Degiro.")
-	private File transactionsFile;
+	@ArgGroup(exclusive = true, multiplicity = "1")
+	private Input input;
+
+	static class Input {
+		@Option(names = "--f", required = true, description = "Transactions.csv as exported from Degiro.")
+		private File transactionsFile;
+
+		@Option(names = "--batch", required = true, description = "Directory with Transactions.csv files of many "
+				+ "accounts, or a manifest that lists one file per line. Files are processed concurrently, and the "
+				+ "report of every file is written next to it, with .report.txt instead of .csv.")
+		private File batch;
+
+		@Option(names = "--serve", required = true, paramLabel = "PORT", description = "Run as a local HTTP service "
+				+ "on the port, 0 for any free one. POST a Transactions.csv to /report and the reports come back, "
+				+ "in --format or the format asked for with ?format=.")
+		private Integer port;
+	}
+
+	@Option(names = "--cache", description = "Keep the parsed transactions in a binary file next to the CSV, and "
+			+ "read them from there on later runs, as long as the CSV does not change.")
+	private boolean cache;
+
+	@Option(names = "--format", description = "Format of the reports: ${COMPLETION-CANDIDATES}. Defaults to TEXT. "
+			+ "CSV has a row per sale, JSON an object per year.")
+	private ReportWriter.Format format = ReportWriter.Format.TEXT;
+
+	@Option(names = "--threads", description = "Number of files processed at the same time in batch mode, or of "
+			+ "requests in service mode. Defaults to the number of processors.")
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	@Option(names = "--parallel", description = "Parse the file in chunks and match every ISIN in parallel on the "
+			+ "common fork-join pool. With --year only a file read with --cache is parsed in parallel.")
+	private boolean parallel;
+
+	@Option(names = "--stream", description = "Read the file from the end and match transactions as they are parsed. "
+			+ "Only open lots and the last 4 weeks of transactions are kept in memory. Reports are printed once "
+			+ "all the sales of the year are known. Splits and ISIN changes are not applied.")
+	private boolean stream;
+
+	@Option(names = "--queue", description = "Number of requests that may wait for a thread in service mode. "
+			+ "Requests over that are answered with 503 at once. Defaults to ${DEFAULT-VALUE}.")
+	private int queue = 64;
+
+	@Option(names = "--result-cache", description = "Number of matches of buys and sells kept in service mode, "
+			+ "by ISIN and a hash of its transactions, so uploading an account again only matches the ISINs with "
+			+ "new trades. 0 turns the cache off. Defaults to ${DEFAULT-VALUE}.")
+	private long resultCache = 1_000_000;
+
+	@Option(names = "--year", description = "Only calculate and print the report of the tax year. ISINs without "
+			+ "sells in the year are skipped, and nothing after the last sell of the year and its 4 weeks is "
+			+ "matched, or even fully parsed unless --cache is given. ISINs are matched one after the other, "
+			+ "--parallel is ignored except for parsing with --cache. Ignored with --stream and --batch.")
+	private Integer year;
+
+	@Option(names = "--compact", description = "Keep the transactions as primitive columns instead of objects, "
+			+ "for histories too large for the heap otherwise. Reports have no order IDs, and splits and ISIN "
+			+ "changes are not applied. --cache, --parallel and --year are ignored with it, --stream and --batch "
+			+ "ignore it.")
+	private boolean compact;
+
+	@Option(names = "--stats", description = "Print where the time went to stderr after the reports: duration of "
+			+ "the parse, sort, match and report phases, and counts of matches, lot splits, four week rule hits "
+			+ "and open lots. Ignored with --stream and --batch.")
+	private boolean stats;
+
+	@Option(names = "--ledger", description = "Print the tax of every year instead of its sales: net gains, losses "
+			+ "brought forward from earlier years and used, exemption used, chargeable gains, tax due and losses "
+			+ "carried forward, in --format. With --year all the years are still matched, as losses carry over, "
+			+ "and only that year is printed. Ignored with --stream and --batch.")
+	private boolean ledger;
 
 	@Override
 	public Integer call() throws Exception {
+		if (this.input.batch != null) {
+			return this.callBatch();
+		}
+		if (this.input.port != null) {
+			return this.callService();
+		}
+		if (this.stream) {
+			return this.callStreaming();
+		}
+		if (this.compact) {
+			return this.callCompact();
+		}
+		if (this.parallel && this.year != null && !this.ledger) {
+			System.err.println(this.cache ? "--parallel only applies to parsing with --year."
+					: "--parallel is ignored with --year.");
+		}
+		var engineStats = new EngineStats();
 		var txsParser = new TransactionsParser();
-		List<Transaction> txs = txsParser.parseFile(this.transactionsFile);
-		var taxEngine = new TaxEngine(txs);
+		List<Transaction> txs;
+		try (var phase = engineStats.startPhase(EngineStats.PARSE)) {
+			if (this.cache) {
+				txs = txsParser.parseFileCached(this.input.transactionsFile, this.parallel);
+			} else if (this.year != null && !this.ledger) {
+				txs = txsParser.parseFileForYear(this.input.transactionsFile, this.year);
+			} else if (this.parallel) {
+				txs = txsParser.parseFileParallel(this.input.transactionsFile);
+			} else {
+				txs = txsParser.parseFile(this.input.transactionsFile);
+			}
+			phase.setItems(txs.size());
+		}
+		engineStats.skippedRows = txsParser.getSkippedRows();
+		var taxEngine = new TaxEngine(txs, txsParser.getCorporateActions(), engineStats);
+		if (this.year != null && !this.ledger) {
+			taxEngine.calculateTaxYear(this.year);
+		} else if (this.parallel) {
+			taxEngine.calculateTaxFullParallel();
+		} else {
+			taxEngine.calculateTaxFull();
+		}
+		this.printReports(taxEngine.reports, this.year, engineStats);
+		return 0;
+	}
+
+	private Integer callCompact() throws Exception {
+		var engineStats = new EngineStats();
+		var txsParser = new TransactionsParser();
+		TransactionTable table;
+		try (var phase = engineStats.startPhase(EngineStats.PARSE)) {
+			table = txsParser.parseFileToTable(this.input.transactionsFile);
+			phase.setItems(table.size());
+		}
+		engineStats.skippedRows = txsParser.getSkippedRows();
+		warnIgnoredActions(txsParser, "--compact");
+		var taxEngine = new TableTaxEngine(table, engineStats);
 		taxEngine.calculateTaxFull();
-		for (var report : taxEngine.reports.values()) {
-			System.out.println(report.prettyPrint());
+		this.printReports(taxEngine.reports, null, engineStats);
+		return 0;
+	}
+
+	/**
+	 * @param ledgerYear only year of the ledger to print, or null for all.
+	 */
+	private void printReports(Map<Integer, TaxReport> reports, Integer ledgerYear, EngineStats engineStats) {
+		try (var phase = engineStats.startPhase(EngineStats.REPORT)) {
+			var reportWriter = newStdoutWriter();
+			if (this.ledger) {
+				var taxLedger = TaxLedger.of(reports);
+				reportWriter.writeLedger(ledgerYear == null ? taxLedger : taxLedger.only(ledgerYear));
+			} else {
+				for (var report : reports.values()) {
+					reportWriter.writeReport(report);
+				}
+				reportWriter.finish();
+			}
+			phase.setItems(reports.size());
+		}
+		if (this.stats) {
+			System.err.print(engineStats.summary());
 		}
+	}
+
+	private Integer callBatch() throws Exception {
+		var inputs = BatchCalculator.listInputs(this.input.batch);
+		int failed = new BatchCalculator(this.threads, this.cache, this.format).run(inputs);
+		return failed == 0 ? 0 : 1;
+	}
+
+	private Integer callService() throws Exception {
+		var service = new TaxService(new InetSocketAddress(InetAddress.getLoopbackAddress(), this.input.port),
+				this.threads, this.queue, TaxService.DEFAULT_MAX_UPLOAD, this.format,
+				this.resultCache > 0 ? new MatchCache(this.resultCache) : null);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				service.stop();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}));
+		service.start();
+		System.out.println(String.format("Listening on http://localhost:%d%s", service.getPort(),
+				TaxService.REPORT_PATH));
+		service.awaitStop();
 		return 0;
 	}
 
+	private Integer callStreaming() throws Exception {
+		var txsParser = new TransactionsParser();
+		var printer = new YearlyReportPrinter(newStdoutWriter());
+		var taxEngine = new StreamingTaxEngine(printer);
+		txsParser.parseFileChronologically(this.input.transactionsFile, taxEngine::accept);
+		taxEngine.finish();
+		printer.finish();
+		warnIgnoredActions(txsParser, "--stream");
+		return 0;
+	}
+
+	private static void warnIgnoredActions(TransactionsParser txsParser, String option) {
+		int actions = txsParser.getCorporateActions().size();
+		if (actions > 0) {
+			System.err.println(String.format("%d corporate actions are not applied with %s.", actions, option));
+		}
+	}
+
+	private ReportWriter newStdoutWriter() {
+		return new ReportWriter(new OutputStreamWriter(System.out, Charset.defaultCharset()), this.format);
+	}
+
+	/**
+	 * Sell reports come in chronological order, so we only need to keep the
+	 * report of the current year.
+	 */
+	private static class YearlyReportPrinter implements Consumer<SellReport> {
+		private final ReportWriter writer;
+		private TaxReport report = null;
+
+		YearlyReportPrinter(ReportWriter writer) {
+			this.writer = writer;
+		}
+
+		@Override
+		public void accept(SellReport sellReport) {
+			int year = sellReport.originalSellTransaction.getDatetime().getYear();
+			if (this.report != null && this.report.year != year) {
+				this.flush();
+			}
+			if (this.report == null) {
+				this.report = new TaxReport(year);
+			}
+			this.report.addSale(sellReport);
+		}
+
+		void flush() {
+			if (this.report != null) {
+				this.writer.writeReport(this.report);
+				this.report = null;
+			}
+		}
+
+		void finish() {
+			this.flush();
+			this.writer.finish();
+		}
+	}
+
 	public static void main(String... args) {
 		System.exit(new CommandLine(new IrelandTaxCalculator()).execute(args));
 	}
@@ -0,0 +1,45 @@
+package com.github.yungene.taxcalc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interning table for stocks. Every ISIN gets a single shared Stock, with a
+ * dense id in order of first appearance, so engines can keep per-ISIN state in
+ * arrays.
+ *
+ * Degiro sometimes renames a product, the name of the first row wins.
+ *
+ * The table is thread safe, so it can be shared by parsers on several threads.
+ * Parsers only get here the first time they see an ISIN, see
+ * {@link MappedCsvParser}.
+ */
+class IsinTable {
+	private final Map<String, Stock> byIsin;
+	private final List<Stock> stocks;
+
+	IsinTable() {
+		this.byIsin = new HashMap<>();
+		this.stocks = new ArrayList<>();
+	}
+
+	synchronized Stock intern(String isin, String productName) {
+		var stock = this.byIsin.get(isin);
+		if (stock == null) {
+			stock = new Stock(productName, isin, this.stocks.size());
+			this.byIsin.put(isin, stock);
+			this.stocks.add(stock);
+		}
+		return stock;
+	}
+
+	synchronized Stock get(int id) {
+		return this.stocks.get(id);
+	}
+
+	synchronized int size() {
+		return this.stocks.size();
+	}
+}
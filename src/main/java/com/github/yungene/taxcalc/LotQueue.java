@@ -0,0 +1,508 @@
+package com.github.yungene.taxcalc;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * FIFO queue of buy lots, backed by a growable ring buffer.
+ *
+ * Each lot is stored in parallel arrays: remaining quantity, total price per
+ * share (inclusive of fees), timestamp in epoch minutes, and a reference back
+ * to the source buy transaction. Moving a lot between queues copies a few
+ * array slots and splitting a lot only adjusts the quantities, so no nodes or
+ * transaction copies are created while matching.
+ *
+ * Iterating over the queue gives the lots as transactions, where partially
+ * consumed lots are copies of the source with the remaining quantity.
+ *
+ * Every lot also has the number of corporate actions of its stock its
+ * quantity and cost are in, and the position of its shares in the queue: the
+ * number of shares pushed up to its last one. A split only records where the
+ * queue was, see {@link StockState}, and lots are adjusted one at a time when
+ * they get to the head, see {@link #adjustFirst(int, int, long, Transaction, long)}.
+ * Lots further back, and iterating over them, are still in the shares they
+ * were pushed in.
+ *
+ * A snapshot shares the arrays with its queue until one of them adds a lot,
+ * see {@link #snapshot()}. Taking from the head, or adjusting it, only moves
+ * the head or overrides it, so a snapshot that is only matched against is
+ * never copied.
+ */
+class LotQueue implements Iterable<Transaction> {
+	private static final int DEFAULT_CAPACITY = 16;
+	private static final int NO_OVERRIDE = -1;
+
+	private int[] quantities;
+	private long[] costs;
+	private long[] timestamps;
+	private Transaction[] sources;
+	// Number of corporate actions applied to the quantity and cost of every lot.
+	private int[] actions;
+	// Position after the last share of every lot, see end.
+	private long[] ends;
+	// Shares pushed, since the queue was made or last rebased. Shares of a lot
+	// are at the positions up to its end.
+	private long end;
+	// Index of the first lot. Capacity is always a power of two, so we can use a
+	// mask instead of modulo.
+	private int head;
+	private int size;
+	// Whether the arrays may be used by another queue, so they are read only.
+	private boolean shared;
+	// Remaining quantity of the head lot, when it was partially consumed while
+	// the arrays were shared.
+	private int headQuantity;
+	// Rest of the head lot, when it was adjusted while the arrays were shared.
+	// Set if headSource is not null.
+	private Transaction headSource;
+	private long headCost;
+	private int headActions;
+	private long headEnd;
+
+	LotQueue() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	LotQueue(int initialCapacity) {
+		int capacity = Integer.highestOneBit(Math.max(initialCapacity, 2) - 1) << 1;
+		this.quantities = new int[capacity];
+		this.costs = new long[capacity];
+		this.timestamps = new long[capacity];
+		this.sources = new Transaction[capacity];
+		this.actions = new int[capacity];
+		this.ends = new long[capacity];
+		this.end = 0;
+		this.head = 0;
+		this.size = 0;
+		this.shared = false;
+		this.headQuantity = NO_OVERRIDE;
+		this.headSource = null;
+	}
+
+	private LotQueue(LotQueue queue) {
+		this.quantities = queue.quantities;
+		this.costs = queue.costs;
+		this.timestamps = queue.timestamps;
+		this.sources = queue.sources;
+		this.actions = queue.actions;
+		this.ends = queue.ends;
+		this.end = queue.end;
+		this.head = queue.head;
+		this.size = queue.size;
+		this.shared = true;
+		this.headQuantity = queue.headQuantity;
+		this.headSource = queue.headSource;
+		this.headCost = queue.headCost;
+		this.headActions = queue.headActions;
+		this.headEnd = queue.headEnd;
+	}
+
+	/**
+	 * @return a copy of this queue that can be modified independently.
+	 */
+	LotQueue copy() {
+		var copy = new LotQueue(Math.max(this.size, 1));
+		for (int i = 0; i < this.size; i++) {
+			int idx = this.index(i);
+			copy.push(this.quantityAt(idx), this.costAt(idx), this.timestamps[idx], this.sourceAt(idx),
+					this.actionsAt(idx));
+			// Positions are kept, as the state of the queue refers to them.
+			copy.ends[i] = this.endAt(idx);
+		}
+		copy.end = this.end;
+		return copy;
+	}
+
+	/**
+	 * Copy-on-write version of {@link #copy()}, in constant time. The snapshot
+	 * and this queue share the arrays until either of them adds a lot, at which
+	 * point that queue copies them. Not safe for use from several threads, even
+	 * on different snapshots.
+	 *
+	 * @return a copy of this queue that can be modified independently.
+	 */
+	LotQueue snapshot() {
+		this.shared = true;
+		return new LotQueue(this);
+	}
+
+	boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	void add(Transaction tx) {
+		this.addLast(tx);
+	}
+
+	void addAll(Collection<? extends Transaction> txs) {
+		for (var tx : txs) {
+			this.addLast(tx);
+		}
+	}
+
+	void addLast(Transaction tx) {
+		this.addLast(tx, 0);
+	}
+
+	/**
+	 * @param actions number of corporate actions of the stock before tx.
+	 */
+	void addLast(Transaction tx, int actions) {
+		this.push(tx.getQuantity(), tx.getEuroTotalPrice(), tx.getEpochMinute(), tx, actions);
+	}
+
+	int firstQuantity() {
+		this.checkNotEmpty();
+		return this.quantityAt(this.head);
+	}
+
+	long firstCost() {
+		this.checkNotEmpty();
+		return this.costAt(this.head);
+	}
+
+	long firstTimestamp() {
+		this.checkNotEmpty();
+		return this.timestamps[this.head];
+	}
+
+	Transaction firstSource() {
+		this.checkNotEmpty();
+		return this.sourceAt(this.head);
+	}
+
+	int firstActions() {
+		this.checkNotEmpty();
+		return this.actionsAt(this.head);
+	}
+
+	/**
+	 * @return position of the first share left in the queue, or the end if it is
+	 *         empty. Only in the positions after the last rebase if the first lot
+	 *         is adjusted up to it.
+	 */
+	long headPosition() {
+		if (this.size == 0) {
+			return this.end;
+		}
+		return this.endAt(this.head) - this.quantityAt(this.head);
+	}
+
+	/**
+	 * @return position after the last share in the queue.
+	 */
+	long endPosition() {
+		return this.end;
+	}
+
+	/**
+	 * Give the queue new positions from here on, e.g. when the shares held are
+	 * others after a corporate action. Lots pushed from now on are after end, the
+	 * ones in the queue keep their positions until they are adjusted.
+	 */
+	void rebase(long end) {
+		this.end = end;
+	}
+
+	/**
+	 * The i-th lot from the head, as it is stored: {@link #quantityOf(int)},
+	 * {@link #costOf(int)}, {@link #endOf(int)}, {@link #actionsOf(int)} and
+	 * {@link #sourceOf(int)}.
+	 * Used to work out lots that are not adjusted yet without adjusting them.
+	 */
+	int quantityOf(int i) {
+		return this.quantityAt(this.index(i));
+	}
+
+	long costOf(int i) {
+		return this.costAt(this.index(i));
+	}
+
+	long endOf(int i) {
+		return this.endAt(this.index(i));
+	}
+
+	int actionsOf(int i) {
+		return this.actionsAt(this.index(i));
+	}
+
+	Transaction sourceOf(int i) {
+		return this.sourceAt(this.index(i));
+	}
+
+	/**
+	 * Adjust the first lot for corporate actions: it is quantity shares of cost
+	 * each after them, and a lot left without a share is removed.
+	 *
+	 * @param actions number of actions the lot is in after this.
+	 * @param source  source of the lot in the shares after them.
+	 * @param end     position after the last share of the lot after them.
+	 */
+	void adjustFirst(int actions, int quantity, long cost, Transaction source, long end) {
+		this.checkNotEmpty();
+		int idx = this.head;
+		if (quantity == 0) {
+			this.consumeFirst(this.quantityAt(idx));
+		} else if (this.shared) {
+			this.headQuantity = quantity;
+			this.headCost = cost;
+			this.headSource = source;
+			this.headActions = actions;
+			this.headEnd = end;
+		} else {
+			this.quantities[idx] = quantity;
+			this.costs[idx] = cost;
+			this.sources[idx] = source;
+			this.actions[idx] = actions;
+			this.ends[idx] = end;
+		}
+	}
+
+	/**
+	 * @return the first lot as a transaction with the remaining quantity.
+	 */
+	Transaction getFirst() {
+		this.checkNotEmpty();
+		return this.materialize(this.head, this.quantityAt(this.head));
+	}
+
+	/**
+	 * Remove the whole first lot.
+	 *
+	 * @return the removed lot as a transaction.
+	 */
+	Transaction removeFirst() {
+		return this.removeFirst(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Take at most maxQuantity shares from the first lot. The lot is removed only
+	 * if it gets fully consumed, otherwise its remaining quantity is reduced in
+	 * place.
+	 *
+	 * @return the taken part of the lot as a transaction.
+	 */
+	Transaction removeFirst(int maxQuantity) {
+		this.checkNotEmpty();
+		int idx = this.head;
+		int taken = Math.min(maxQuantity, this.quantityAt(idx));
+		var tx = this.materialize(idx, taken);
+		this.consumeFirst(taken);
+		return tx;
+	}
+
+	/**
+	 * Same as {@link #removeFirst(int)}, but does not create a transaction for
+	 * the taken part.
+	 *
+	 * @return number of shares taken.
+	 */
+	int dropFirst(int maxQuantity) {
+		this.checkNotEmpty();
+		int taken = Math.min(maxQuantity, this.quantityAt(this.head));
+		this.consumeFirst(taken);
+		return taken;
+	}
+
+	/**
+	 * Move the whole first lot to the end of another queue.
+	 */
+	void moveFirstTo(LotQueue dst) {
+		this.moveFirstTo(dst, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Move at most maxQuantity shares of the first lot to the end of another
+	 * queue. Remainder of the lot stays at the head of this queue.
+	 *
+	 * @return number of shares moved.
+	 */
+	int moveFirstTo(LotQueue dst, int maxQuantity) {
+		this.checkNotEmpty();
+		int idx = this.head;
+		int moved = Math.min(maxQuantity, this.quantityAt(idx));
+		dst.push(moved, this.costAt(idx), this.timestamps[idx], this.sourceAt(idx), this.actionsAt(idx));
+		this.consumeFirst(moved);
+		return moved;
+	}
+
+	private void consumeFirst(int quantity) {
+		int idx = this.head;
+		int left = this.quantityAt(idx) - quantity;
+		if (left == 0) {
+			if (!this.shared) {
+				this.sources[idx] = null;
+			}
+			this.head = (idx + 1) & (this.sources.length - 1);
+			this.size--;
+			this.headQuantity = NO_OVERRIDE;
+			this.headSource = null;
+		} else if (this.shared) {
+			this.headQuantity = left;
+		} else {
+			this.quantities[idx] = left;
+		}
+	}
+
+	private int index(int i) {
+		return (this.head + i) & (this.sources.length - 1);
+	}
+
+	private int quantityAt(int idx) {
+		if (idx == this.head && this.headQuantity != NO_OVERRIDE) {
+			return this.headQuantity;
+		}
+		return this.quantities[idx];
+	}
+
+	private long costAt(int idx) {
+		return idx == this.head && this.headSource != null ? this.headCost : this.costs[idx];
+	}
+
+	private Transaction sourceAt(int idx) {
+		return idx == this.head && this.headSource != null ? this.headSource : this.sources[idx];
+	}
+
+	private int actionsAt(int idx) {
+		return idx == this.head && this.headSource != null ? this.headActions : this.actions[idx];
+	}
+
+	private long endAt(int idx) {
+		return idx == this.head && this.headSource != null ? this.headEnd : this.ends[idx];
+	}
+
+	private void push(int quantity, long cost, long timestamp, Transaction source, int actions) {
+		if (this.size == this.sources.length) {
+			this.grow();
+		} else if (this.shared) {
+			this.unshare();
+		}
+		int idx = (this.head + this.size) & (this.sources.length - 1);
+		this.quantities[idx] = quantity;
+		this.costs[idx] = cost;
+		this.timestamps[idx] = timestamp;
+		this.sources[idx] = source;
+		this.actions[idx] = actions;
+		this.end += quantity;
+		this.ends[idx] = this.end;
+		this.size++;
+	}
+
+	private void grow() {
+		int capacity = this.sources.length;
+		int[] newQuantities = new int[capacity << 1];
+		long[] newCosts = new long[capacity << 1];
+		long[] newTimestamps = new long[capacity << 1];
+		Transaction[] newSources = new Transaction[capacity << 1];
+		int[] newActions = new int[capacity << 1];
+		long[] newEnds = new long[capacity << 1];
+		// Unwrap the ring, so that the head ends up at index 0.
+		int firstPart = capacity - this.head;
+		System.arraycopy(this.quantities, this.head, newQuantities, 0, firstPart);
+		System.arraycopy(this.quantities, 0, newQuantities, firstPart, this.head);
+		System.arraycopy(this.costs, this.head, newCosts, 0, firstPart);
+		System.arraycopy(this.costs, 0, newCosts, firstPart, this.head);
+		System.arraycopy(this.timestamps, this.head, newTimestamps, 0, firstPart);
+		System.arraycopy(this.timestamps, 0, newTimestamps, firstPart, this.head);
+		System.arraycopy(this.sources, this.head, newSources, 0, firstPart);
+		System.arraycopy(this.sources, 0, newSources, firstPart, this.head);
+		System.arraycopy(this.actions, this.head, newActions, 0, firstPart);
+		System.arraycopy(this.actions, 0, newActions, firstPart, this.head);
+		System.arraycopy(this.ends, this.head, newEnds, 0, firstPart);
+		System.arraycopy(this.ends, 0, newEnds, firstPart, this.head);
+		if (this.headQuantity != NO_OVERRIDE) {
+			newQuantities[0] = this.headQuantity;
+		}
+		if (this.headSource != null) {
+			newSources[0] = this.headSource;
+			newCosts[0] = this.headCost;
+			newActions[0] = this.headActions;
+			newEnds[0] = this.headEnd;
+		}
+		this.quantities = newQuantities;
+		this.costs = newCosts;
+		this.timestamps = newTimestamps;
+		this.sources = newSources;
+		this.actions = newActions;
+		this.ends = newEnds;
+		this.head = 0;
+		this.shared = false;
+		this.headQuantity = NO_OVERRIDE;
+		this.headSource = null;
+	}
+
+	/**
+	 * Take private copies of the shared arrays.
+	 */
+	private void unshare() {
+		this.quantities = this.quantities.clone();
+		this.costs = this.costs.clone();
+		this.timestamps = this.timestamps.clone();
+		this.sources = this.sources.clone();
+		this.actions = this.actions.clone();
+		this.ends = this.ends.clone();
+		if (this.headQuantity != NO_OVERRIDE) {
+			this.quantities[this.head] = this.headQuantity;
+		}
+		if (this.headSource != null) {
+			this.sources[this.head] = this.headSource;
+			this.costs[this.head] = this.headCost;
+			this.actions[this.head] = this.headActions;
+			this.ends[this.head] = this.headEnd;
+		}
+		this.shared = false;
+		this.headQuantity = NO_OVERRIDE;
+		this.headSource = null;
+	}
+
+	private Transaction materialize(int idx, int quantity) {
+		var source = this.sourceAt(idx);
+		if (source.getQuantity() == quantity) {
+			return source;
+		}
+		return source.copyWithNewQuantity(quantity);
+	}
+
+	private void checkNotEmpty() {
+		if (this.size == 0) {
+			throw new NoSuchElementException("Lot queue is empty.");
+		}
+	}
+
+	@Override
+	public Iterator<Transaction> iterator() {
+		return new Iterator<Transaction>() {
+			private int i = 0;
+
+			@Override
+			public boolean hasNext() {
+				return this.i < LotQueue.this.size;
+			}
+
+			@Override
+			public Transaction next() {
+				if (!this.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				int idx = LotQueue.this.index(this.i++);
+				return LotQueue.this.materialize(idx, LotQueue.this.quantityAt(idx));
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("LotQueue [");
+		String sep = "";
+		for (var tx : this) {
+			sb.append(sep).append(tx);
+			sep = ", ";
+		}
+		return sb.append("]").toString();
+	}
+}
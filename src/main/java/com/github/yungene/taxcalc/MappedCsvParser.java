@@ -0,0 +1,658 @@
+package com.github.yungene.taxcalc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.github.yungene.taxcalc.CsvLayout.Column;
+
+/**
+ * Parser backend that tokenizes the raw bytes of a broker CSV, e.g. a memory
+ * mapped file, instead of reading it line by line into Strings.
+ *
+ * Fields of a row are found by a single scan for delimiters, up to the last
+ * column that is needed, and the rest of the row is skipped. Fields are only
+ * decoded when asked for, see {@link #scan}, so a pass that skips rows by
+ * their date never parses the rest of them. The date, time, quantity
+ * and money fields are decoded straight from the bytes. Only the product
+ * name, ISIN and order ID become Strings. Fields can be quoted, with ""
+ * standing for a quote inside a quoted field, and quoted fields can contain
+ * commas and newlines.
+ *
+ * Columns are found by the header row, see {@link CsvLayout}, or are where
+ * the layout puts them if there is no header.
+ *
+ * Stocks come from the shared {@link IsinTable}. Each parser also keeps its
+ * own table by the raw bytes of the ISIN field, so for an ISIN seen before
+ * neither the ISIN nor the product name is decoded.
+ *
+ * Rows are skipped and converted the same way as in
+ * {@link TransactionsParser#parseLine(String, int)}.
+ */
+class MappedCsvParser {
+	private static final Column[] ALL_COLUMNS = Column.values();
+	// Columns of the legs of corporate actions, which have no order ID.
+	private static final Column[] LEG_COLUMNS = { Column.DATE, Column.TIME, Column.PRODUCT_NAME, Column.ISIN,
+			Column.QUANTITY };
+	private static final int MAX_HEADER_FIELDS = 256;
+	private static final int INITIAL_FIELDS = 20;
+
+	private final CsvLayout layout;
+	// Index of every column by ordinal, and the number of fields to tokenize for
+	// the columns of the current scan.
+	private int[] columns;
+	private int fieldsNeeded;
+	// Rows that are not blank, but have no order ID or too few fields, e.g.
+	// stock splits.
+	int skippedRows;
+	// Skipped rows that are legs of corporate actions, see
+	// CorporateAction#pair(List).
+	final List<Transaction> actionLegs = new ArrayList<>();
+	// Buffer of the row that is being visited.
+	private ByteBuffer rowBuf;
+	private int dateYear;
+	private int dateMonth;
+	private int dateDay;
+
+	// Field i of the current row is [fieldStarts[i], fieldEnds[i]) of the buffer,
+	// without the surrounding quotes. Escaped fields contain "" that still has to
+	// be turned into a single quote.
+	private int[] fieldStarts;
+	private int[] fieldEnds;
+	private boolean[] fieldEscaped;
+	private int fieldCount;
+	// Whether the last tokenized row was terminated by a newline.
+	private boolean rowTerminated;
+	// Position of the next byte to decode within the current field.
+	private int cursor;
+	private byte[] scratch;
+	private IsinTable isins;
+	// Stocks seen by this parser, by the bytes of the ISIN field. Open addressing
+	// with linear probing, capacity is a power of two.
+	private byte[][] stockKeys;
+	private Stock[] stockValues;
+	private int stockCount;
+
+	MappedCsvParser(IsinTable isins) {
+		this(isins, CsvLayout.DEGIRO, null);
+	}
+
+	/**
+	 * @param columns index of every column, e.g. from the header of a file that
+	 *                is parsed in chunks, or null for where the layout puts them.
+	 */
+	MappedCsvParser(IsinTable isins, CsvLayout layout, int[] columns) {
+		this.layout = layout;
+		this.columns = columns != null ? columns : layout.defaultColumns();
+		this.isins = isins;
+		this.stockKeys = new byte[64][];
+		this.stockValues = new Stock[64];
+		this.stockCount = 0;
+		this.fieldStarts = new int[INITIAL_FIELDS];
+		this.fieldEnds = new int[INITIAL_FIELDS];
+		this.fieldEscaped = new boolean[INITIAL_FIELDS];
+		this.fieldCount = 0;
+		this.scratch = new byte[64];
+	}
+
+	/**
+	 * Go back to the columns where the layout puts them, e.g. before another
+	 * file.
+	 */
+	void resetColumns() {
+		this.columns = this.layout.defaultColumns();
+	}
+
+	/**
+	 * Forget the stocks seen so far, and intern the next ones in isins.
+	 */
+	void resetStocks(IsinTable isins) {
+		this.isins = isins;
+		Arrays.fill(this.stockKeys, null);
+		Arrays.fill(this.stockValues, null);
+		this.stockCount = 0;
+	}
+
+	int[] getColumns() {
+		return this.columns.clone();
+	}
+
+	/**
+	 * Parse the rows between the position and the limit of buf. The position has
+	 * to be at the start of a row.
+	 *
+	 * If last is false, the buffer is only a part of the file, so a row that is
+	 * not terminated by a newline is not parsed, and the position is left at its
+	 * start. Otherwise the position is moved to the limit.
+	 *
+	 * @return sequence number for the next transaction.
+	 */
+	int parse(ByteBuffer buf, int seqNum, boolean last, Consumer<Transaction> sink) {
+		int[] next = { seqNum };
+		this.scan(buf, last, ALL_COLUMNS, row -> sink.accept(row.transaction(next[0]++)));
+		return next[0];
+	}
+
+	/**
+	 * Same as {@link #parse}, but the visitor gets the parser itself for every
+	 * transaction row, and decodes what it needs with {@link #stock()},
+	 * {@link #epochMinute()} and the like. Header rows and skipped rows are not
+	 * visited.
+	 *
+	 * @param needed columns the visitor asks for. Fields after the last of them
+	 *               are not tokenized.
+	 */
+	void scan(ByteBuffer buf, boolean last, Column[] needed, Consumer<MappedCsvParser> visitor) {
+		this.rowBuf = buf;
+		int pos = buf.position();
+		int limit = buf.limit();
+		while (pos < limit) {
+			// Order ID is always needed, rows without it are not transactions. Rows
+			// without it may be corporate actions though.
+			this.fieldsNeeded = Math.max(CsvLayout.fieldsNeeded(this.columns, needed),
+					Math.max(CsvLayout.fieldsNeeded(this.columns, Column.ORDER_ID),
+							CsvLayout.fieldsNeeded(this.columns, LEG_COLUMNS)));
+			int next = this.tokenizeRow(buf, pos, limit, last, this.fieldsNeeded);
+			if (!this.rowTerminated && !last) {
+				break;
+			}
+			if (this.isHeaderCandidate(buf)) {
+				this.tokenizeRow(buf, pos, limit, last, MAX_HEADER_FIELDS);
+				if (this.readHeader(buf)) {
+					pos = next;
+					continue;
+				}
+				this.tokenizeRow(buf, pos, limit, last, this.fieldsNeeded);
+			}
+			if (this.isTransaction()) {
+				visitor.accept(this);
+			} else if (this.fieldCount > 1 || this.fieldStarts[0] != this.fieldEnds[0]) {
+				this.skippedRows++;
+				this.addActionLeg();
+			}
+			pos = next;
+		}
+		buf.position(pos);
+	}
+
+	/**
+	 * Find the columns in the first row of buf, if it is a header, and leave the
+	 * position after it. Otherwise leave the position where it was.
+	 *
+	 * @return index of every column.
+	 */
+	int[] readHeader(ByteBuffer buf, boolean last) {
+		int pos = buf.position();
+		int next = this.tokenizeRow(buf, pos, buf.limit(), last, MAX_HEADER_FIELDS);
+		if ((this.rowTerminated || last) && this.isHeaderCandidate(buf) && this.readHeader(buf)) {
+			buf.position(next);
+		}
+		return this.getColumns();
+	}
+
+	/**
+	 * Dates start with a digit, header names don't.
+	 */
+	private boolean isHeaderCandidate(ByteBuffer buf) {
+		int field = this.columns[Column.DATE.ordinal()];
+		if (field >= this.fieldCount || this.fieldStarts[field] == this.fieldEnds[field]) {
+			return false;
+		}
+		byte b = buf.get(this.fieldStarts[field]);
+		return b < '0' || b > '9';
+	}
+
+	/**
+	 * Take the columns from the current row if it is a header, i.e. has the
+	 * name of the date column.
+	 *
+	 * @return whether the row is a header.
+	 */
+	private boolean readHeader(ByteBuffer buf) {
+		List<String> header = new ArrayList<>(this.fieldCount);
+		boolean hasDate = false;
+		for (int field = 0; field < this.fieldCount; field++) {
+			String name = this.decodeString(buf, field);
+			hasDate |= this.layout.isHeaderDate(name);
+			header.add(name);
+		}
+		if (hasDate) {
+			this.columns = this.layout.resolve(header);
+		}
+		return hasDate;
+	}
+
+	/**
+	 * Keep the current row as a leg of a corporate action, if it has the date,
+	 * stock and quantity of one.
+	 */
+	private void addActionLeg() {
+		if (this.fieldCount < CsvLayout.fieldsNeeded(this.columns, LEG_COLUMNS)) {
+			return;
+		}
+		try {
+			int quantity = this.quantity();
+			var datetime = this.datetime();
+			if (quantity != 0) {
+				this.actionLegs.add(TransactionsParser.newActionLeg(datetime, this.stock(), quantity));
+			}
+		} catch (IllegalArgumentException | DateTimeException e) {
+			// Not a corporate action either.
+		}
+	}
+
+	private boolean isTransaction() {
+		int orderId = this.columns[Column.ORDER_ID.ordinal()];
+		return this.fieldCount >= this.fieldsNeeded && this.fieldStarts[orderId] != this.fieldEnds[orderId];
+	}
+
+	/**
+	 * Find the first maxFields fields of the row starting at pos, and skip the
+	 * rest of it.
+	 *
+	 * @return position after the row.
+	 */
+	private int tokenizeRow(ByteBuffer buf, int pos, int limit, boolean last, int maxFields) {
+		this.fieldCount = 0;
+		this.rowTerminated = false;
+		while (true) {
+			if (this.fieldCount == maxFields) {
+				return this.skipRow(buf, pos, limit, last);
+			}
+			int start = pos;
+			int end;
+			boolean escaped = false;
+			if (pos < limit && buf.get(pos) == '"') {
+				start = ++pos;
+				while (true) {
+					if (pos >= limit) {
+						if (last) {
+							throw new IllegalArgumentException(
+									String.format("Quoted field starting at byte %d is not closed.", start - 1));
+						}
+						// Rest of the row is in the next part of the file.
+						return limit;
+					}
+					if (buf.get(pos) == '"') {
+						if (pos + 1 < limit && buf.get(pos + 1) == '"') {
+							escaped = true;
+							pos += 2;
+							continue;
+						}
+						break;
+					}
+					pos++;
+				}
+				end = pos++;
+				// Anything between the closing quote and the delimiter is ignored.
+				while (pos < limit && buf.get(pos) != ',' && buf.get(pos) != '\n') {
+					pos++;
+				}
+			} else {
+				while (pos < limit && buf.get(pos) != ',' && buf.get(pos) != '\n') {
+					pos++;
+				}
+				end = pos;
+				if (end > start && buf.get(end - 1) == '\r' && (pos == limit || buf.get(pos) == '\n')) {
+					end--;
+				}
+			}
+			this.addField(start, end, escaped);
+			if (pos >= limit) {
+				return limit;
+			}
+			if (buf.get(pos++) == '\n') {
+				this.rowTerminated = true;
+				return pos;
+			}
+		}
+	}
+
+	/**
+	 * Skip the rest of the row from pos, without recording its fields.
+	 *
+	 * @return position after the row.
+	 */
+	private int skipRow(ByteBuffer buf, int pos, int limit, boolean last) {
+		boolean quoted = false;
+		for (; pos < limit; pos++) {
+			byte b = buf.get(pos);
+			if (b == '"') {
+				quoted = !quoted;
+			} else if (b == '\n' && !quoted) {
+				this.rowTerminated = true;
+				return pos + 1;
+			}
+		}
+		if (quoted && last) {
+			throw new IllegalArgumentException("Quoted field at the end of the file is not closed.");
+		}
+		return limit;
+	}
+
+	private void addField(int start, int end, boolean escaped) {
+		if (this.fieldCount == this.fieldStarts.length) {
+			int capacity = this.fieldCount * 2;
+			int[] newStarts = new int[capacity];
+			int[] newEnds = new int[capacity];
+			boolean[] newEscaped = new boolean[capacity];
+			System.arraycopy(this.fieldStarts, 0, newStarts, 0, this.fieldCount);
+			System.arraycopy(this.fieldEnds, 0, newEnds, 0, this.fieldCount);
+			System.arraycopy(this.fieldEscaped, 0, newEscaped, 0, this.fieldCount);
+			this.fieldStarts = newStarts;
+			this.fieldEnds = newEnds;
+			this.fieldEscaped = newEscaped;
+		}
+		this.fieldStarts[this.fieldCount] = start;
+		this.fieldEnds[this.fieldCount] = end;
+		this.fieldEscaped[this.fieldCount] = escaped;
+		this.fieldCount++;
+	}
+
+	/**
+	 * @return transaction in the current row.
+	 */
+	Transaction transaction(int seqNum) {
+		return TransactionsParser.newTransaction(this.datetime(), this.stock(), this.quantity(), this.euroValue(),
+				this.euroTotalValue(), this.orderId(), seqNum);
+	}
+
+	Stock stock() {
+		return this.internStock(this.rowBuf);
+	}
+
+	LocalDateTime datetime() {
+		this.parseDate();
+		int time = this.field(Column.TIME);
+		int timeEnd = this.fieldEnds[time];
+		this.cursor = this.fieldStarts[time];
+		int hour = this.parseUnsigned(this.rowBuf, timeEnd, ':', time);
+		int minute = this.parseUnsigned(this.rowBuf, timeEnd, ':', time);
+		return LocalDateTime.of(this.dateYear, this.dateMonth, this.dateDay, hour, minute);
+	}
+
+	/**
+	 * @return day of the date since the epoch, without the time.
+	 */
+	long epochDay() {
+		this.parseDate();
+		return LocalDate.of(this.dateYear, this.dateMonth, this.dateDay).toEpochDay();
+	}
+
+	/**
+	 * @return same as {@link Transaction#getEpochMinute()} would be.
+	 */
+	long epochMinute() {
+		long epochDay = this.epochDay();
+		int time = this.field(Column.TIME);
+		int timeEnd = this.fieldEnds[time];
+		this.cursor = this.fieldStarts[time];
+		int hour = this.parseUnsigned(this.rowBuf, timeEnd, ':', time);
+		int minute = this.parseUnsigned(this.rowBuf, timeEnd, ':', time);
+		// Same checks as LocalDateTime.of in datetime().
+		ChronoField.HOUR_OF_DAY.checkValidValue(hour);
+		ChronoField.MINUTE_OF_HOUR.checkValidValue(minute);
+		return epochDay * Transaction.MINUTES_PER_DAY + hour * 60 + minute;
+	}
+
+	/**
+	 * @return quantity as in the CSV, negative for sells.
+	 */
+	int quantity() {
+		return this.parseInt(this.rowBuf, this.field(Column.QUANTITY));
+	}
+
+	/**
+	 * @return value in mil, signed as in the CSV.
+	 */
+	long euroValue() {
+		return this.parseMil(this.rowBuf, this.field(Column.VALUE_EUR));
+	}
+
+	/**
+	 * @return total value with fees in mil, signed as in the CSV.
+	 */
+	long euroTotalValue() {
+		return this.parseMil(this.rowBuf, this.field(Column.TOTAL_VALUE_EUR));
+	}
+
+	String orderId() {
+		return this.decodeString(this.rowBuf, this.field(Column.ORDER_ID));
+	}
+
+	private int field(Column column) {
+		int field = this.columns[column.ordinal()];
+		if (field >= this.fieldCount) {
+			throw new IllegalStateException(String.format("Column %s was not asked for in the scan.", column));
+		}
+		return field;
+	}
+
+	private Stock internStock(ByteBuffer buf) {
+		int isin = this.field(Column.ISIN);
+		int start = this.fieldStarts[isin];
+		int end = this.fieldEnds[isin];
+		int hash = 0;
+		for (int pos = start; pos < end; pos++) {
+			hash = 31 * hash + buf.get(pos);
+		}
+		int mask = this.stockKeys.length - 1;
+		int slot = spread(hash) & mask;
+		while (this.stockKeys[slot] != null) {
+			if (this.keyEquals(this.stockKeys[slot], buf, start, end)) {
+				return this.stockValues[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		var stock = this.isins.intern(this.decodeString(buf, isin),
+				this.decodeString(buf, this.field(Column.PRODUCT_NAME)));
+		byte[] key = new byte[end - start];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = buf.get(start + i);
+		}
+		this.stockKeys[slot] = key;
+		this.stockValues[slot] = stock;
+		if (++this.stockCount * 2 > this.stockKeys.length) {
+			this.growStocks();
+		}
+		return stock;
+	}
+
+	private boolean keyEquals(byte[] key, ByteBuffer buf, int start, int end) {
+		if (key.length != end - start) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (key[i] != buf.get(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void growStocks() {
+		var oldKeys = this.stockKeys;
+		var oldValues = this.stockValues;
+		this.stockKeys = new byte[oldKeys.length * 2][];
+		this.stockValues = new Stock[oldKeys.length * 2];
+		int mask = this.stockKeys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == null) {
+				continue;
+			}
+			int hash = 0;
+			for (byte b : oldKeys[i]) {
+				hash = 31 * hash + b;
+			}
+			int slot = spread(hash) & mask;
+			while (this.stockKeys[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			this.stockKeys[slot] = oldKeys[i];
+			this.stockValues[slot] = oldValues[i];
+		}
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Decode the date into dateYear, dateMonth and dateDay, in the order of the
+	 * layout.
+	 */
+	private void parseDate() {
+		int date = this.field(Column.DATE);
+		int dateEnd = this.fieldEnds[date];
+		this.cursor = this.fieldStarts[date];
+		char separator = this.layout.dateSeparator;
+		int first = this.parseUnsigned(this.rowBuf, dateEnd, separator, date);
+		this.dateMonth = this.parseUnsigned(this.rowBuf, dateEnd, separator, date);
+		int third = this.parseUnsigned(this.rowBuf, dateEnd, separator, date);
+		if (this.layout.dateOrder == CsvLayout.DateOrder.DAY_MONTH_YEAR) {
+			this.dateDay = first;
+			this.dateYear = third;
+		} else {
+			this.dateYear = first;
+			this.dateDay = third;
+		}
+	}
+
+	/**
+	 * Parse digits from the cursor up to the separator or end, and move the
+	 * cursor past the separator.
+	 */
+	private int parseUnsigned(ByteBuffer buf, int end, char separator, int field) {
+		int value = 0;
+		int digits = 0;
+		while (this.cursor < end) {
+			byte b = buf.get(this.cursor++);
+			if (b == separator) {
+				break;
+			}
+			if (b < '0' || b > '9' || digits == 9) {
+				throw this.invalidField(buf, field);
+			}
+			value = value * 10 + (b - '0');
+			digits++;
+		}
+		if (digits == 0) {
+			throw this.invalidField(buf, field);
+		}
+		return value;
+	}
+
+	private int parseInt(ByteBuffer buf, int field) {
+		int pos = this.fieldStarts[field];
+		int end = this.fieldEnds[field];
+		boolean negative = false;
+		if (pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+			negative = buf.get(pos) == '-';
+			pos++;
+		}
+		if (pos == end) {
+			throw this.invalidField(buf, field);
+		}
+		// Accumulate negatively, so that Integer.MIN_VALUE fits.
+		long value = 0;
+		for (; pos < end; pos++) {
+			byte b = buf.get(pos);
+			if (b < '0' || b > '9') {
+				throw this.invalidField(buf, field);
+			}
+			value = value * 10 - (b - '0');
+			if (value < Integer.MIN_VALUE) {
+				throw this.invalidField(buf, field);
+			}
+		}
+		if (!negative && value == Integer.MIN_VALUE) {
+			throw this.invalidField(buf, field);
+		}
+		return (int) (negative ? value : -value);
+	}
+
+	/**
+	 * Same as {@link TransactionsParser#decimalStringToLong(String)}: 4 decimal
+	 * places, rounding half up.
+	 */
+	private long parseMil(ByteBuffer buf, int field) {
+		int pos = this.fieldStarts[field];
+		int end = this.fieldEnds[field];
+		boolean negative = false;
+		if (pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+			negative = buf.get(pos) == '-';
+			pos++;
+		}
+		long value = 0;
+		int digits = 0;
+		for (; pos < end && buf.get(pos) != '.'; pos++) {
+			byte b = buf.get(pos);
+			if (b < '0' || b > '9') {
+				throw this.invalidField(buf, field);
+			}
+			value = Math.addExact(Math.multiplyExact(value, 10), b - '0');
+			digits++;
+		}
+		int decimals = 0;
+		boolean roundUp = false;
+		if (pos < end) {
+			// skip the decimal point
+			pos++;
+			for (; pos < end; pos++) {
+				byte b = buf.get(pos);
+				if (b < '0' || b > '9') {
+					throw this.invalidField(buf, field);
+				}
+				if (decimals < 4) {
+					value = Math.addExact(Math.multiplyExact(value, 10), b - '0');
+					decimals++;
+				} else if (decimals == 4) {
+					roundUp = b >= '5';
+					decimals++;
+				}
+				digits++;
+			}
+		}
+		if (digits == 0) {
+			throw this.invalidField(buf, field);
+		}
+		for (; decimals < 4; decimals++) {
+			value = Math.multiplyExact(value, 10);
+		}
+		if (roundUp) {
+			value = Math.addExact(value, 1);
+		}
+		return negative ? -value : value;
+	}
+
+	private String decodeString(ByteBuffer buf, int field) {
+		int start = this.fieldStarts[field];
+		int end = this.fieldEnds[field];
+		if (this.scratch.length < end - start) {
+			this.scratch = new byte[Math.max(end - start, this.scratch.length * 2)];
+		}
+		int length = 0;
+		boolean escaped = this.fieldEscaped[field];
+		for (int pos = start; pos < end; pos++) {
+			byte b = buf.get(pos);
+			this.scratch[length++] = b;
+			if (escaped && b == '"') {
+				// "" inside a quoted field is a single quote
+				pos++;
+			}
+		}
+		return new String(this.scratch, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private NumberFormatException invalidField(ByteBuffer buf, int field) {
+		return new NumberFormatException(
+				String.format("Invalid value \"%s\" in column %d.", this.decodeString(buf, field), field));
+	}
+}
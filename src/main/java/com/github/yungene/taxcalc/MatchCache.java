@@ -0,0 +1,234 @@
+package com.github.yungene.taxcalc;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sell reports of single ISINs, by a hash of the ISIN's transactions in
+ * chronological order. Matching one ISIN never depends on another, so when an
+ * export is uploaded again with a few new trades, only the ISINs whose hash
+ * changed have to be matched again.
+ *
+ * Reports are kept by the position of their sell and buy in the ISIN's
+ * transactions, not as SellReports, so a hit gives reports on the
+ * transactions that were just parsed, and an entry costs about 25 bytes per
+ * match. Entries are evicted least recently used first once more than
+ * maxMatches matches are kept. Safe to share between threads.
+ */
+class MatchCache {
+	private static final long SEED_1 = 0x9E3779B97F4A7C15L;
+	private static final long SEED_2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long MULTIPLIER_1 = 0xBF58476D1CE4E5B9L;
+	private static final long MULTIPLIER_2 = 0x94D049BB133111EBL;
+
+	private static final byte FOUR_WEEK_RULE_APPLIED = 1;
+	private static final byte BUY_WITHIN_FOUR_WEEKS_AFTER_SELL = 2;
+	private static final byte SELL_WITHIN_FOUR_WEEKS_AFTER_BUY = 4;
+
+	private final long maxMatches;
+	private final LinkedHashMap<Key, Entry> entries;
+	private long matches;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Hash of the transactions of one ISIN. Two independent 64 bit hashes, plus
+	 * the number of transactions.
+	 */
+	static final class Key {
+		private final String isin;
+		private final int count;
+		private final long hash1;
+		private final long hash2;
+
+		private Key(String isin, int count, long hash1, long hash2) {
+			this.isin = isin;
+			this.count = count;
+			this.hash1 = hash1;
+			this.hash2 = hash2;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(this.hash1);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			var other = (Key) obj;
+			return this.hash1 == other.hash1 && this.hash2 == other.hash2 && this.count == other.count
+					&& this.isin.equals(other.isin);
+		}
+	}
+
+	/**
+	 * Matches of an ISIN, one slot per sell report in their order.
+	 */
+	private static final class Entry {
+		final int[] sells;
+		final int[] buys;
+		final int[] quantities;
+		final long[] buyCosts;
+		final byte[] flags;
+
+		Entry(int size) {
+			this.sells = new int[size];
+			this.buys = new int[size];
+			this.quantities = new int[size];
+			this.buyCosts = new long[size];
+			this.flags = new byte[size];
+		}
+	}
+
+	/**
+	 * @param maxMatches most matches kept over all the entries.
+	 */
+	MatchCache(long maxMatches) {
+		if (maxMatches <= 0) {
+			throw new IllegalArgumentException("Size of the cache should be > 0.");
+		}
+		this.maxMatches = maxMatches;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * @param isinTxs all transactions of one ISIN in chronological order.
+	 */
+	static Key key(List<Transaction> isinTxs) {
+		var first = isinTxs.get(0).getStock();
+		long h1 = mix(SEED_1, MULTIPLIER_1, first.getName());
+		long h2 = mix(SEED_2, MULTIPLIER_2, first.getName());
+		for (var tx : isinTxs) {
+			long fields = (tx.isBuy() ? 1L : 0L) << 32 | tx.getQuantity();
+			h1 = mix(h1, MULTIPLIER_1, tx.getEpochMinute());
+			h2 = mix(h2, MULTIPLIER_2, tx.getEpochMinute());
+			h1 = mix(h1, MULTIPLIER_1, fields);
+			h2 = mix(h2, MULTIPLIER_2, fields);
+			h1 = mix(h1, MULTIPLIER_1, tx.getEuroPrice());
+			h2 = mix(h2, MULTIPLIER_2, tx.getEuroPrice());
+			h1 = mix(h1, MULTIPLIER_1, tx.getEuroTotalPrice());
+			h2 = mix(h2, MULTIPLIER_2, tx.getEuroTotalPrice());
+			// Order id shows up in the reports.
+			h1 = mix(h1, MULTIPLIER_1, tx.getOrderId());
+			h2 = mix(h2, MULTIPLIER_2, tx.getOrderId());
+		}
+		return new Key(first.getIsin(), isinTxs.size(), h1, h2);
+	}
+
+	private static long mix(long hash, long multiplier, long value) {
+		return Long.rotateLeft((hash ^ value) * multiplier, 29);
+	}
+
+	private static long mix(long hash, long multiplier, String value) {
+		if (value == null) {
+			return mix(hash, multiplier, -1L);
+		}
+		hash = mix(hash, multiplier, value.length());
+		for (int i = 0; i < value.length(); i++) {
+			hash = mix(hash, multiplier, value.charAt(i));
+		}
+		return hash;
+	}
+
+	/**
+	 * @param isinTxs transactions the key was made of.
+	 * @return reports on isinTxs, in the order matchIsin would give them, or null
+	 *         if the key is not cached.
+	 */
+	List<SellReport> get(Key key, List<Transaction> isinTxs) {
+		Entry entry;
+		synchronized (this) {
+			entry = this.entries.get(key);
+			if (entry == null) {
+				this.misses++;
+				return null;
+			}
+			this.hits++;
+		}
+		var stock = isinTxs.get(0).getStock();
+		List<SellReport> sales = new ArrayList<>(entry.sells.length);
+		for (int i = 0; i < entry.sells.length; i++) {
+			var sellReport = new SellReport(stock, isinTxs.get(entry.sells[i]));
+			sellReport.setMatch(isinTxs.get(entry.buys[i]), entry.buyCosts[i], entry.quantities[i]);
+			byte flags = entry.flags[i];
+			sellReport.fourWeekRuleApplied = (flags & FOUR_WEEK_RULE_APPLIED) != 0;
+			sellReport.buyWithinFourWeeksAfterSell = (flags & BUY_WITHIN_FOUR_WEEKS_AFTER_SELL) != 0;
+			sellReport.sellWithinFourWeeksAfterBuy = (flags & SELL_WITHIN_FOUR_WEEKS_AFTER_BUY) != 0;
+			sales.add(sellReport);
+		}
+		return sales;
+	}
+
+	/**
+	 * Keep the reports of an ISIN, and evict the least recently used ones if
+	 * there are too many matches now. Reports with more matches than the cache
+	 * holds are not kept.
+	 *
+	 * @param isinTxs transactions the key was made of.
+	 * @param sales   reports of matchIsin on isinTxs.
+	 */
+	void put(Key key, List<Transaction> isinTxs, List<SellReport> sales) {
+		if (sales.size() > this.maxMatches) {
+			return;
+		}
+		Map<Transaction, Integer> positions = new IdentityHashMap<>();
+		for (int i = 0; i < isinTxs.size(); i++) {
+			positions.put(isinTxs.get(i), i);
+		}
+		var entry = new Entry(sales.size());
+		for (int i = 0; i < sales.size(); i++) {
+			var sellReport = sales.get(i);
+			entry.sells[i] = positions.get(sellReport.originalSellTransaction);
+			entry.buys[i] = positions.get(sellReport.getBuySource());
+			entry.quantities[i] = sellReport.getQuantity();
+			// Net gains are quantity times the difference of the prices, see setMatch.
+			entry.buyCosts[i] = sellReport.originalSellTransaction.getEuroTotalPrice()
+					- sellReport.getNetGains() / sellReport.getQuantity();
+			entry.flags[i] = (byte) ((sellReport.fourWeekRuleApplied ? FOUR_WEEK_RULE_APPLIED : 0)
+					| (sellReport.buyWithinFourWeeksAfterSell ? BUY_WITHIN_FOUR_WEEKS_AFTER_SELL : 0)
+					| (sellReport.sellWithinFourWeeksAfterBuy ? SELL_WITHIN_FOUR_WEEKS_AFTER_BUY : 0));
+		}
+
+		synchronized (this) {
+			var previous = this.entries.put(key, entry);
+			if (previous != null) {
+				this.matches -= previous.sells.length;
+			}
+			this.matches += entry.sells.length;
+			var eldest = this.entries.values().iterator();
+			while (this.matches > this.maxMatches) {
+				var evicted = eldest.next();
+				this.matches -= evicted.sells.length;
+				eldest.remove();
+			}
+		}
+	}
+
+	synchronized int size() {
+		return this.entries.size();
+	}
+
+	synchronized long getMatches() {
+		return this.matches;
+	}
+
+	synchronized long getHits() {
+		return this.hits;
+	}
+
+	synchronized long getMisses() {
+		return this.misses;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("MatchCache [entries=%d, matches=%d, hits=%d, misses=%d]", this.entries.size(),
+				this.matches, this.hits, this.misses);
+	}
+}
@@ -0,0 +1,82 @@
+package com.github.yungene.taxcalc;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * StockState of a single ISIN, for engines that get transactions in
+ * chronological order and don't know the whole history up front.
+ *
+ * A sell can only be matched for good once we know all the buys in the 4 weeks
+ * after it. So buys are added to the future buys of the state as they come,
+ * and sells wait as pending until their window is closed. Buys don't need to
+ * be processed on their own, the next sell moves them into the right window.
+ */
+class PendingStockState {
+	// State after all the committed sells. Future buys include all the buys
+	// added so far.
+	final StockState state;
+	// Sells that were not committed yet, in chronological order.
+	final Deque<Transaction> pendingSells;
+
+	PendingStockState(String isin) {
+		this.state = new StockState(isin);
+		this.pendingSells = new ArrayDeque<>();
+	}
+
+	void add(Transaction tx) {
+		if (tx.isBuy()) {
+			this.state.futureBuys.addLast(tx);
+		} else {
+			this.pendingSells.addLast(tx);
+		}
+	}
+
+	boolean hasPendingSells() {
+		return !this.pendingSells.isEmpty();
+	}
+
+	/**
+	 * Match the first pending sell for good.
+	 */
+	void commitFirst(List<SellReport> sales) {
+		var tx = this.pendingSells.removeFirst();
+		this.state.syncQueues(tx);
+		TaxEngine.matchSell(this.state, tx, sales);
+	}
+
+	/**
+	 * Match for good all the pending sells whose window is closed, given that we
+	 * know all the transactions before horizonDay, and some on horizonDay itself.
+	 * Days are in epoch days, see {@link Transaction#getEpochDay()}.
+	 */
+	void commitClosed(long horizonDay, List<SellReport> sales) {
+		while (!this.pendingSells.isEmpty() && isWindowClosed(this.pendingSells.getFirst(), horizonDay)) {
+			this.commitFirst(sales);
+		}
+	}
+
+	/**
+	 * Match the pending sells on a copy of the state, with the buys we know about
+	 * so far. The state itself is not changed.
+	 */
+	void matchPending(List<SellReport> sales) {
+		if (this.pendingSells.isEmpty()) {
+			return;
+		}
+		var copy = this.state.copy();
+		for (var tx : this.pendingSells) {
+			copy.syncQueues(tx);
+			TaxEngine.matchSell(copy, tx, sales);
+		}
+	}
+
+	/**
+	 * Window of a sell is closed when we know everything up to the end of the
+	 * 28th day after it, i.e. we have seen a transaction on a later day.
+	 */
+	static boolean isWindowClosed(Transaction sellTx, long horizonDay) {
+		return horizonDay > sellTx.getEpochDay() + TaxEngine.FOUR_WEEK_RULE_DAYS;
+	}
+}
@@ -0,0 +1,375 @@
+package com.github.yungene.taxcalc;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.time.LocalDateTime;
+
+/**
+ * Writes tax reports to a Writer, one sale at a time, so a report is never
+ * built in memory as a whole. Numbers and dates are formatted into a buffer
+ * of our own, without allocating per field.
+ *
+ * TEXT is the human-readable form of {@link TaxReport#prettyPrint()}. CSV has
+ * a row per sale, JSON an object per year with its sales. Money is written
+ * with all 4 decimals in CSV and JSON.
+ *
+ * A {@link TaxLedger} is written in the same formats, a line, row or object
+ * per year, instead of the reports.
+ */
+class ReportWriter {
+	enum Format {
+		TEXT, CSV, JSON
+	}
+
+	static final String CSV_HEADER = "year,sellDate,buyDate,isin,product,quantity,sellPrice,buyPrice,netGains,"
+			+ "taxableNetGains,fourWeekRuleApplied,sellOrderId,buyOrderId";
+	static final String LEDGER_CSV_HEADER = "year,netGains,lossesBroughtForward,lossesUsed,exemptionUsed,"
+			+ "chargeableGains,taxDue,lossesCarriedForward";
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Writer out;
+	private final Format format;
+	private final char[] buf = new char[BUFFER_SIZE];
+	private int pos = 0;
+	private int reports = 0;
+
+	ReportWriter(Writer out, Format format) {
+		this.out = out;
+		this.format = format;
+	}
+
+	/**
+	 * @return the file extension of reports in the format, e.g. "txt".
+	 */
+	static String extension(Format format) {
+		switch (format) {
+		case CSV:
+			return "csv";
+		case JSON:
+			return "json";
+		default:
+			return "txt";
+		}
+	}
+
+	static String prettyPrint(TaxReport report) {
+		var sw = new StringWriter();
+		var writer = new ReportWriter(sw, Format.TEXT);
+		writer.writeText(report);
+		writer.flush();
+		return sw.toString();
+	}
+
+	/**
+	 * Write the report and all its sales. Reports should come in the order they
+	 * are to be listed.
+	 */
+	void writeReport(TaxReport report) {
+		switch (this.format) {
+		case CSV:
+			if (this.reports == 0) {
+				this.append(CSV_HEADER).append('\n');
+			}
+			for (var sale : report.sales) {
+				this.writeCsv(report.year, sale);
+			}
+			break;
+		case JSON:
+			this.append(this.reports == 0 ? "[\n" : ",\n");
+			this.writeJson(report);
+			break;
+		default:
+			this.writeText(report);
+			this.append(System.lineSeparator());
+		}
+		this.reports++;
+	}
+
+	/**
+	 * Write the whole ledger and flush. Not to be mixed with reports, finish()
+	 * is not needed after it.
+	 */
+	void writeLedger(TaxLedger ledger) {
+		if (this.format == Format.CSV) {
+			this.append(LEDGER_CSV_HEADER).append('\n');
+		} else if (this.format == Format.JSON) {
+			this.append('[');
+		}
+		boolean first = true;
+		for (var year : ledger.years()) {
+			switch (this.format) {
+			case CSV:
+				this.append(year.year).append(',').appendMil(year.getNetGains(), 4).append(',')
+						.appendMil(year.getLossesBroughtForward(), 4).append(',').appendMil(year.getLossesUsed(), 4)
+						.append(',').appendMil(year.getExemptionUsed(), 4).append(',')
+						.appendMil(year.getChargeableGains(), 4).append(',').appendMil(year.getTaxDue(), 4)
+						.append(',').appendMil(year.getLossesCarriedForward(), 4).append('\n');
+				break;
+			case JSON:
+				this.append(first ? "\n" : ",\n").append("{\"year\":").append(year.year).append(",\"netGains\":")
+						.appendMil(year.getNetGains(), 4).append(",\"lossesBroughtForward\":")
+						.appendMil(year.getLossesBroughtForward(), 4).append(",\"lossesUsed\":")
+						.appendMil(year.getLossesUsed(), 4).append(",\"exemptionUsed\":")
+						.appendMil(year.getExemptionUsed(), 4).append(",\"chargeableGains\":")
+						.appendMil(year.getChargeableGains(), 4).append(",\"taxDue\":")
+						.appendMil(year.getTaxDue(), 4).append(",\"lossesCarriedForward\":")
+						.appendMil(year.getLossesCarriedForward(), 4).append('}');
+				break;
+			default:
+				this.append("Tax for year ").append(year.year).append(". Net gains: ").appendMil(year.getNetGains(), 2)
+						.append(". Losses brought forward: ").appendMil(year.getLossesBroughtForward(), 2)
+						.append(", used: ").appendMil(year.getLossesUsed(), 2).append(". Exemption used: ")
+						.appendMil(year.getExemptionUsed(), 2).append(". Chargeable gains: ")
+						.appendMil(year.getChargeableGains(), 2).append(". Tax due: ").appendMil(year.getTaxDue(), 2)
+						.append(". Losses carried forward: ").appendMil(year.getLossesCarriedForward(), 2)
+						.append(".\n");
+			}
+			first = false;
+		}
+		if (this.format == Format.JSON) {
+			this.append(first ? "]\n" : "\n]\n");
+		}
+		this.flush();
+	}
+
+	/**
+	 * Write what is still missing to make the output complete, e.g. the end of
+	 * the JSON array, and flush. The underlying Writer is not closed.
+	 */
+	void finish() {
+		if (this.format == Format.JSON) {
+			this.append(this.reports == 0 ? "[]\n" : "\n]\n");
+		} else if (this.format == Format.CSV && this.reports == 0) {
+			this.append(CSV_HEADER).append('\n');
+		}
+		this.flush();
+	}
+
+	void flush() {
+		try {
+			this.out.write(this.buf, 0, this.pos);
+			this.pos = 0;
+			this.out.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writeText(TaxReport report) {
+		this.append("TaxReport for year ").append(report.year).append(". Total sales: ")
+				.appendMil(report.getTotalSales(), 2).append(". Total taxable gains are ")
+				.appendMil(report.getTaxableNetGains(), 2).append(". Sales for the year were:\n");
+		for (var sale : report.sales) {
+			// Same as SellReport.toString(), without creating the matched slices.
+			this.append("\tSellReport [stock=").appendStock(sale.stock).append(", netTaxableGains=")
+					.append(sale.getTaxableNetGains()).append(", netGains=").append(sale.getNetGains())
+					.append(", sellTrasaction=")
+					.appendTransaction(sale.getBuySource() == null ? null : sale.originalSellTransaction,
+							sale.getQuantity())
+					.append(", buyTransaction=").appendTransaction(sale.getBuySource(), sale.getQuantity())
+					.append(", originalSellTransaction=")
+					.appendTransaction(sale.originalSellTransaction, sale.originalSellTransaction.getQuantity())
+					.append(", fourWeekRuleApplied=").append(sale.fourWeekRuleApplied)
+					.append(", buyWithinFourWeeksAfterSell=").append(sale.buyWithinFourWeeksAfterSell)
+					.append(", sellWithinFourWeeksAfterBuy=").append(sale.sellWithinFourWeeksAfterBuy).append("]\n");
+		}
+	}
+
+	private void writeCsv(int year, SellReport sale) {
+		var sell = sale.originalSellTransaction;
+		var buy = sale.getBuySource();
+		this.append(year).append(',').appendDateTime(sell.getDatetime()).append(',');
+		if (buy != null) {
+			this.appendDateTime(buy.getDatetime());
+		}
+		this.append(',').appendCsv(sale.stock.getIsin()).append(',').appendCsv(sale.stock.getName()).append(',')
+				.append(sale.getQuantity()).append(',').appendMil(sell.getEuroTotalPrice(), 4).append(',');
+		if (buy != null) {
+			this.appendMil(buy.getEuroTotalPrice(), 4);
+		}
+		this.append(',').appendMil(sale.getNetGains(), 4).append(',').appendMil(sale.getTaxableNetGains(), 4)
+				.append(',').append(sale.fourWeekRuleApplied).append(',').appendCsv(sell.getOrderId()).append(',');
+		if (buy != null) {
+			this.appendCsv(buy.getOrderId());
+		}
+		this.append('\n');
+	}
+
+	private void writeJson(TaxReport report) {
+		this.append("{\"year\":").append(report.year).append(",\"totalSales\":").appendMil(report.getTotalSales(), 4)
+				.append(",\"taxableNetGains\":").appendMil(report.getTaxableNetGains(), 4).append(",\"sales\":[");
+		boolean first = true;
+		for (var sale : report.sales) {
+			var sell = sale.originalSellTransaction;
+			var buy = sale.getBuySource();
+			this.append(first ? "\n" : ",\n").append("{\"sellDate\":\"").appendDateTime(sell.getDatetime())
+					.append("\",\"buyDate\":");
+			if (buy == null) {
+				this.append("null");
+			} else {
+				this.append('"').appendDateTime(buy.getDatetime()).append('"');
+			}
+			this.append(",\"isin\":").appendJson(sale.stock.getIsin()).append(",\"product\":")
+					.appendJson(sale.stock.getName()).append(",\"quantity\":").append(sale.getQuantity())
+					.append(",\"sellPrice\":").appendMil(sell.getEuroTotalPrice(), 4).append(",\"buyPrice\":");
+			if (buy == null) {
+				this.append("null");
+			} else {
+				this.appendMil(buy.getEuroTotalPrice(), 4);
+			}
+			this.append(",\"netGains\":").appendMil(sale.getNetGains(), 4).append(",\"taxableNetGains\":")
+					.appendMil(sale.getTaxableNetGains(), 4).append(",\"fourWeekRuleApplied\":")
+					.append(sale.fourWeekRuleApplied).append(",\"sellOrderId\":").appendJson(sell.getOrderId())
+					.append(",\"buyOrderId\":");
+			if (buy == null) {
+				this.append("null");
+			} else {
+				this.appendJson(buy.getOrderId());
+			}
+			this.append('}');
+			first = false;
+		}
+		this.append(first ? "]}" : "\n]}");
+	}
+
+	private ReportWriter appendTransaction(Transaction tx, int quantity) {
+		if (tx == null) {
+			return this.append("null");
+		}
+		return this.append("Transaction [isBuy=").append(tx.isBuy()).append(", datetime=")
+				.appendDateTime(tx.getDatetime()).append(", stock=").appendStock(tx.getStock())
+				.append(", quantity=").append(quantity).append(", euroPrice=").append(tx.getEuroPrice())
+				.append(", euroTotalPrice=").append(tx.getEuroTotalPrice()).append(", orderId=")
+				.append(tx.getOrderId()).append(", seqNum=").append(tx.getSeqNum()).append("]");
+	}
+
+	private ReportWriter appendStock(Stock stock) {
+		if (stock == null) {
+			return this.append("null");
+		}
+		return this.append("Stock [name=").append(stock.getName()).append(", isin=").append(stock.getIsin())
+				.append("]");
+	}
+
+	/**
+	 * Same as LocalDateTime.toString().
+	 */
+	private ReportWriter appendDateTime(LocalDateTime datetime) {
+		if (datetime.getSecond() != 0 || datetime.getNano() != 0 || datetime.getYear() < 0
+				|| datetime.getYear() > 9999) {
+			return this.append(datetime.toString());
+		}
+		this.ensure(16);
+		this.pos = pad(datetime.getYear(), 4, this.buf, this.pos);
+		this.buf[this.pos++] = '-';
+		this.pos = pad(datetime.getMonthValue(), 2, this.buf, this.pos);
+		this.buf[this.pos++] = '-';
+		this.pos = pad(datetime.getDayOfMonth(), 2, this.buf, this.pos);
+		this.buf[this.pos++] = 'T';
+		this.pos = pad(datetime.getHour(), 2, this.buf, this.pos);
+		this.buf[this.pos++] = ':';
+		this.pos = pad(datetime.getMinute(), 2, this.buf, this.pos);
+		return this;
+	}
+
+	private static int pad(int value, int width, char[] buf, int pos) {
+		for (int i = pos + width - 1; i >= pos; i--) {
+			buf[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		return pos + width;
+	}
+
+	private ReportWriter appendCsv(String value) {
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!quote) {
+			return this.append(value);
+		}
+		this.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"') {
+				this.append('"');
+			}
+			this.append(c);
+		}
+		return this.append('"');
+	}
+
+	private ReportWriter appendJson(String value) {
+		this.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				this.append('\\').append(c);
+			} else if (c < 0x20) {
+				this.ensure(6);
+				this.buf[this.pos++] = '\\';
+				this.buf[this.pos++] = 'u';
+				this.pos = pad(0, 2, this.buf, this.pos);
+				this.buf[this.pos++] = Character.forDigit(c >> 4, 16);
+				this.buf[this.pos++] = Character.forDigit(c & 0xf, 16);
+			} else {
+				this.append(c);
+			}
+		}
+		return this.append('"');
+	}
+
+	private ReportWriter appendMil(long mil, int decimals) {
+		this.ensure(Transaction.MAX_FIXED_LENGTH);
+		this.pos = Transaction.formatMil(mil, decimals, this.buf, this.pos);
+		return this;
+	}
+
+	private ReportWriter append(long value) {
+		this.ensure(Transaction.MAX_FIXED_LENGTH);
+		this.pos = Transaction.formatFixed(value, 0, this.buf, this.pos);
+		return this;
+	}
+
+	private ReportWriter append(boolean value) {
+		return this.append(value ? "true" : "false");
+	}
+
+	private ReportWriter append(char c) {
+		this.ensure(1);
+		this.buf[this.pos++] = c;
+		return this;
+	}
+
+	private ReportWriter append(String value) {
+		if (value == null) {
+			return this.append("null");
+		}
+		int start = 0;
+		while (start < value.length()) {
+			this.ensure(1);
+			int end = Math.min(value.length(), start + this.buf.length - this.pos);
+			value.getChars(start, end, this.buf, this.pos);
+			this.pos += end - start;
+			start = end;
+		}
+		return this;
+	}
+
+	/**
+	 * Make room for length chars in the buffer, writing it out if needed.
+	 */
+	private void ensure(int length) {
+		if (this.buf.length - this.pos < length) {
+			try {
+				this.out.write(this.buf, 0, this.pos);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			this.pos = 0;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.github.yungene.taxcalc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads lines of a file from the last one to the first one, holding only one
+ * chunk of the file in memory at a time. Newline at the very end of the file
+ * does not produce an empty line.
+ */
+class ReverseLineReader implements Closeable {
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final RandomAccessFile file;
+	private final byte[] chunk;
+	// Bytes chunk[0, chunkLength) are not consumed yet.
+	private int chunkLength;
+	// File offset of chunk[0].
+	private long chunkStart;
+	// Bytes of the current line, in reverse order.
+	private byte[] line;
+	private boolean atEndOfFile;
+	private boolean done;
+
+	ReverseLineReader(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		this.chunk = new byte[CHUNK_SIZE];
+		this.chunkLength = 0;
+		this.chunkStart = this.file.length();
+		this.line = new byte[256];
+		this.atEndOfFile = true;
+		this.done = false;
+	}
+
+	/**
+	 * @return the previous line without the line terminator, or null if the start
+	 *         of the file was reached.
+	 */
+	String readLine() throws IOException {
+		if (this.done) {
+			return null;
+		}
+		int length = 0;
+		while (true) {
+			int b = this.previousByte();
+			if (b == -1) {
+				this.done = true;
+				if (length == 0) {
+					return null;
+				}
+				break;
+			}
+			if (b == '\n') {
+				if (this.atEndOfFile && length == 0) {
+					this.atEndOfFile = false;
+					continue;
+				}
+				break;
+			}
+			this.atEndOfFile = false;
+			if (length == this.line.length) {
+				byte[] newLine = new byte[length * 2];
+				System.arraycopy(this.line, 0, newLine, 0, length);
+				this.line = newLine;
+			}
+			this.line[length++] = (byte) b;
+		}
+		for (int i = 0, j = length - 1; i < j; i++, j--) {
+			byte tmp = this.line[i];
+			this.line[i] = this.line[j];
+			this.line[j] = tmp;
+		}
+		if (length > 0 && this.line[length - 1] == '\r') {
+			length--;
+		}
+		return new String(this.line, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private int previousByte() throws IOException {
+		if (this.chunkLength == 0) {
+			if (this.chunkStart == 0) {
+				return -1;
+			}
+			int n = (int) Math.min(this.chunk.length, this.chunkStart);
+			this.chunkStart -= n;
+			this.file.seek(this.chunkStart);
+			this.file.readFully(this.chunk, 0, n);
+			this.chunkLength = n;
+		}
+		return this.chunk[--this.chunkLength] & 0xff;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.file.close();
+	}
+}
@@ -6,38 +6,38 @@ public class SellReport {
 	// Report is associated with a single sell transaction
 	Transaction originalSellTransaction;
 	// In case of 4 week rule, we can split sell transaction into two, if we sell more than we bought in past 4 weeks.
-	Transaction sellTrasaction;
+	// This is only created when needed, see getSellTransaction().
+	private Transaction sellTrasaction;
 
 	// Whether we applied four week rule here.
 	boolean fourWeekRuleApplied = false;
 	boolean buyWithinFourWeeksAfterSell = false;
 	boolean sellWithinFourWeeksAfterBuy = false;
-	
+
 	// Each share sold has a corresponding buy transaction. This lists all the buy transactions.
 	// Note that transactions here can be "partial" when we sell less than what was originally bought in the buy transaction.
 	// This means that quantity of buy is adjusted to match the sell.
 	// Sum of all quantities bought should be the same as what was sold.
+	// This is only created when needed, see getBuyTransaction().
 	private Transaction buyTransaction;
+	// Buy transaction the matched shares come from, and the number of shares matched.
+	private Transaction buySource;
+	private int quantity;
 	private long netGains = 0;
-	
+
 	public SellReport(Stock stock, Transaction originalSellTransaction) {
 		this.stock = stock;
 		this.originalSellTransaction = originalSellTransaction;
 	}
-	
-	
+
+
 	public SellReport(Stock stock, Transaction originalSellTransaction, Transaction sellTrasaction,
 			Transaction buyTransaction) {
 		super();
 		this.stock = stock;
 		this.originalSellTransaction = originalSellTransaction;
 		this.sellTrasaction = sellTrasaction;
-		this.buyTransaction = buyTransaction;
-	}
-
-	private long calculateNetGains() {
-		this.netGains = this.buyTransaction.getQuantity() * (this.originalSellTransaction.getEuroTotalPrice() - this.buyTransaction.getEuroTotalPrice());;
-		return this.netGains;
+		this.setBuyTransaction(buyTransaction);
 	}
 
 	public long getNetGains() {
@@ -51,18 +51,64 @@ public class SellReport {
 		return this.netGains;
 	}
 
+	/**
+	 * @return number of shares sold in this report.
+	 */
+	public int getQuantity() {
+		return this.quantity;
+	}
+
 	public void setBuyTransaction(Transaction buyTx) {
 		this.buyTransaction = buyTx;
-		this.calculateNetGains();
+		this.setMatch(buyTx, buyTx.getEuroTotalPrice(), buyTx.getQuantity());
+	}
+
+	/**
+	 * Record that quantity shares of buySource were sold here. The matched slices
+	 * of the buy and sell transactions are not created until someone asks for
+	 * them.
+	 */
+	void setMatch(Transaction buySource, long buyEuroTotalPrice, int quantity) {
+		this.buySource = buySource;
+		this.quantity = quantity;
+		this.netGains = quantity * (this.originalSellTransaction.getEuroTotalPrice() - buyEuroTotalPrice);
+	}
+
+	/**
+	 * @return buy transaction the matched shares come from, as a whole.
+	 */
+	Transaction getBuySource() {
+		return this.buySource;
+	}
+
+	public Transaction getSellTransaction() {
+		if (this.sellTrasaction == null && this.buySource != null) {
+			this.sellTrasaction = slice(this.originalSellTransaction, this.quantity);
+		}
+		return this.sellTrasaction;
+	}
+
+	public Transaction getBuyTransaction() {
+		if (this.buyTransaction == null && this.buySource != null) {
+			this.buyTransaction = slice(this.buySource, this.quantity);
+		}
+		return this.buyTransaction;
+	}
+
+	private static Transaction slice(Transaction tx, int quantity) {
+		if (tx.getQuantity() == quantity) {
+			return tx;
+		}
+		return tx.copyWithNewQuantity(quantity);
 	}
 
 	@Override
 	public String toString() {
-		return "SellReport [stock=" + stock + ", netTaxableGains=" + this.getTaxableNetGains()  + ", netGains=" + netGains + ", sellTrasaction=" + sellTrasaction + ", buyTransaction=" + buyTransaction
+		return "SellReport [stock=" + stock + ", netTaxableGains=" + this.getTaxableNetGains()  + ", netGains=" + netGains + ", sellTrasaction=" + this.getSellTransaction() + ", buyTransaction=" + this.getBuyTransaction()
 				+ ", originalSellTransaction=" + originalSellTransaction
 				+ ", fourWeekRuleApplied=" + fourWeekRuleApplied + ", buyWithinFourWeeksAfterSell="
 				+ buyWithinFourWeeksAfterSell + ", sellWithinFourWeeksAfterBuy=" + sellWithinFourWeeksAfterBuy + "]";
 	}
-	
-	
+
+
 }
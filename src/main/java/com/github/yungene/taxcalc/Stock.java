@@ -3,13 +3,23 @@ package com.github.yungene.taxcalc;
 import java.util.Objects;
 
 class Stock {
+	// Id of stocks that were not created by an IsinTable.
+	static final int NO_ID = -1;
+
 	private final String name;
 	private final String isin;
+	// Dense id from the IsinTable that created this stock, or NO_ID.
+	private final int id;
 	
 	public Stock(String name, String isin) {
+		this(name, isin, NO_ID);
+	}
+
+	Stock(String name, String isin, int id) {
 		super();
 		this.name = name;
 		this.isin = isin;
+		this.id = id;
 	}
 
 	@Override
@@ -37,6 +47,10 @@ class Stock {
 		return isin;
 	}
 
+	int getId() {
+		return id;
+	}
+
 	@Override
 	public String toString() {
 		return "Stock [name=" + name + ", isin=" + isin + "]";
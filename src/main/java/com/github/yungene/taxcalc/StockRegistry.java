@@ -0,0 +1,62 @@
+package com.github.yungene.taxcalc;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Per-ISIN values of an engine, e.g. the StockState of every ISIN.
+ *
+ * Stocks interned by an {@link IsinTable} are looked up in an array by their
+ * id, without hashing the ISIN. Other stocks, or stocks whose id is taken by
+ * a stock of another table, fall back to a map by ISIN. The map always has all
+ * the values, so every ISIN gets exactly one value either way.
+ */
+class StockRegistry<T> {
+	private final Function<String, T> factory;
+	private final Map<String, T> byIsin;
+	// Cache of byIsin. Slot id is only valid for the exact Stock in stocks[id].
+	private Stock[] stocks;
+	private Object[] values;
+
+	StockRegistry(Function<String, T> factory) {
+		this.factory = factory;
+		this.byIsin = new LinkedHashMap<>();
+		this.stocks = new Stock[16];
+		this.values = new Object[16];
+	}
+
+	/**
+	 * @return value of the stock's ISIN, created by the factory on first use.
+	 */
+	@SuppressWarnings("unchecked")
+	T get(Stock stock) {
+		int id = stock.getId();
+		if (id >= 0 && id < this.stocks.length && this.stocks[id] == stock) {
+			return (T) this.values[id];
+		}
+		T value = this.byIsin.computeIfAbsent(stock.getIsin(), this.factory);
+		if (id >= 0) {
+			if (id >= this.stocks.length) {
+				int capacity = Math.max(id + 1, this.stocks.length * 2);
+				var newStocks = new Stock[capacity];
+				var newValues = new Object[capacity];
+				System.arraycopy(this.stocks, 0, newStocks, 0, this.stocks.length);
+				System.arraycopy(this.values, 0, newValues, 0, this.values.length);
+				this.stocks = newStocks;
+				this.values = newValues;
+			}
+			this.stocks[id] = stock;
+			this.values[id] = value;
+		}
+		return value;
+	}
+
+	/**
+	 * @return values in order of first appearance of the ISIN.
+	 */
+	Collection<T> values() {
+		return this.byIsin.values();
+	}
+}
@@ -1,51 +1,491 @@
 package com.github.yungene.taxcalc;
 
-import java.time.temporal.ChronoUnit;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.util.List;
 
 public class StockState {
 	String isin;
 	
 	// oldBuys <-- fourWeeksBuys <-- NOW <-- futureBuysFourWeeksRule <-- futureBuys
-	Deque<Transaction> futureBuys;
-	Deque<Transaction> futureBuysFourWeeksRule;
-	Deque<Transaction> fourWeeksBuys;
-	Deque<Transaction> oldBuys;
+	LotQueue futureBuys;
+	LotQueue futureBuysFourWeeksRule;
+	LotQueue fourWeeksBuys;
+	LotQueue oldBuys;
+
+	// Corporate actions of the holding in chronological order. With ISIN
+	// changes, the lots of a holding can be of several ISINs, and an action
+	// only applies to the lots of its ISIN.
+	private List<CorporateAction> actions = List.of();
+	// Whether the actions have ISIN changes. Lots are then adjusted all at
+	// once, see adjustAll, otherwise when they get to the head, see adjustFirst.
+	private boolean isinChanges;
+	// Shares after every action for every den shares before it, in lowest terms.
+	private long[] nums = {};
+	private long[] dens = {};
+	// When every action was applied: positions of the first shares of oldBuys
+	// and fourWeeksBuys, and the shares in oldBuys. Lots held through it are
+	// adjusted with these when they get to the head, see adjusted.
+	private long[] oldHeads = {};
+	private long[] fourWeeksHeads = {};
+	private long[] oldHeld = {};
+	// Number of actions before the last transaction synced, the shares of the
+	// sells are in.
+	int actionsApplied;
+
+	// Counters for EngineStats, kept up by syncQueues and TaxEngine.matchSell.
+	int transactions;
+	int sells;
+	int matches;
+	int lotSplits;
+	int buyWithinFourWeeksAfterSell;
+	int sellWithinFourWeeksAfterBuy;
+	int fourWeekMatches;
+	// Open lots before every transaction, summed, and the most of them.
+	long queueDepthSum;
+	int maxQueueDepth;
+	long matchNanos;
 
 	StockState(String isin) {
 		this.isin = isin;
-		this.futureBuys = new LinkedList<>();
-		this.futureBuysFourWeeksRule = new LinkedList<>();
-		this.fourWeeksBuys = new LinkedList<>();
-		this.oldBuys = new LinkedList<>();
+		this.futureBuys = new LotQueue();
+		this.futureBuysFourWeeksRule = new LotQueue();
+		this.fourWeeksBuys = new LotQueue();
+		this.oldBuys = new LotQueue();
 	}
-	
+
+	/**
+	 * @return a copy of this state that can be matched against independently.
+	 */
+	StockState copy() {
+		var copy = new StockState(this.isin);
+		copy.futureBuys = this.futureBuys.copy();
+		copy.futureBuysFourWeeksRule = this.futureBuysFourWeeksRule.copy();
+		copy.fourWeeksBuys = this.fourWeeksBuys.copy();
+		copy.oldBuys = this.oldBuys.copy();
+		copy.copyActions(this);
+		return copy;
+	}
+
+	/**
+	 * Same as {@link #copy()}, but the queues are copied on write, see
+	 * {@link LotQueue#snapshot()}.
+	 */
+	StockState snapshot() {
+		var snapshot = new StockState(this.isin);
+		snapshot.futureBuys = this.futureBuys.snapshot();
+		snapshot.futureBuysFourWeeksRule = this.futureBuysFourWeeksRule.snapshot();
+		snapshot.fourWeeksBuys = this.fourWeeksBuys.snapshot();
+		snapshot.oldBuys = this.oldBuys.snapshot();
+		snapshot.copyActions(this);
+		return snapshot;
+	}
+
+	private void copyActions(StockState state) {
+		this.actions = state.actions;
+		this.isinChanges = state.isinChanges;
+		this.nums = state.nums;
+		this.dens = state.dens;
+		this.actionsApplied = state.actionsApplied;
+		// Both states may apply the actions left, each to its own queues.
+		boolean pending = this.actionsApplied < this.actions.size();
+		this.oldHeads = pending ? state.oldHeads.clone() : state.oldHeads;
+		this.fourWeeksHeads = pending ? state.fourWeeksHeads.clone() : state.fourWeeksHeads;
+		this.oldHeld = pending ? state.oldHeld.clone() : state.oldHeld;
+	}
+
+	/**
+	 * Set the corporate actions of the ISIN, before any transaction is synced.
+	 * Applying an action only records where the queues are, lots are adjusted
+	 * when they get to the head, see {@link #adjustFirst(LotQueue)}.
+	 *
+	 * @param actions in chronological order.
+	 */
+	void setActions(List<CorporateAction> actions) {
+		this.actions = actions;
+		this.isinChanges = false;
+		for (var action : actions) {
+			this.isinChanges |= action.isIsinChange();
+		}
+		int count = actions.size();
+		this.nums = new long[count];
+		this.dens = new long[count];
+		for (int i = 0; i < count; i++) {
+			var action = actions.get(i);
+			long gcd = gcd(action.getToQuantity(), action.getFromQuantity());
+			this.nums[i] = action.getToQuantity() / gcd;
+			this.dens[i] = action.getFromQuantity() / gcd;
+		}
+		this.oldHeads = new long[count];
+		this.fourWeeksHeads = new long[count];
+		this.oldHeld = new long[count];
+	}
+
+	private static long gcd(long a, long b) {
+		while (b != 0) {
+			long rest = a % b;
+			a = b;
+			b = rest;
+		}
+		return a;
+	}
+
+	boolean hasActions() {
+		return !this.actions.isEmpty();
+	}
+
+	/**
+	 * @return number of corporate actions before a transaction at the minute.
+	 *         Actions in the same minute are before it.
+	 */
+	int actionsAt(long epochMinute) {
+		int count = 0;
+		while (count < this.actions.size() && this.actions.get(count).getEpochMinute() <= epochMinute) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return ISIN the shares of a lot bought in source are after the first count
+	 *         corporate actions.
+	 */
+	private String isinAfter(Transaction source, int count) {
+		String isin = source.getStock().getIsin();
+		for (int i = this.actionsAt(source.getEpochMinute()); i < count; i++) {
+			var action = this.actions.get(i);
+			if (action.getFrom().getIsin().equals(isin)) {
+				isin = action.getTo().getIsin();
+			}
+		}
+		return isin;
+	}
+
+	/**
+	 * Apply the corporate actions up to the minute that are not applied yet.
+	 */
+	void applyActions(long epochMinute) {
+		while (this.actionsApplied < this.actions.size()
+				&& this.actions.get(this.actionsApplied).getEpochMinute() <= epochMinute) {
+			this.applyNextAction();
+		}
+	}
+
+	/**
+	 * Apply the next corporate action. The lots bought before it are synced, and
+	 * where the shares of oldBuys and fourWeeksBuys start is recorded, in
+	 * constant time however many lots are held. Both queues get positions in the
+	 * shares after the action.
+	 */
+	private void applyNextAction() {
+		int index = this.actionsApplied;
+		long actionTimestamp = this.actions.get(index).getEpochMinute();
+		while (!this.futureBuysFourWeeksRule.isEmpty()
+				&& this.futureBuysFourWeeksRule.firstTimestamp() < actionTimestamp) {
+			this.futureBuysFourWeeksRule.moveFirstTo(this.fourWeeksBuys);
+		}
+		while (!this.futureBuys.isEmpty() && this.futureBuys.firstTimestamp() < actionTimestamp) {
+			this.futureBuys.moveFirstTo(this.fourWeeksBuys);
+		}
+		if (this.isinChanges) {
+			this.actionsApplied++;
+			long held = this.adjustAll(this.oldBuys, index, 0);
+			this.adjustAll(this.fourWeeksBuys, index, held);
+			return;
+		}
+		// Positions of the first lots are only in the positions of the queue once
+		// they are adjusted.
+		this.adjustFirst(this.oldBuys);
+		this.adjustFirst(this.fourWeeksBuys);
+		this.oldHeads[index] = this.oldBuys.headPosition();
+		this.fourWeeksHeads[index] = this.fourWeeksBuys.headPosition();
+		long old = this.oldBuys.endPosition() - this.oldHeads[index];
+		long held = old + this.fourWeeksBuys.endPosition() - this.fourWeeksHeads[index];
+		this.oldHeld[index] = old;
+		this.actionsApplied++;
+		long oldAfter = scale(old, this.nums[index], this.dens[index]);
+		this.oldBuys.rebase(oldAfter);
+		this.fourWeeksBuys.rebase(scale(held, this.nums[index], this.dens[index]) - oldAfter);
+	}
+
+	private static long scale(long shares, long num, long den) {
+		return Math.multiplyExact(shares, num) / den;
+	}
+
+	/**
+	 * Bring the first lot of oldBuys or fourWeeksBuys to the shares of the last
+	 * transaction synced, if it was held through corporate actions it is not
+	 * adjusted for yet, see {@link #adjusted(LotQueue, int)}. This can drop lots
+	 * left without a share, so the first lot after this may be another one.
+	 */
+	void adjustFirst(LotQueue buys) {
+		while (!buys.isEmpty() && buys.firstActions() < this.actionsApplied) {
+			var lot = this.adjusted(buys, 0);
+			buys.adjustFirst(this.actionsApplied, Math.toIntExact(lot.quantity), lot.cost, lot.source(), lot.end);
+		}
+	}
+
+	/**
+	 * Adjust every lot of the queue for the action, for holdings with ISIN
+	 * changes. Their lots can be of several ISINs, and the fraction of the
+	 * shares of one ISIN can't be worked out from the positions of the lots, as
+	 * those of the others are in between. Every lot of the ISIN of the action
+	 * gets the whole shares the running total of that ISIN gains with it, and
+	 * the lots get positions from 0, in order.
+	 *
+	 * @param held shares of the ISIN of the action before this queue.
+	 * @return held with the shares of this queue added, before the action.
+	 */
+	private long adjustAll(LotQueue buys, int index, long held) {
+		var action = this.actions.get(index);
+		String isin = action.getFrom().getIsin();
+		int size = buys.size();
+		buys.rebase(0);
+		// Every lot is adjusted at the head and moved to the back, so that it is
+		// after the ones adjusted before it.
+		for (int i = 0; i < size; i++) {
+			var lot = new AdjustedLot(buys, 0);
+			if (this.isinAfter(lot.source, index).equals(isin)) {
+				long quantity = lot.quantity;
+				lot.split(held, this.nums[index], this.dens[index]);
+				held += quantity;
+			}
+			buys.adjustFirst(this.actionsApplied, Math.toIntExact(lot.quantity), lot.cost, lot.source(), 0);
+			if (lot.quantity > 0) {
+				buys.moveFirstTo(buys);
+			}
+		}
+		return held;
+	}
+
+	/**
+	 * A lot of a queue worked out in the shares after corporate actions, see
+	 * {@link StockState#adjusted(LotQueue, int)}.
+	 */
+	private static class AdjustedLot {
+		long quantity;
+		// Position after the last share of the lot.
+		long end;
+		long cost;
+		Transaction source;
+		// Source adjusted the same way, if any action was of the lot.
+		boolean scaled;
+		long sourceQuantity;
+		long euroPrice;
+		long euroTotalPrice;
+
+		/**
+		 * The i-th lot of buys, as it is stored.
+		 */
+		AdjustedLot(LotQueue buys, int i) {
+			this.quantity = buys.quantityOf(i);
+			this.end = buys.endOf(i);
+			this.cost = buys.costOf(i);
+			this.source = buys.sourceOf(i);
+			this.sourceQuantity = this.source.getQuantity();
+			this.euroPrice = this.source.getEuroPrice();
+			this.euroTotalPrice = this.source.getEuroTotalPrice();
+		}
+
+		/**
+		 * Adjust the lot for an action to num / den shares for every share, with
+		 * the cost of a share scaled the other way. It gets the whole shares the
+		 * running total of the holding gains with it, so the fraction is only
+		 * dropped once for the holding, like a broker pays it out.
+		 *
+		 * @param ahead shares of the holding before the lot.
+		 */
+		void split(long ahead, long num, long den) {
+			this.quantity = scale(ahead + this.quantity, num, den) - scale(ahead, num, den);
+			this.cost = scale(this.cost, den, num);
+			this.scaled = true;
+			// Rounded up, as a lot can get the share of the fractions of the lots
+			// before it.
+			this.sourceQuantity = (Math.multiplyExact(this.sourceQuantity, num) + den - 1) / den;
+			this.euroPrice = scale(this.euroPrice, den, num);
+			this.euroTotalPrice = scale(this.euroTotalPrice, den, num);
+		}
+
+		/**
+		 * @return adjusted copy of the source, so that reports show the shares that
+		 *         were matched.
+		 */
+		Transaction source() {
+			if (!this.scaled) {
+				return this.source;
+			}
+			return new Transaction(this.source.isBuy(), this.source.getDatetime(), this.source.getStock(),
+					Math.toIntExact(this.sourceQuantity), this.euroPrice, this.euroTotalPrice,
+					this.source.getOrderId(), this.source.getSeqNum());
+		}
+	}
+
+	/**
+	 * Work out the i-th lot of oldBuys or fourWeeksBuys in the shares of the last
+	 * transaction synced, without changing it. The holding of every action the
+	 * lot was held through is the shares of oldBuys and then of fourWeeksBuys
+	 * when it was applied, so the shares before the lot then are its position
+	 * less the recorded head of its queue, see
+	 * {@link AdjustedLot#split(long, long, long)}.
+	 */
+	private AdjustedLot adjusted(LotQueue buys, int i) {
+		boolean old = buys == this.oldBuys;
+		var lot = new AdjustedLot(buys, i);
+		long start = lot.end - lot.quantity;
+		for (int index = buys.actionsOf(i); index < this.actionsApplied && lot.quantity > 0; index++) {
+			long num = this.nums[index];
+			long den = this.dens[index];
+			long offset = old ? 0 : this.oldHeld[index];
+			long ahead = offset + start - (old ? this.oldHeads[index] : this.fourWeeksHeads[index]);
+			lot.split(ahead, num, den);
+			start = scale(ahead, num, den) - scale(offset, num, den);
+		}
+		lot.end = start + lot.quantity;
+		return lot;
+	}
+
+	/**
+	 * @return shares held in all the queues, in the shares of the last
+	 *         transaction synced. Lots not adjusted yet are worked out without
+	 *         adjusting them, so the queues are not copied.
+	 */
+	int held() {
+		long held = 0;
+		for (var buys : List.of(this.oldBuys, this.fourWeeksBuys)) {
+			for (int i = 0; i < buys.size(); i++) {
+				held += buys.actionsOf(i) < this.actionsApplied ? this.adjusted(buys, i).quantity : buys.quantityOf(i);
+			}
+		}
+		for (var buys : List.of(this.futureBuysFourWeeksRule, this.futureBuys)) {
+			held += buys.endPosition() - buys.headPosition();
+		}
+		return Math.toIntExact(held);
+	}
+
+	/**
+	 * Move the first future buy, or as much of it as covers remaining shares of
+	 * the sell being matched, to futureBuysFourWeeksRule. A buy after a
+	 * corporate action the sell is before is left in its own shares, only the
+	 * number of shares it covers is worked out in the shares of the sell.
+	 *
+	 * @return shares of the sell covered by the buy, 0 if it is less than one of
+	 *         them or the actions made it another ISIN.
+	 */
+	int moveReacquired(Transaction tx, int remaining) {
+		int quantity = this.futureBuys.firstQuantity();
+		int lotActions = this.futureBuys.firstActions();
+		if (lotActions == this.actionsApplied) {
+			if (quantity > remaining) {
+				this.lotSplits++;
+			}
+			return this.futureBuys.moveFirstTo(this.futureBuysFourWeeksRule, remaining);
+		}
+		// A share of the sell is num / den shares of the buy.
+		String isin = tx.getStock().getIsin();
+		long num = 1;
+		long den = 1;
+		for (int i = this.actionsApplied; i < lotActions; i++) {
+			var action = this.actions.get(i);
+			if (action.getFrom().getIsin().equals(isin)) {
+				isin = action.getTo().getIsin();
+				num = Math.multiplyExact(num, action.getToQuantity());
+				den = Math.multiplyExact(den, action.getFromQuantity());
+			}
+		}
+		long covered = 0;
+		if (isin.equals(this.futureBuys.firstSource().getStock().getIsin())) {
+			covered = Math.multiplyExact((long) quantity, den) / num;
+		}
+		if (covered <= remaining) {
+			this.futureBuys.moveFirstTo(this.futureBuysFourWeeksRule);
+			return (int) covered;
+		}
+		this.lotSplits++;
+		// Rounded up, so the shares moved cover all of remaining.
+		long moved = (Math.multiplyExact((long) remaining, num) + den - 1) / den;
+		this.futureBuys.moveFirstTo(this.futureBuysFourWeeksRule, Math.toIntExact(moved));
+		return remaining;
+	}
+
 	/**
 	 * Re-adjust the queues given the transaction tx. 
 	 * @param tx
 	 */
 	void syncQueues(Transaction tx) {
+		long txTimestamp = tx.getEpochMinute();
+		this.applyActions(txTimestamp);
 		while (!this.futureBuysFourWeeksRule.isEmpty()) {
-			var fState = this.futureBuysFourWeeksRule.getFirst();
-			if (fState.getSeqNum() == tx.getSeqNum() || fState.getDatetime().isBefore(tx.getDatetime())) {
-				this.fourWeeksBuys.addLast(this.futureBuysFourWeeksRule.removeFirst());
+			if (isNotAfter(this.futureBuysFourWeeksRule, tx, txTimestamp)) {
+				this.futureBuysFourWeeksRule.moveFirstTo(this.fourWeeksBuys);
 				continue;
 			}
 			break;
 		}
 		while (!this.futureBuys.isEmpty()) {
-			var fState = this.futureBuys.getFirst();
-			if (fState.getSeqNum() == tx.getSeqNum() || fState.getDatetime().isBefore(tx.getDatetime())) {
-				this.fourWeeksBuys.addLast(this.futureBuys.removeFirst());
+			if (isNotAfter(this.futureBuys, tx, txTimestamp)) {
+				this.futureBuys.moveFirstTo(this.fourWeeksBuys);
 				continue;
 			}
 			break;
 		}
-		var fwThreshold = tx.getDatetime().truncatedTo(ChronoUnit.DAYS).minusDays(28);
-		while (!this.fourWeeksBuys.isEmpty()
-				&& this.fourWeeksBuys.getFirst().getDatetime().isBefore(fwThreshold)) {
-			this.oldBuys.addLast(this.fourWeeksBuys.removeFirst());
+		long fwThreshold = fourWeeksBefore(tx);
+		boolean adjust = this.hasActions();
+		while (!this.fourWeeksBuys.isEmpty() && this.fourWeeksBuys.firstTimestamp() < fwThreshold) {
+			// Lots get positions in oldBuys in the shares after the actions.
+			if (adjust && this.fourWeeksBuys.firstActions() < this.actionsApplied) {
+				this.adjustFirst(this.fourWeeksBuys);
+				continue;
+			}
+			this.fourWeeksBuys.moveFirstTo(this.oldBuys);
+		}
+		int depth = this.fourWeeksBuys.size() + this.oldBuys.size();
+		this.transactions++;
+		this.queueDepthSum += depth;
+		this.maxQueueDepth = Math.max(this.maxQueueDepth, depth);
+	}
+
+	void countMatch(SellReport sellReport) {
+		this.matches++;
+		if (sellReport.fourWeekRuleApplied) {
+			this.fourWeekMatches++;
+		}
+		if (sellReport.buyWithinFourWeeksAfterSell) {
+			this.buyWithinFourWeeksAfterSell++;
+		}
+		if (sellReport.sellWithinFourWeeksAfterBuy) {
+			this.sellWithinFourWeeksAfterBuy++;
 		}
 	}
+
+	/**
+	 * @return first epoch minute of the 4 weeks before the day of tx. Lots bought
+	 *         at or after it are within the 4 weeks.
+	 */
+	static long fourWeeksBefore(Transaction tx) {
+		return (tx.getEpochDay() - TaxEngine.FOUR_WEEK_RULE_DAYS) * Transaction.MINUTES_PER_DAY;
+	}
+
+	/**
+	 * @return first epoch minute after the 4 weeks after the day of tx. Lots
+	 *         bought before it are within the 4 weeks.
+	 */
+	static long fourWeeksAfter(Transaction tx) {
+		return fourWeeksAfter(tx.getEpochDay());
+	}
+
+	static long fourWeeksAfter(long epochDay) {
+		return (epochDay + TaxEngine.FOUR_WEEK_RULE_DAYS + 1) * Transaction.MINUTES_PER_DAY;
+	}
+
+	/**
+	 * Whether the first lot of the queue was bought before tx, or is part of tx
+	 * itself. Within the same minute, {@link TaxEngine#CHRONOLOGICAL_ORDER} is
+	 * used, i.e. higher sequence number comes first. Sequence numbers are only
+	 * unique within one parsed file, so they are only compared when the times are
+	 * the same, and {@link IncrementalTaxEngine} renumbers the files it gets in
+	 * batches.
+	 */
+	private static boolean isNotAfter(LotQueue buys, Transaction tx, long txTimestamp) {
+		long timestamp = buys.firstTimestamp();
+		return timestamp < txTimestamp
+				|| (timestamp == txTimestamp && buys.firstSource().getSeqNum() >= tx.getSeqNum());
+	}
 }
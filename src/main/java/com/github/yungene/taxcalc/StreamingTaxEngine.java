@@ -0,0 +1,73 @@
+package com.github.yungene.taxcalc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Tax engine that gets transactions one at a time in chronological order, e.g.
+ * straight from the parser.
+ *
+ * Only open lots and the transactions of the last 4 weeks are kept in memory,
+ * see {@link PendingStockState}. Sell reports are passed to the sink as soon as
+ * the 4 week window after the sell is closed, so they come in chronological
+ * order of the sells. Reports are the same as from
+ * {@link TaxEngine#calculateTaxFull()}.
+ */
+public class StreamingTaxEngine {
+	private final Consumer<SellReport> sink;
+	private final StockRegistry<PendingStockState> states;
+	// State of the ISIN for every pending sell, in chronological order of the
+	// sells.
+	private final Deque<PendingStockState> pendingSells;
+	private final List<SellReport> matched;
+	private Transaction lastTransaction;
+
+	public StreamingTaxEngine(Consumer<SellReport> sink) {
+		this.sink = sink;
+		this.states = new StockRegistry<>(PendingStockState::new);
+		this.pendingSells = new ArrayDeque<>();
+		this.matched = new ArrayList<>();
+		this.lastTransaction = null;
+	}
+
+	public void accept(Transaction tx) {
+		if (this.lastTransaction != null && TaxEngine.CHRONOLOGICAL_ORDER.compare(this.lastTransaction, tx) > 0) {
+			throw new IllegalArgumentException(String.format(
+					"Transactions are not in chronological order. %s came after %s.", tx, this.lastTransaction));
+		}
+		this.lastTransaction = tx;
+
+		long horizonDay = tx.getEpochDay();
+		while (!this.pendingSells.isEmpty()
+				&& PendingStockState.isWindowClosed(this.pendingSells.getFirst().pendingSells.getFirst(), horizonDay)) {
+			this.commitFirst();
+		}
+
+		var state = this.states.get(tx.getStock());
+		state.add(tx);
+		if (tx.isSell()) {
+			this.pendingSells.addLast(state);
+		}
+	}
+
+	/**
+	 * Match all the sells that are still pending. Call this after the last
+	 * transaction.
+	 */
+	public void finish() {
+		while (!this.pendingSells.isEmpty()) {
+			this.commitFirst();
+		}
+	}
+
+	private void commitFirst() {
+		this.pendingSells.removeFirst().commitFirst(this.matched);
+		for (var sellReport : this.matched) {
+			this.sink.accept(sellReport);
+		}
+		this.matched.clear();
+	}
+}
@@ -0,0 +1,335 @@
+package com.github.yungene.taxcalc;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Same as {@link TaxEngine#calculateTaxFull()}, but on the row indexes of a
+ * {@link TransactionTable}, so a history of a hundred million transactions
+ * does not need a Transaction object for every row.
+ *
+ * Rows are sorted and grouped by ISIN as int arrays. Lots in the 4 week
+ * windows are only a row and a remaining quantity, their price and time are
+ * read from the table. Buys after the current transaction are not queued at
+ * all: the next one is found by walking the rows of the ISIN. Transactions
+ * are only made for the sells and buys that end up in a report.
+ *
+ * Reports are the same as those of a TaxEngine on
+ * {@link TransactionTable#toTransactions()}.
+ */
+class TableTaxEngine {
+	final TransactionTable table;
+	Map<Integer, TaxReport> reports;
+	final EngineStats stats;
+
+	TableTaxEngine(TransactionTable table) {
+		this(table, new EngineStats());
+	}
+
+	TableTaxEngine(TransactionTable table, EngineStats stats) {
+		this.table = table;
+		this.stats = stats;
+		this.reports = new HashMap<>();
+	}
+
+	void calculateTaxFull() {
+		if (!reports.isEmpty()) {
+			System.out.println("Already processed. Return without reprocess.");
+			return;
+		}
+		int[] rows;
+		try (var phase = this.stats.startPhase(EngineStats.SORT)) {
+			rows = ChronologicalSort.sortRows(this.table);
+			phase.setItems(rows.length);
+		}
+		try (var phase = this.stats.startPhase(EngineStats.MATCH)) {
+			this.addYears(rows);
+			int[] starts = new int[this.table.isins.size() + 1];
+			rows = this.groupByIsin(rows, starts);
+
+			List<SellReport> sales = new ArrayList<>();
+			for (int id = 0; id < starts.length - 1; id++) {
+				if (starts[id] < starts[id + 1]) {
+					var matcher = new IsinMatcher(this.table, rows, starts[id], starts[id + 1]);
+					matcher.match(sales);
+					this.stats.addIsin(matcher.counters);
+				}
+			}
+			sales.sort((o1, o2) -> TaxEngine.CHRONOLOGICAL_ORDER.compare(o1.originalSellTransaction,
+					o2.originalSellTransaction));
+			for (var sellReport : sales) {
+				this.reports.get(sellReport.originalSellTransaction.getDatetime().getYear()).addSale(sellReport);
+			}
+			phase.setItems(rows.length);
+		}
+	}
+
+	/**
+	 * Add an empty report for every year with a transaction.
+	 */
+	private void addYears(int[] rows) {
+		// Days of the year of the last report added, [firstDay, endDay).
+		long firstDay = 0;
+		long endDay = 0;
+		for (int row : rows) {
+			long day = this.table.epochDay(row);
+			if (day < firstDay || day >= endDay) {
+				var date = LocalDate.ofEpochDay(day);
+				firstDay = date.withDayOfYear(1).toEpochDay();
+				endDay = date.withDayOfYear(1).plusYears(1).toEpochDay();
+				this.reports.putIfAbsent(date.getYear(), new TaxReport(date.getYear()));
+			}
+		}
+	}
+
+	/**
+	 * Stable counting sort of the rows by ISIN id.
+	 *
+	 * @param starts gets the index of the first row of every ISIN id, and the
+	 *               number of rows at the end.
+	 */
+	private int[] groupByIsin(int[] rows, int[] starts) {
+		for (int row : rows) {
+			starts[this.table.stockId(row) + 1]++;
+		}
+		for (int id = 1; id < starts.length; id++) {
+			starts[id] += starts[id - 1];
+		}
+		int[] grouped = new int[rows.length];
+		int[] next = starts.clone();
+		for (int row : rows) {
+			grouped[next[this.table.stockId(row)]++] = row;
+		}
+		return grouped;
+	}
+
+	/**
+	 * Same as {@link TaxEngine#matchIsin(List, StockState)} and
+	 * {@link StockState#syncQueues(Transaction)}, for the rows of one ISIN.
+	 */
+	private static final class IsinMatcher {
+		final TransactionTable table;
+		final int[] rows;
+		final int start;
+		final int end;
+		final Stock stock;
+		// Only the counters are used, the lots are in the row queues here.
+		final StockState counters;
+
+		// oldBuys <-- fourWeeksBuys <-- NOW <-- futureBuysFourWeeksRule <-- rows[nextBuy]
+		final RowLotQueue futureBuysFourWeeksRule = new RowLotQueue();
+		final RowLotQueue fourWeeksBuys = new RowLotQueue();
+		final RowLotQueue oldBuys = new RowLotQueue();
+		// Index in rows of the first buy after the windows, and what is left of it.
+		int nextBuy;
+		int nextBuyQuantity;
+
+		// Transaction of the last buy row a report was made for, as the same lot is
+		// often matched by several sells in a row.
+		int lastBuyRow = -1;
+		Transaction lastBuy;
+
+		IsinMatcher(TransactionTable table, int[] rows, int start, int end) {
+			this.table = table;
+			this.rows = rows;
+			this.start = start;
+			this.end = end;
+			this.stock = table.isins.get(table.stockId(rows[start]));
+			this.counters = new StockState(this.stock.getIsin());
+			this.nextBuy = start - 1;
+			this.advanceNextBuy();
+		}
+
+		void match(List<SellReport> sales) {
+			var event = new EngineStats.IsinMatchEvent();
+			event.begin();
+			long startNanos = System.nanoTime();
+			for (int i = this.start; i < this.end; i++) {
+				int row = this.rows[i];
+				this.syncQueues(row);
+				if (!this.table.isBuy(row)) {
+					this.matchSell(row, sales);
+				}
+			}
+			this.counters.matchNanos += System.nanoTime() - startNanos;
+			EngineStats.commit(event, this.counters);
+		}
+
+		private void advanceNextBuy() {
+			do {
+				this.nextBuy++;
+			} while (this.nextBuy < this.end && !this.table.isBuy(this.rows[this.nextBuy]));
+			if (this.nextBuy < this.end) {
+				this.nextBuyQuantity = this.table.quantity(this.rows[this.nextBuy]);
+			}
+		}
+
+		private void syncQueues(int row) {
+			long timestamp = this.table.epochMinute(row);
+			while (!this.futureBuysFourWeeksRule.isEmpty()
+					&& this.isNotAfter(this.futureBuysFourWeeksRule.firstRow(), row, timestamp)) {
+				this.futureBuysFourWeeksRule.moveFirstTo(this.fourWeeksBuys, Integer.MAX_VALUE);
+			}
+			while (this.nextBuy < this.end && this.isNotAfter(this.rows[this.nextBuy], row, timestamp)) {
+				this.fourWeeksBuys.push(this.rows[this.nextBuy], this.nextBuyQuantity);
+				this.advanceNextBuy();
+			}
+			long fwThreshold = (this.table.epochDay(row) - TaxEngine.FOUR_WEEK_RULE_DAYS)
+					* Transaction.MINUTES_PER_DAY;
+			while (!this.fourWeeksBuys.isEmpty()
+					&& this.table.epochMinute(this.fourWeeksBuys.firstRow()) < fwThreshold) {
+				this.fourWeeksBuys.moveFirstTo(this.oldBuys, Integer.MAX_VALUE);
+			}
+			int depth = this.fourWeeksBuys.size() + this.oldBuys.size();
+			this.counters.transactions++;
+			this.counters.queueDepthSum += depth;
+			this.counters.maxQueueDepth = Math.max(this.counters.maxQueueDepth, depth);
+		}
+
+		private boolean isNotAfter(int buyRow, int row, long timestamp) {
+			long buyTimestamp = this.table.epochMinute(buyRow);
+			return buyTimestamp < timestamp
+					|| (buyTimestamp == timestamp && this.table.seqNum(buyRow) >= this.table.seqNum(row));
+		}
+
+		/**
+		 * Same as {@link TaxEngine#matchSell(StockState, Transaction, List)}.
+		 */
+		private void matchSell(int row, List<SellReport> sales) {
+			long futureThreshold = StockState.fourWeeksAfter(this.table.epochDay(row));
+			long fwThreshold = (this.table.epochDay(row) - TaxEngine.FOUR_WEEK_RULE_DAYS)
+					* Transaction.MINUTES_PER_DAY;
+			Transaction tx = this.table.toTransaction(row);
+
+			int remaining = this.table.quantity(row);
+			int reacquired = 0;
+			this.counters.sells++;
+			while (remaining > 0) {
+				var sellReport = new SellReport(this.stock, tx);
+
+				int toSell = remaining;
+				if (reacquired == 0 && this.nextBuy < this.end
+						&& this.table.epochMinute(this.rows[this.nextBuy]) < futureThreshold) {
+					if (this.nextBuyQuantity > remaining) {
+						this.counters.lotSplits++;
+					}
+					reacquired = Math.min(remaining, this.nextBuyQuantity);
+					this.futureBuysFourWeeksRule.push(this.rows[this.nextBuy], reacquired);
+					this.nextBuyQuantity -= reacquired;
+					if (this.nextBuyQuantity == 0) {
+						this.advanceNextBuy();
+					}
+				}
+				if (reacquired > 0) {
+					sellReport.fourWeekRuleApplied |= true;
+					sellReport.buyWithinFourWeeksAfterSell |= true;
+					toSell = reacquired;
+				}
+
+				RowLotQueue buys;
+				if (!this.fourWeeksBuys.isEmpty()
+						&& this.table.epochMinute(this.fourWeeksBuys.firstRow()) >= fwThreshold) {
+					sellReport.fourWeekRuleApplied |= true;
+					sellReport.sellWithinFourWeeksAfterBuy |= true;
+					buys = this.fourWeeksBuys;
+				} else if (!this.oldBuys.isEmpty()) {
+					buys = this.oldBuys;
+				} else {
+					throw new RuntimeException(String.format(
+							"Was not able to find enough buys to cover the sell. %s, remaining %d, %s", tx, remaining,
+							sellReport));
+				}
+				int buyRow = buys.firstRow();
+				if (buys.firstQuantity() > toSell) {
+					this.counters.lotSplits++;
+				}
+				toSell = buys.dropFirst(toSell);
+				sellReport.setMatch(this.buyTransaction(buyRow), this.table.euroTotalPrice(buyRow), toSell);
+				this.counters.countMatch(sellReport);
+				sales.add(sellReport);
+				remaining -= toSell;
+				if (reacquired > 0) {
+					reacquired -= toSell;
+				}
+			}
+		}
+
+		private Transaction buyTransaction(int row) {
+			if (row != this.lastBuyRow) {
+				this.lastBuyRow = row;
+				this.lastBuy = this.table.toTransaction(row);
+			}
+			return this.lastBuy;
+		}
+	}
+
+	/**
+	 * FIFO queue of lots as table rows and remaining quantities, in a growable
+	 * ring buffer like {@link LotQueue}.
+	 */
+	private static final class RowLotQueue {
+		private int[] rows = new int[16];
+		private int[] quantities = new int[16];
+		private int head;
+		private int size;
+
+		boolean isEmpty() {
+			return this.size == 0;
+		}
+
+		int size() {
+			return this.size;
+		}
+
+		int firstRow() {
+			return this.rows[this.head];
+		}
+
+		int firstQuantity() {
+			return this.quantities[this.head];
+		}
+
+		void push(int row, int quantity) {
+			if (this.size == this.rows.length) {
+				int capacity = this.rows.length;
+				int[] newRows = new int[capacity << 1];
+				int[] newQuantities = new int[capacity << 1];
+				int firstPart = capacity - this.head;
+				System.arraycopy(this.rows, this.head, newRows, 0, firstPart);
+				System.arraycopy(this.rows, 0, newRows, firstPart, this.head);
+				System.arraycopy(this.quantities, this.head, newQuantities, 0, firstPart);
+				System.arraycopy(this.quantities, 0, newQuantities, firstPart, this.head);
+				this.rows = newRows;
+				this.quantities = newQuantities;
+				this.head = 0;
+			}
+			int idx = (this.head + this.size) & (this.rows.length - 1);
+			this.rows[idx] = row;
+			this.quantities[idx] = quantity;
+			this.size++;
+		}
+
+		/**
+		 * Take at most maxQuantity shares from the first lot.
+		 *
+		 * @return number of shares taken.
+		 */
+		int dropFirst(int maxQuantity) {
+			int taken = Math.min(maxQuantity, this.quantities[this.head]);
+			this.quantities[this.head] -= taken;
+			if (this.quantities[this.head] == 0) {
+				this.head = (this.head + 1) & (this.rows.length - 1);
+				this.size--;
+			}
+			return taken;
+		}
+
+		void moveFirstTo(RowLotQueue dst, int maxQuantity) {
+			int row = this.firstRow();
+			dst.push(row, this.dropFirst(maxQuantity));
+		}
+	}
+}
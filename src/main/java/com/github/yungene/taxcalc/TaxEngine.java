@@ -1,122 +1,444 @@
 package com.github.yungene.taxcalc;
 
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class TaxEngine {
 	public final static double TAX_EXEMPTION = 1270;
+	public final static int CGT_RATE_PERCENT = 33;
+	// TAX_EXEMPTION in mil, see Transaction.
+	static final long TAX_EXEMPTION_MIL = Math.round(TAX_EXEMPTION * 10000);
 	public final static int FOUR_WEEK_RULE_DAYS = 28;
 
+	// Sort by datetime, or inverse seqNum for tie-breaker.
+	static final Comparator<Transaction> CHRONOLOGICAL_ORDER = (o1, o2) -> {
+		int comp = Long.compare(o1.getEpochMinute(), o2.getEpochMinute());
+		if (comp == 0) {
+			return o2.getSeqNum() - o1.getSeqNum();
+		} else {
+			return comp;
+		}
+	};
+
 	List<Transaction> transactions;
+	// Splits, reverse splits and ISIN changes, in chronological order.
+	final List<CorporateAction> corporateActions;
+	// Stock every changed ISIN ends up as. Its transactions are matched with
+	// those of that stock, as they are the same holding.
+	private final Map<String, Stock> holdings;
+	// Actions of every holding, by the ISIN it ends up as.
+	private final Map<String, List<CorporateAction>> holdingActions;
 	Map<Integer, TaxReport> reports;
+	// State of every ISIN after its last transaction, once the tax is calculated.
+	StockRegistry<StockState> states;
+	final EngineStats stats;
 
 	public TaxEngine(List<Transaction> transactions) {
-		this.transactions = new ArrayList<>(transactions);
-		// Sort by datetime, or inverse seqNum for tie-breaker.
-		this.transactions.sort((o1, o2) -> {
-			int comp = o1.getDatetime().compareTo(o2.getDatetime());
-			if (comp == 0) {
-				return o2.getSeqNum() - o1.getSeqNum();
-			} else {
-				return comp;
+		this(transactions, new EngineStats());
+	}
+
+	TaxEngine(List<Transaction> transactions, List<CorporateAction> corporateActions) {
+		this(transactions, corporateActions, new EngineStats());
+	}
+
+	/**
+	 * @param stats where the sort and match phases are recorded, e.g. after the
+	 *              parse phase.
+	 */
+	TaxEngine(List<Transaction> transactions, EngineStats stats) {
+		this(transactions, List.of(), stats);
+	}
+
+	/**
+	 * @param corporateActions of the stocks of the transactions, see
+	 *                         {@link TransactionsParser#getCorporateActions()}.
+	 */
+	TaxEngine(List<Transaction> transactions, List<CorporateAction> corporateActions, EngineStats stats) {
+		this.stats = stats;
+		try (var phase = stats.startPhase(EngineStats.SORT)) {
+			this.transactions = ChronologicalSort.sort(transactions);
+			phase.setItems(this.transactions.size());
+		}
+		List<CorporateAction> actions = new ArrayList<>(corporateActions);
+		actions.sort(Comparator.comparingLong(CorporateAction::getEpochMinute));
+		this.corporateActions = actions;
+		this.holdings = new HashMap<>();
+		for (var action : actions) {
+			if (action.isIsinChange()) {
+				this.holdings.put(action.getFrom().getIsin(), action.getTo());
 			}
-		});
+		}
+		this.holdingActions = new HashMap<>();
+		for (var action : actions) {
+			this.holdingActions.computeIfAbsent(this.holding(action.getTo()).getIsin(), isin -> new ArrayList<>())
+					.add(action);
+		}
 		this.reports = new HashMap<>();
 	}
 
+	/**
+	 * @return stock the holding of stock ends up as after its ISIN changes, or
+	 *         stock itself.
+	 */
+	Stock holding(Stock stock) {
+		var holding = stock;
+		// Bounded, in case an ISIN is changed back.
+		for (int i = 0; i < this.holdings.size(); i++) {
+			var next = this.holdings.get(holding.getIsin());
+			if (next == null) {
+				break;
+			}
+			holding = next;
+		}
+		return holding;
+	}
+
+	/**
+	 * @return empty state of the holding the transactions of a partition are
+	 *         in, with its corporate actions.
+	 */
+	private StockState newState(List<Transaction> isinTxs, StockRegistry<StockState> states) {
+		var holding = this.holding(isinTxs.get(0).getStock());
+		var stockState = states == null ? new StockState(holding.getIsin()) : states.get(holding);
+		var actions = this.holdingActions.get(holding.getIsin());
+		if (actions != null) {
+			stockState.setActions(actions);
+		}
+		return stockState;
+	}
+
+	/**
+	 * Same as {@link #partitionByIsin(List)}, but transactions of an ISIN that
+	 * was changed are in the partition of the ISIN it was changed into.
+	 */
+	private Collection<List<Transaction>> partitionByHolding() {
+		if (this.holdings.isEmpty()) {
+			return partitionByIsin(this.transactions);
+		}
+		StockRegistry<List<Transaction>> partitions = new StockRegistry<>(isin -> new ArrayList<>());
+		for (var tx : this.transactions) {
+			partitions.get(this.holding(tx.getStock())).add(tx);
+		}
+		return partitions.values();
+	}
+
+	/**
+	 * @return tax due on the net gains of a year, after the exemption.
+	 */
+	static long taxDue(long netGains) {
+		return Math.max(netGains - TAX_EXEMPTION_MIL, 0) * CGT_RATE_PERCENT / 100;
+	}
+
 	void calculateTaxFull() {
+		this.calculateTaxFull(null, null);
+	}
+
+	/**
+	 * Same as {@link #calculateTaxFull()}, but ISINs whose transactions are in
+	 * the cache are not matched again, and the others are added to it.
+	 *
+	 * ISINs from the cache have no StockState, so states is left null if there
+	 * were any, and {@link DisposalSimulator} can't be used on the engine.
+	 */
+	void calculateTaxFull(MatchCache cache) {
+		this.calculateTaxFull(null, cache);
+	}
+
+	/**
+	 * Same as {@link #calculateTaxFull()}, but matches every ISIN as a separate
+	 * task on the common fork-join pool.
+	 */
+	void calculateTaxFullParallel() {
+		this.calculateTaxFull(ForkJoinPool.commonPool(), null);
+	}
+
+	/**
+	 * Matching one ISIN never affects another, as each ISIN has its own
+	 * StockState and its own four week rule windows. So we split the sorted
+	 * transactions by ISIN, match each partition on the pool, and merge the
+	 * results back in chronological order. Output is the same as for the
+	 * sequential run.
+	 */
+	void calculateTaxFullParallel(ForkJoinPool pool) {
+		this.calculateTaxFull(pool, null);
+	}
+
+	private void calculateTaxFull(ForkJoinPool pool, MatchCache cache) {
 		if (!reports.isEmpty()) {
 			System.out.println("Already processed. Return without reprocess.");
 			return;
 		}
-		Map<String, StockState> stockStates = new HashMap<>();
-		for (var tx : this.transactions) {
-			String isin = tx.getStock().getIsin();
-			stockStates.putIfAbsent(isin, new StockState(isin));
-			if (tx.isBuy()) {
-				stockStates.get(isin).futureBuys.addLast(tx);
+		try (var phase = this.stats.startPhase(EngineStats.MATCH)) {
+			Collection<List<Transaction>> partitions = this.partitionByHolding();
+			this.states = new StockRegistry<>(StockState::new);
+
+			List<SellReport> sales = new ArrayList<>();
+			if (pool == null) {
+				for (var isinTxs : partitions) {
+					sales.addAll(matchIsin(isinTxs, this.newState(isinTxs, this.states), cache));
+				}
+			} else {
+				List<ForkJoinTask<List<SellReport>>> tasks = new ArrayList<>(partitions.size());
+				for (var isinTxs : partitions) {
+					// Registry is not thread safe, so states are created here.
+					var stockState = this.newState(isinTxs, this.states);
+					tasks.add(pool.submit(() -> matchIsin(isinTxs, stockState, cache)));
+				}
+				for (var task : tasks) {
+					sales.addAll(task.join());
+				}
 			}
+			this.mergeSales(sales);
+			for (var stockState : this.states.values()) {
+				if (stockState.transactions == 0) {
+					// Every ISIN has a transaction, so this one came from the cache.
+					this.stats.cachedIsins++;
+				} else {
+					this.stats.addIsin(stockState);
+				}
+			}
+			if (this.stats.cachedIsins > 0) {
+				this.states = null;
+			}
+			phase.setItems(this.transactions.size());
 		}
+	}
 
-		Deque<Transaction> txDeque = new LinkedList<>(this.transactions);
+	/**
+	 * Same as {@link #calculateTaxFull()}, but only reports gets the report of
+	 * the year, and only what that report depends on is matched. ISINs without a
+	 * sell in the year are skipped. Others are matched up to their last sell in
+	 * the year, with only the buys in the 4 weeks after it, as later
+	 * transactions can't change the matches of the year.
+	 *
+	 * States are left null, as they stop at the year.
+	 */
+	void calculateTaxYear(int year) {
+		if (!reports.isEmpty()) {
+			System.out.println("Already processed. Return without reprocess.");
+			return;
+		}
+		try (var phase = this.stats.startPhase(EngineStats.MATCH)) {
+			List<SellReport> sales = new ArrayList<>();
+			// Only the transactions up to the 4 weeks after the year are matched.
+			int matched = 0;
+			for (var isinTxs : this.partitionByHolding()) {
+				int last = lastSellInYear(isinTxs, year);
+				if (last < 0) {
+					this.stats.skippedIsins++;
+					continue;
+				}
+				var stockState = this.newState(isinTxs, null);
+				for (var sellReport : matchIsin(isinTxs, last + 1, StockState.fourWeeksAfter(isinTxs.get(last)),
+						stockState)) {
+					// Sells of earlier years only matter for the lots they took.
+					if (sellReport.originalSellTransaction.getDatetime().getYear() == year) {
+						sales.add(sellReport);
+					}
+				}
+				this.stats.addIsin(stockState);
+				matched += stockState.transactions;
+			}
+			this.states = null;
+			phase.setItems(matched);
 
-		while (!txDeque.isEmpty()) {
-			var tx = txDeque.removeFirst();
+			var report = new TaxReport(year);
+			sales.sort((o1, o2) -> CHRONOLOGICAL_ORDER.compare(o1.originalSellTransaction, o2.originalSellTransaction));
+			for (var sellReport : sales) {
+				report.addSale(sellReport);
+			}
+			this.reports.put(year, report);
+		}
+	}
+
+	/**
+	 * @param isinTxs transactions of one ISIN in chronological order.
+	 * @return index of the last sell in the year, -1 if there is none.
+	 */
+	private static int lastSellInYear(List<Transaction> isinTxs, int year) {
+		for (int i = isinTxs.size() - 1; i >= 0; i--) {
+			var tx = isinTxs.get(i);
+			int txYear = tx.getDatetime().getYear();
+			if (txYear < year) {
+				return -1;
+			}
+			if (txYear == year && tx.isSell()) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Group transactions by ISIN. Order of transactions within a partition is the
+	 * same as in the input, and partitions are ordered by first appearance of the
+	 * ISIN.
+	 */
+	static Collection<List<Transaction>> partitionByIsin(List<Transaction> transactions) {
+		StockRegistry<List<Transaction>> partitions = new StockRegistry<>(isin -> new ArrayList<>());
+		for (var tx : transactions) {
+			partitions.get(tx.getStock()).add(tx);
+		}
+		return partitions.values();
+	}
+
+	/**
+	 * Put sell reports of all the ISINs into yearly reports. Sales within a year
+	 * are in chronological order of the sell. Sort is stable, so reports of a
+	 * single sell that was split into several matches keep their order.
+	 */
+	private void mergeSales(List<SellReport> sales) {
+		for (var tx : this.transactions) {
 			int txYear = tx.getDatetime().getYear();
 			this.reports.putIfAbsent(txYear, new TaxReport(txYear));
+		}
+		sales.sort((o1, o2) -> CHRONOLOGICAL_ORDER.compare(o1.originalSellTransaction, o2.originalSellTransaction));
+		for (var sellReport : sales) {
+			this.reports.get(sellReport.originalSellTransaction.getDatetime().getYear()).addSale(sellReport);
+		}
+	}
 
-			var isin = tx.getStock().getIsin();
-			var stockState = stockStates.get(isin);
-			if (tx.isBuy()) {
-				stockState.syncQueues(tx);
-			} else {
-				// Sell, so we do the matching
-				var sellReport = new SellReport(tx.getStock(), tx);
-
-				// first, we re-adjust our buy queues
-				stockState.syncQueues(tx);
-
-				int toMatch = tx.getQuantity();
-				var futureThreshold = tx.getDatetime().truncatedTo(ChronoUnit.DAYS)
-						.plusDays(TaxEngine.FOUR_WEEK_RULE_DAYS + 1);
-				if (toMatch > 0 && !stockState.futureBuys.isEmpty()
-						&& stockState.futureBuys.getFirst().getDatetime().isBefore(futureThreshold)) {
-					sellReport.fourWeekRuleApplied |= true;
-					sellReport.buyWithinFourWeeksAfterSell |= true;
-					var sbPair = this.matchBuyAndSell(tx, stockState.futureBuys, txDeque);
-					tx = sbPair[0];
-					stockState.futureBuysFourWeeksRule.addLast(sbPair[1]);
-				}
+	/**
+	 * Same as {@link #matchIsin(List, StockState)}, but the reports are taken
+	 * from the cache if it has them, in which case the state is left empty.
+	 * Holdings with corporate actions are not cached, as the key is only made of
+	 * the transactions.
+	 */
+	static List<SellReport> matchIsin(List<Transaction> isinTxs, StockState stockState, MatchCache cache) {
+		if (cache == null || stockState.hasActions()) {
+			return matchIsin(isinTxs, stockState);
+		}
+		var key = MatchCache.key(isinTxs);
+		var sales = cache.get(key, isinTxs);
+		if (sales == null) {
+			sales = matchIsin(isinTxs, stockState);
+			cache.put(key, isinTxs, sales);
+		}
+		return sales;
+	}
 
-				// match sell with buys
-				// try within 4 weeks first
-				int toSell = tx.getQuantity();
-				var fwThreshold = tx.getDatetime().truncatedTo(ChronoUnit.DAYS)
-						.minusDays(TaxEngine.FOUR_WEEK_RULE_DAYS);
-				if (toSell > 0 && !stockState.fourWeeksBuys.isEmpty()
-						&& stockState.fourWeeksBuys.getFirst().getDatetime().isAfter(fwThreshold)) {
-					sellReport.fourWeekRuleApplied |= true;
-					sellReport.sellWithinFourWeeksAfterBuy |= true;
-					var sbPair = this.matchBuyAndSell(tx, stockState.fourWeeksBuys, txDeque);
-					tx = sbPair[0];
-					sellReport.setBuyTransaction(sbPair[1]);
-				} else if (toSell > 0 && !stockState.oldBuys.isEmpty()) {
-					var sbPair = this.matchBuyAndSell(tx, stockState.oldBuys, txDeque);
-					tx = sbPair[0];
-					sellReport.setBuyTransaction(sbPair[1]);
-				} else {
-					throw new RuntimeException(String
-							.format("Was not able to find enough buys to cover the sell. %s, %s", tx, sellReport));
-				}
-				sellReport.sellTrasaction = tx;
-				this.reports.get(txYear).sales.add(sellReport);
+	/**
+	 * Match all the sells of a single ISIN against its buys.
+	 *
+	 * @param isinTxs    all transactions of one ISIN in chronological order.
+	 * @param stockState empty state of the ISIN, left as it is after the last
+	 *                   transaction.
+	 * @return sell reports in chronological order.
+	 */
+	static List<SellReport> matchIsin(List<Transaction> isinTxs, StockState stockState) {
+		return matchIsin(isinTxs, isinTxs.size(), Long.MAX_VALUE, stockState);
+	}
+
+	/**
+	 * Same as {@link #matchIsin(List, StockState)}, but only for the first end
+	 * transactions.
+	 *
+	 * @param buysBefore epoch minute from which buys are left out of the state.
+	 *                   Buys are only needed up to 4 weeks after the last sell.
+	 */
+	static List<SellReport> matchIsin(List<Transaction> isinTxs, int end, long buysBefore, StockState stockState) {
+		var event = new EngineStats.IsinMatchEvent();
+		event.begin();
+		long start = System.nanoTime();
+		List<SellReport> sales = new ArrayList<>();
+		for (var tx : isinTxs) {
+			if (tx.getEpochMinute() >= buysBefore) {
+				break;
+			}
+			if (tx.isBuy()) {
+				stockState.futureBuys.addLast(tx, stockState.actionsAt(tx.getEpochMinute()));
 			}
 		}
 
-		for (var report : this.reports.values()) {
-			report.calculateGains();
+		for (var tx : isinTxs.subList(0, end)) {
+			// first, we re-adjust our buy queues
+			stockState.syncQueues(tx);
+			if (tx.isSell()) {
+				matchSell(stockState, tx, sales);
+			}
 		}
+		stockState.matchNanos += System.nanoTime() - start;
+		EngineStats.commit(event, stockState);
+		return sales;
 	}
 
-	private Transaction[] matchBuyAndSell(Transaction sellTx, Deque<Transaction> buyDeque, Deque<Transaction> txDeque) {
-		int toSell = sellTx.getQuantity();
-		var buyTx = buyDeque.removeFirst();
-		Transaction matchedBuyTx = buyTx;
-		if (buyTx.getQuantity() > toSell) {
-			// we need to split the buy tx into 2
-			matchedBuyTx = buyTx.copyWithNewQuantity(toSell);
-			var remTx = buyTx.copyWithNewQuantity(buyTx.getQuantity() - toSell);
-			buyDeque.addFirst(remTx);
-		} else if (buyTx.getQuantity() < toSell) {
-			txDeque.addFirst(sellTx.copyWithNewQuantity(toSell - buyTx.getQuantity()));
-			sellTx = sellTx.copyWithNewQuantity(buyTx.getQuantity());
+	/**
+	 * Match a sell against the buy lots of its stock. The sell is consumed in
+	 * place: every step matches what is left of the sell against the first lot of
+	 * one of the windows, and adds a SellReport for the matched slice. Lots are
+	 * consumed in place as well, so no transactions get copied here.
+	 *
+	 * After a corporate action, the first lots held are adjusted to the shares of
+	 * the sell before they are looked at, see
+	 * {@link StockState#adjustFirst(LotQueue)}. Buys in the 4 weeks after it may
+	 * be after a corporate action, see
+	 * {@link StockState#moveReacquired(Transaction, int)}.
+	 */
+	static void matchSell(StockState stockState, Transaction tx, List<SellReport> sales) {
+		long futureThreshold = StockState.fourWeeksAfter(tx);
+		long fwThreshold = StockState.fourWeeksBefore(tx);
+		boolean adjust = stockState.hasActions();
+
+		int remaining = tx.getQuantity();
+		// Number of shares of this sell that are still covered by a buy in the 4
+		// weeks after the sell.
+		int reacquired = 0;
+		stockState.sells++;
+		while (remaining > 0) {
+			var sellReport = new SellReport(tx.getStock(), tx);
+
+			int toSell = remaining;
+			// A buy of less than a share of the sell covers none of it, the next one
+			// is tried then.
+			while (reacquired == 0 && !stockState.futureBuys.isEmpty()
+					&& stockState.futureBuys.firstTimestamp() < futureThreshold) {
+				// Matched part of the buy is only moved to another window, it is
+				// still available to be sold later.
+				reacquired = stockState.moveReacquired(tx, remaining);
+			}
+			if (reacquired > 0) {
+				sellReport.fourWeekRuleApplied |= true;
+				sellReport.buyWithinFourWeeksAfterSell |= true;
+				toSell = reacquired;
+			}
+
+			// match sell with buys
+			// try within 4 weeks first
+			if (adjust) {
+				stockState.adjustFirst(stockState.fourWeeksBuys);
+				stockState.adjustFirst(stockState.oldBuys);
+			}
+			LotQueue buys;
+			if (!stockState.fourWeeksBuys.isEmpty() && stockState.fourWeeksBuys.firstTimestamp() >= fwThreshold) {
+				sellReport.fourWeekRuleApplied |= true;
+				sellReport.sellWithinFourWeeksAfterBuy |= true;
+				buys = stockState.fourWeeksBuys;
+			} else if (!stockState.oldBuys.isEmpty()) {
+				buys = stockState.oldBuys;
+			} else {
+				throw new RuntimeException(String.format(
+						"Was not able to find enough buys to cover the sell. %s, remaining %d, %s", tx, remaining,
+						sellReport));
+			}
+			var buySource = buys.firstSource();
+			var buyEuroTotalPrice = buys.firstCost();
+			if (buys.firstQuantity() > toSell) {
+				stockState.lotSplits++;
+			}
+			toSell = buys.dropFirst(toSell);
+			sellReport.setMatch(buySource, buyEuroTotalPrice, toSell);
+			stockState.countMatch(sellReport);
+			sales.add(sellReport);
+			remaining -= toSell;
+			if (reacquired > 0) {
+				reacquired -= toSell;
+			}
 		}
-		// TODO: make this a class
-		return new Transaction[] { sellTx, matchedBuyTx };
 	}
 }
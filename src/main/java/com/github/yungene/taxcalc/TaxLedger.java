@@ -0,0 +1,197 @@
+package com.github.yungene.taxcalc;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tax of every year, folded over the years in order. Losses of a year are set
+ * against its own gains first. Losses left are carried forward and set against
+ * the gains of later years, before the annual exemption, and the exemption is
+ * taken off what is left before it is charged. An unused exemption is not
+ * carried forward.
+ *
+ * Every year keeps the losses brought into it, so when the report of a year
+ * changes, the years before it are left as they are, and a later year is only
+ * folded again if the losses brought into it changed. Years are folded from
+ * the totals of their reports, sales are never gone over here.
+ *
+ * Money is in mil, see {@link Transaction}. Losses are positive numbers.
+ */
+class TaxLedger {
+	/**
+	 * One year of the ledger.
+	 */
+	static class Year {
+		final int year;
+		private long netGains;
+		private long lossesBroughtForward;
+		private long lossesUsed;
+		private long exemptionUsed;
+		private long chargeableGains;
+		private long taxDue;
+		private long lossesCarriedForward;
+		// Whether the net gains changed since the year was last folded.
+		private boolean stale;
+
+		Year(int year) {
+			this.year = year;
+		}
+
+		/**
+		 * @return taxable net gains of the year's sales, before losses of other
+		 *         years and the exemption. Negative for a net loss.
+		 */
+		long getNetGains() {
+			return this.netGains;
+		}
+
+		long getLossesBroughtForward() {
+			return this.lossesBroughtForward;
+		}
+
+		/**
+		 * @return losses brought forward that were set against the gains of the
+		 *         year.
+		 */
+		long getLossesUsed() {
+			return this.lossesUsed;
+		}
+
+		long getExemptionUsed() {
+			return this.exemptionUsed;
+		}
+
+		long getChargeableGains() {
+			return this.chargeableGains;
+		}
+
+		long getTaxDue() {
+			return this.taxDue;
+		}
+
+		long getLossesCarriedForward() {
+			return this.lossesCarriedForward;
+		}
+
+		private void setNetGains(long netGains) {
+			this.netGains = netGains;
+			this.stale = true;
+		}
+
+		private void fold(long lossesBroughtForward) {
+			this.stale = false;
+			this.lossesBroughtForward = lossesBroughtForward;
+			if (this.netGains <= 0) {
+				this.lossesUsed = 0;
+				this.exemptionUsed = 0;
+				this.chargeableGains = 0;
+				this.lossesCarriedForward = lossesBroughtForward - this.netGains;
+			} else {
+				this.lossesUsed = Math.min(lossesBroughtForward, this.netGains);
+				long gains = this.netGains - this.lossesUsed;
+				this.exemptionUsed = Math.min(TaxEngine.TAX_EXEMPTION_MIL, gains);
+				this.chargeableGains = gains - this.exemptionUsed;
+				this.lossesCarriedForward = lossesBroughtForward - this.lossesUsed;
+			}
+			this.taxDue = this.chargeableGains * TaxEngine.CGT_RATE_PERCENT / 100;
+		}
+
+		@Override
+		public String toString() {
+			return "Year [year=" + year + ", netGains=" + netGains + ", lossesBroughtForward=" + lossesBroughtForward
+					+ ", lossesUsed=" + lossesUsed + ", exemptionUsed=" + exemptionUsed + ", chargeableGains="
+					+ chargeableGains + ", taxDue=" + taxDue + ", lossesCarriedForward=" + lossesCarriedForward + "]";
+		}
+	}
+
+	private final TreeMap<Integer, Year> years;
+	// Number of years folded since the ledger was made, for tests.
+	int yearsFolded;
+
+	TaxLedger() {
+		this.years = new TreeMap<>();
+	}
+
+	/**
+	 * @return ledger of the reports, folded in a single pass.
+	 */
+	static TaxLedger of(Map<Integer, TaxReport> reports) {
+		var ledger = new TaxLedger();
+		for (var report : reports.values()) {
+			ledger.years.computeIfAbsent(report.year, Year::new).setNetGains(report.getTaxableNetGains());
+		}
+		if (!ledger.years.isEmpty()) {
+			ledger.fold(ledger.years.firstKey());
+		}
+		return ledger;
+	}
+
+	/**
+	 * Take the totals of a report that was added or changed, and fold its year
+	 * and the years after it again.
+	 */
+	void update(TaxReport report) {
+		this.years.computeIfAbsent(report.year, Year::new).setNetGains(report.getTaxableNetGains());
+		this.fold(report.year);
+	}
+
+	/**
+	 * Same as {@link #update(TaxReport)} for several reports, with a single fold
+	 * from the first of their years.
+	 */
+	void update(Collection<TaxReport> reports) {
+		int from = Integer.MAX_VALUE;
+		for (var report : reports) {
+			this.years.computeIfAbsent(report.year, Year::new).setNetGains(report.getTaxableNetGains());
+			from = Math.min(from, report.year);
+		}
+		if (from != Integer.MAX_VALUE) {
+			this.fold(from);
+		}
+	}
+
+	/**
+	 * Fold the years from the year on, starting with the losses the year before
+	 * it carried forward. Years whose gains did not change, and that already
+	 * have those losses brought into them, are left as they are.
+	 */
+	private void fold(int from) {
+		var before = this.years.lowerEntry(from);
+		long losses = before == null ? 0 : before.getValue().lossesCarriedForward;
+		for (var year : this.years.tailMap(from, true).values()) {
+			if (year.stale || year.lossesBroughtForward != losses) {
+				year.fold(losses);
+				this.yearsFolded++;
+			}
+			losses = year.lossesCarriedForward;
+		}
+	}
+
+	/**
+	 * @return the year, or null if it has no report.
+	 */
+	Year get(int year) {
+		return this.years.get(year);
+	}
+
+	/**
+	 * @return ledger with only the year as it was folded here, empty if the year
+	 *         has no report.
+	 */
+	TaxLedger only(int year) {
+		var ledger = new TaxLedger();
+		var entry = this.years.get(year);
+		if (entry != null) {
+			ledger.years.put(year, entry);
+		}
+		return ledger;
+	}
+
+	/**
+	 * @return years in order.
+	 */
+	Collection<Year> years() {
+		return this.years.values();
+	}
+}
@@ -1,16 +1,76 @@
 package com.github.yungene.taxcalc;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Sales of a single year, with totals that are kept up to date as sales are
+ * added, so reading them does not go over the sales again.
+ *
+ * Gains and losses are taxable ones, i.e. a loss that the 4 week rule does not
+ * allow is neither a gain nor a loss. Losses are positive numbers.
+ */
 public class TaxReport {
 	int year;
-	List<SellReport> sales;
+	// Only add and remove sales through addSale and removeLastSales, so the
+	// totals stay in sync.
+	final List<SellReport> sales;
 
-	private Long totalGains = null;
-	private Long totalLosses = null;
-	private Long netGains = null;
-	private Long totalSales = null;
+	private final Subtotal total = new Subtotal();
+	// By ISIN, in order of the first sale.
+	private final Map<String, Subtotal> isinSubtotals = new LinkedHashMap<>();
+
+	/**
+	 * Totals of a group of sales.
+	 */
+	public static class Subtotal {
+		private long gains = 0;
+		private long losses = 0;
+		private long sales = 0;
+		private int count = 0;
+
+		public long getGains() {
+			return this.gains;
+		}
+
+		public long getLosses() {
+			return this.losses;
+		}
+
+		public long getNetGains() {
+			return this.gains - this.losses;
+		}
+
+		/**
+		 * @return total price, fees included, of all the shares sold.
+		 */
+		public long getSales() {
+			return this.sales;
+		}
+
+		public int getCount() {
+			return this.count;
+		}
+
+		private void add(SellReport sellReport, int sign) {
+			long gains = sellReport.getTaxableNetGains();
+			if (gains > 0) {
+				this.gains += sign * gains;
+			} else {
+				this.losses -= sign * gains;
+			}
+			this.sales += sign * sellReport.originalSellTransaction.getEuroTotalPrice() * sellReport.getQuantity();
+			this.count += sign;
+		}
+
+		@Override
+		public String toString() {
+			return "Subtotal [gains=" + gains + ", losses=" + losses + ", sales=" + sales + ", count=" + count + "]";
+		}
+	}
 
 	public TaxReport(int year) {
 		this.year = year;
@@ -23,48 +83,94 @@ public class TaxReport {
 		this.calculateGains();
 	}
 
-	public long getTaxableNetGains() {
-		if (this.netGains == null) {
-			this.calculateGains();
+	/**
+	 * Add a sale at the end of the report and update the totals.
+	 */
+	public void addSale(SellReport sellReport) {
+		this.sales.add(sellReport);
+		this.updateTotals(sellReport, 1);
+	}
+
+	/**
+	 * Remove the last count sales and take them out of the totals.
+	 */
+	void removeLastSales(int count) {
+		var removed = this.sales.subList(this.sales.size() - count, this.sales.size());
+		for (var sellReport : removed) {
+			this.updateTotals(sellReport, -1);
 		}
-		return this.netGains;
+		removed.clear();
 	}
 
+	private void updateTotals(SellReport sellReport, int sign) {
+		this.total.add(sellReport, sign);
+		String isin = sellReport.stock.getIsin();
+		var subtotal = this.isinSubtotals.computeIfAbsent(isin, key -> new Subtotal());
+		subtotal.add(sellReport, sign);
+		if (subtotal.count == 0) {
+			this.isinSubtotals.remove(isin);
+		}
+	}
+
+	public long getTaxableNetGains() {
+		return this.total.getNetGains();
+	}
+
+	public long getTotalGains() {
+		return this.total.getGains();
+	}
+
+	public long getTotalLosses() {
+		return this.total.getLosses();
+	}
+
+	public long getTotalSales() {
+		return this.total.getSales();
+	}
+
+	public Subtotal getTotal() {
+		return this.total;
+	}
+
+	/**
+	 * @return totals by ISIN, in order of the first sale of the ISIN.
+	 */
+	public Map<String, Subtotal> getIsinSubtotals() {
+		return Collections.unmodifiableMap(this.isinSubtotals);
+	}
+
+	/**
+	 * @return totals of the ISIN, or null if it had no sales this year.
+	 */
+	public Subtotal getIsinSubtotal(String isin) {
+		return this.isinSubtotals.get(isin);
+	}
+
+	/**
+	 * Calculate all the totals again from the sales. Only needed if the sales
+	 * list was changed directly.
+	 */
 	public void calculateGains() {
-		long totalGains = 0;
-		long totalLosses = 0;
-		long netGains = 0;
-		long totalSales = 0;
+		this.total.gains = this.total.losses = this.total.sales = this.total.count = 0;
+		this.isinSubtotals.clear();
 		for (var sellReport : this.sales) {
-			var gains = sellReport.getTaxableNetGains();
-			netGains += gains;
-			// TODO: move this method to Transaction
-			totalSales += sellReport.sellTrasaction.getEuroTotalPrice() * sellReport.sellTrasaction.getQuantity();
+			this.updateTotals(sellReport, 1);
 		}
-
-		this.totalGains = totalGains;
-		this.totalLosses = totalLosses;
-		this.netGains = netGains;
-		this.totalSales = totalSales;
 	}
 
+	/**
+	 * Prefer {@link ReportWriter} for large reports, this builds the whole report
+	 * in memory.
+	 */
 	public String prettyPrint() {
-		StringBuilder sb = new StringBuilder("");
-		long taxableGains = this.getTaxableNetGains();
-		sb.append(String.format("TaxReport for year %d. Total sales: %s. Total taxable gains are %s. Sales for the year were:\n",
-				this.year, Transaction.milToString(this.totalSales), Transaction.milToString(taxableGains)));
-		for (var sp : sales) {
-			sb.append("\t");
-			sb.append(sp);
-			sb.append("\n");
-		}
-		return sb.toString();
+		return ReportWriter.prettyPrint(this);
 	}
 
 	@Override
 	public String toString() {
-		return "TaxReport [year=" + year + ", totalGains=" + totalGains + ", totalLosses=" + totalLosses + ", netGains="
-				+ netGains / 10000.0 + ", sales=" + sales + "]";
+		return "TaxReport [year=" + year + ", totalGains=" + this.getTotalGains() + ", totalLosses="
+				+ this.getTotalLosses() + ", netGains=" + this.getTaxableNetGains() / 10000.0 + ", sales=" + sales
+				+ "]";
 	}
 
 }
@@ -0,0 +1,302 @@
+package com.github.yungene.taxcalc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Calculates reports of Transactions.csv uploads over HTTP, so a caller with
+ * many small accounts does not pay for starting a JVM every time.
+ *
+ * POST the CSV to /report, optionally with ?format=CSV or JSON, and the
+ * reports come back in the body. With ?year= only the report of that year is
+ * calculated, see {@link TaxEngine#calculateTaxYear(int)}. GET /health answers OK.
+ *
+ * Requests are matched on a fixed number of worker threads. At most
+ * queueCapacity more requests wait for a worker, anything over that is turned
+ * away at once with 503 and Retry-After, so a burst can't pile up memory or
+ * latency. Every worker keeps its parser and upload buffer across requests.
+ * Every request gets an {@link IsinTable} of its own, so product names of one
+ * upload never show up in the reports of another, and nothing grows with the
+ * number of requests. With a {@link MatchCache}, an account uploaded
+ * again only has the ISINs with new trades matched again.
+ */
+class TaxService {
+	static final String REPORT_PATH = "/report";
+	static final String HEALTH_PATH = "/health";
+	static final int DEFAULT_MAX_UPLOAD = 64 << 20;
+	// Upload buffers larger than this are not kept after the request.
+	private static final int KEPT_BUFFER_SIZE = 1 << 20;
+	private static final int INITIAL_BUFFER_SIZE = 64 << 10;
+	private static final String RETRY_AFTER_SECONDS = "1";
+
+	private final HttpServer server;
+	private final ThreadPoolExecutor workers;
+	// Permits for the requests that are being matched or waiting for a worker.
+	private final Semaphore admitted;
+	private final int maxUpload;
+	private final ReportWriter.Format defaultFormat;
+	// Null if results are not cached.
+	private final MatchCache cache;
+	private final ThreadLocal<Worker> workerState;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	/**
+	 * State of a worker thread, kept warm across requests.
+	 */
+	private static class Worker {
+		final TransactionsParser parser;
+		byte[] upload = new byte[INITIAL_BUFFER_SIZE];
+
+		Worker() {
+			this.parser = new TransactionsParser();
+		}
+	}
+
+	/**
+	 * @param address       where to listen, port 0 for any free port.
+	 * @param threads       number of requests matched at the same time.
+	 * @param queueCapacity number of requests that may wait for a worker.
+	 * @param maxUpload     largest upload in bytes, larger ones get 413.
+	 * @param defaultFormat format of the reports if the request does not ask for
+	 *                      one.
+	 * @param cache         reports of ISINs matched before, or null.
+	 */
+	TaxService(InetSocketAddress address, int threads, int queueCapacity, int maxUpload,
+			ReportWriter.Format defaultFormat, MatchCache cache) throws IOException {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("Number of threads should be > 0.");
+		}
+		if (queueCapacity < 0) {
+			throw new IllegalArgumentException("Queue capacity should be >= 0.");
+		}
+		this.maxUpload = maxUpload;
+		this.defaultFormat = defaultFormat;
+		this.cache = cache;
+		this.workerState = ThreadLocal.withInitial(Worker::new);
+		this.admitted = new Semaphore(threads + queueCapacity);
+		// The queue never holds more than queueCapacity, admitted makes sure.
+		this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>());
+		this.server = HttpServer.create(address, 0);
+		// Handlers below only admit the request and hand it over, so they run on
+		// the dispatcher thread of the server.
+		this.server.setExecutor(null);
+		this.server.createContext(REPORT_PATH, this::admit);
+		this.server.createContext(HEALTH_PATH, this::health);
+	}
+
+	void start() {
+		this.server.start();
+	}
+
+	/**
+	 * @return port the server listens on.
+	 */
+	int getPort() {
+		return this.server.getAddress().getPort();
+	}
+
+	/**
+	 * Stop accepting requests, and wait for the admitted ones to finish.
+	 */
+	void stop() throws InterruptedException {
+		this.server.stop(0);
+		this.workers.shutdown();
+		this.workers.awaitTermination(1, TimeUnit.MINUTES);
+		this.stopped.countDown();
+	}
+
+	/**
+	 * Block until {@link #stop()} is done.
+	 */
+	void awaitStop() throws InterruptedException {
+		this.stopped.await();
+	}
+
+	private void admit(HttpExchange exchange) throws IOException {
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			exchange.getResponseHeaders().set("Allow", "POST");
+			sendText(exchange, 405, "Only POST is supported.");
+			return;
+		}
+		if (!this.admitted.tryAcquire()) {
+			exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+			sendText(exchange, 503, "Too many requests in the queue.");
+			return;
+		}
+		try {
+			this.workers.execute(() -> {
+				try {
+					this.report(exchange);
+				} finally {
+					this.admitted.release();
+				}
+			});
+		} catch (RuntimeException e) {
+			// Rejected while stopping.
+			this.admitted.release();
+			sendText(exchange, 503, "Shutting down.");
+		}
+	}
+
+	private void report(HttpExchange exchange) {
+		var worker = this.workerState.get();
+		try {
+			ReportWriter.Format format;
+			Integer year;
+			try {
+				format = this.format(exchange);
+				year = year(exchange);
+			} catch (IllegalArgumentException e) {
+				sendText(exchange, 400, e.getMessage());
+				return;
+			}
+			int length = this.readUpload(exchange.getRequestBody(), worker);
+			if (length < 0) {
+				sendText(exchange, 413, String.format("Upload is larger than %d bytes.", this.maxUpload));
+				return;
+			}
+
+			TaxEngine taxEngine;
+			try {
+				worker.parser.reset(new IsinTable());
+				var transactions = worker.parser.parseBuffer(ByteBuffer.wrap(worker.upload, 0, length));
+				taxEngine = new TaxEngine(transactions, worker.parser.getCorporateActions());
+				if (year != null) {
+					taxEngine.calculateTaxYear(year);
+				} else {
+					taxEngine.calculateTaxFull(this.cache);
+				}
+			} catch (RuntimeException e) {
+				// Bad rows, or sells without buys.
+				sendText(exchange, 400, e.getMessage() != null ? e.getMessage() : e.toString());
+				return;
+			}
+
+			exchange.getResponseHeaders().set("Content-Type", contentType(format));
+			exchange.sendResponseHeaders(200, 0);
+			Writer writer = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8);
+			var reportWriter = new ReportWriter(writer, format);
+			for (var report : taxEngine.reports.values()) {
+				reportWriter.writeReport(report);
+			}
+			reportWriter.finish();
+		} catch (IOException | UncheckedIOException e) {
+			// Client went away, nothing to answer.
+		} finally {
+			exchange.close();
+			if (worker.upload.length > KEPT_BUFFER_SIZE) {
+				worker.upload = new byte[INITIAL_BUFFER_SIZE];
+			}
+		}
+	}
+
+	/**
+	 * Read the whole request body into the upload buffer of the worker.
+	 *
+	 * @return length of the upload, -1 if it is larger than maxUpload.
+	 */
+	private int readUpload(InputStream in, Worker worker) throws IOException {
+		int length = 0;
+		while (true) {
+			if (length > this.maxUpload) {
+				return -1;
+			}
+			if (length == worker.upload.length) {
+				if (length >= this.maxUpload) {
+					return in.read() < 0 ? length : -1;
+				}
+				var larger = new byte[(int) Math.min((long) length * 2, this.maxUpload)];
+				System.arraycopy(worker.upload, 0, larger, 0, length);
+				worker.upload = larger;
+			}
+			int read = in.read(worker.upload, length, worker.upload.length - length);
+			if (read < 0) {
+				return length;
+			}
+			length += read;
+		}
+	}
+
+	private ReportWriter.Format format(HttpExchange exchange) {
+		String name = queryParam(exchange, "format");
+		if (name == null) {
+			return this.defaultFormat;
+		}
+		try {
+			return ReportWriter.Format.valueOf(name.toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException(String.format("Unknown format %s.", name));
+		}
+	}
+
+	/**
+	 * @return the year asked for, or null for all the years.
+	 */
+	private static Integer year(HttpExchange exchange) {
+		String year = queryParam(exchange, "year");
+		if (year == null) {
+			return null;
+		}
+		try {
+			return Integer.valueOf(year);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format("Invalid year %s.", year));
+		}
+	}
+
+	private static String queryParam(HttpExchange exchange, String name) {
+		String query = exchange.getRequestURI().getQuery();
+		if (query == null) {
+			return null;
+		}
+		for (var param : query.split("&")) {
+			if (param.startsWith(name + "=")) {
+				return param.substring(name.length() + 1);
+			}
+		}
+		return null;
+	}
+
+	private static String contentType(ReportWriter.Format format) {
+		switch (format) {
+		case CSV:
+			return "text/csv; charset=utf-8";
+		case JSON:
+			return "application/json; charset=utf-8";
+		default:
+			return "text/plain; charset=utf-8";
+		}
+	}
+
+	private void health(HttpExchange exchange) throws IOException {
+		sendText(exchange, 200, "OK");
+	}
+
+	/**
+	 * Send a short plain text answer, and close the exchange.
+	 */
+	private static void sendText(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (var out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package com.github.yungene.taxcalc;
 
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.Objects;
 
 /**
@@ -9,6 +10,7 @@ import java.util.Objects;
  * as well.
  */
 class Transaction {
+	public static final int MINUTES_PER_DAY = 24 * 60;
 
 	public static long euroToMil(long euros, long cents) {
 		return 10000 * euros + 100 * cents;
@@ -23,11 +25,60 @@ class Transaction {
 	}
 
 	public static String milToString(long mil) {
-		return String.format("%d.%d", getEurosFromMil(mil), getCentsFromMil(mil));
+		char[] buf = new char[MAX_FIXED_LENGTH];
+		return new String(buf, 0, formatMil(mil, 2, buf, 0));
+	}
+
+	// Longest output of formatFixed: sign, 19 digits and the decimal point.
+	static final int MAX_FIXED_LENGTH = 21;
+	private static final long[] POWERS_OF_TEN = { 1, 10, 100, 1000, 10000 };
+
+	/**
+	 * Write mil as euros with the given number of decimals, at most 4, into buf.
+	 * Digits beyond that are truncated, same as for cents.
+	 *
+	 * @return position in buf after the last char written.
+	 */
+	static int formatMil(long mil, int decimals, char[] buf, int pos) {
+		return formatFixed(mil / POWERS_OF_TEN[4 - decimals], decimals, buf, pos);
+	}
+
+	/**
+	 * Write value, in units of 10^-decimals, into buf without allocating. E.g.
+	 * 12345 with 2 decimals is written as 123.45.
+	 *
+	 * @return position in buf after the last char written.
+	 */
+	static int formatFixed(long value, int decimals, char[] buf, int pos) {
+		// Digits are taken from the negative value, so Long.MIN_VALUE works too.
+		long n = value;
+		if (n < 0) {
+			buf[pos++] = '-';
+		} else {
+			n = -n;
+		}
+		int digits = decimals + 1;
+		for (long rest = n / POWERS_OF_TEN[decimals] / 10; rest != 0; rest /= 10) {
+			digits++;
+		}
+		int end = pos + digits + (decimals > 0 ? 1 : 0);
+		int i = end;
+		for (int digit = 0; digit < digits; digit++) {
+			if (digit == decimals && decimals > 0) {
+				buf[--i] = '.';
+			}
+			buf[--i] = (char) ('0' - n % 10);
+			n /= 10;
+		}
+		return end;
 	}
 
 	private boolean isBuy;
 	private LocalDateTime datetime;
+	// Same time as datetime, precomputed for matching. Degiro only gives the time
+	// to the minute, so anything below a minute is ignored.
+	private long epochMinute;
+	private long epochDay;
 	private Stock stock;
 	private int quantity;
 	private long euroPrice;
@@ -49,6 +100,8 @@ class Transaction {
 		}
 		this.isBuy = isBuy;
 		this.datetime = datetime;
+		this.epochMinute = Math.floorDiv(datetime.toEpochSecond(ZoneOffset.UTC), 60);
+		this.epochDay = datetime.toLocalDate().toEpochDay();
 		this.stock = stock;
 		this.quantity = quantity;
 
@@ -70,6 +123,20 @@ class Transaction {
 		return datetime;
 	}
 
+	/**
+	 * @return minutes since 1970-01-01T00:00, in the same local time as datetime.
+	 */
+	public long getEpochMinute() {
+		return this.epochMinute;
+	}
+
+	/**
+	 * @return days since 1970-01-01, in the same local time as datetime.
+	 */
+	public long getEpochDay() {
+		return this.epochDay;
+	}
+
 	public Stock getStock() {
 		return stock;
 	}
@@ -102,6 +169,22 @@ class Transaction {
 	public int getSeqNum() {
 		return seqNum;
 	}
+
+	/**
+	 * Only for parsers that number transactions after they are created, e.g.
+	 * when parts of a file are parsed in parallel.
+	 */
+	void setSeqNum(int seqNum) {
+		this.seqNum = seqNum;
+	}
+
+	/**
+	 * Only for parsers that swap the stock for the one interned in their
+	 * {@link IsinTable}, after the transaction was created.
+	 */
+	void setStock(Stock stock) {
+		this.stock = stock;
+	}
 	
 //	public String prettyPrint() {
 //		StringBuilder sb = new StringBuilder("");
@@ -127,6 +210,11 @@ class Transaction {
 				this.orderId, this.seqNum);
 	}
 
+	public Transaction copyWithNewSeqNum(int seqNum) {
+		return new Transaction(this.isBuy, this.datetime, this.stock, this.quantity, this.euroPrice,
+				this.euroTotalPrice, this.orderId, seqNum);
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 		if (this == obj)
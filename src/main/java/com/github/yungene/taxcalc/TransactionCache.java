@@ -0,0 +1,255 @@
+package com.github.yungene.taxcalc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary cache of the parsed transactions of a CSV file, written next to it.
+ *
+ * The cache is keyed by the SHA-256 of the broker of the layout and the CSV
+ * content, so it is only used if the CSV did not change since and is parsed
+ * with the same layout. Transactions are stored by column, money as
+ * fixed point and ISINs interned into a table of stocks:
+ *
+ * <pre>
+ * header:  magic, version, SHA-256 key, row count, skipped row count,
+ *          stock count
+ * columns: epoch minute (long), euro price (long), euro total price (long),
+ *          stock id (int), quantity (int), is buy (byte)
+ * stocks:  ISIN and product name of every stock id
+ * orders:  end offset of the order ID of every row (int), order IDs (UTF-8)
+ * </pre>
+ *
+ * Sequence numbers are not stored, rows are numbered in order when read, same
+ * as {@link TransactionsParser#parseFile(File)} would do.
+ */
+class TransactionCache {
+	static final String SUFFIX = ".txcache";
+	private static final int MAGIC = 0x54584331; // TXC1
+	// 2: files with corporate actions are not cached, earlier caches may be of
+	// one.
+	// 3: skipped rows in the header and the broker in the key.
+	private static final int VERSION = 3;
+	private static final int HASH_LENGTH = 32;
+	private static final int HEADER_LENGTH = 4 + 4 + HASH_LENGTH + 4 + 4 + 4;
+	// Bytes per row in the fixed size columns.
+	private static final int ROW_LENGTH = 8 + 8 + 8 + 4 + 4 + 1;
+
+	static File cacheFileFor(File file) {
+		return new File(file.getPath() + SUFFIX);
+	}
+
+	/**
+	 * Transactions read from the cache, with the number of rows that were skipped
+	 * when the CSV was parsed.
+	 */
+	static final class Cached {
+		final List<Transaction> transactions;
+		final int skippedRows;
+
+		Cached(List<Transaction> transactions, int skippedRows) {
+			this.transactions = transactions;
+			this.skippedRows = skippedRows;
+		}
+	}
+
+	/**
+	 * @return SHA-256 of the broker of the layout and the content of the file.
+	 */
+	static byte[] key(File file, CsvLayout layout) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 is not available.", e);
+		}
+		digest.update(layout.broker.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			for (long start = 0; start < size; start += TransactionsParser.MAX_MAPPED_SEGMENT) {
+				long length = Math.min(TransactionsParser.MAX_MAPPED_SEGMENT, size - start);
+				digest.update(channel.map(FileChannel.MapMode.READ_ONLY, start, length));
+			}
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Read the cached transactions, if the cache exists and was written for the
+	 * given key. Stocks are interned into isins.
+	 *
+	 * @return transactions in the order of the CSV, or null if there is no valid
+	 *         cache.
+	 */
+	static Cached read(File cacheFile, byte[] hash, IsinTable isins, int firstSeqNum) throws IOException {
+		if (!cacheFile.isFile()) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+				return null;
+			}
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+				return null;
+			}
+			byte[] cachedHash = new byte[HASH_LENGTH];
+			buf.get(cachedHash);
+			if (!Arrays.equals(hash, cachedHash)) {
+				return null;
+			}
+			int rows = buf.getInt();
+			int skippedRows = buf.getInt();
+			int stockCount = buf.getInt();
+			if (rows < 0 || skippedRows < 0 || stockCount < 0 || (long) rows * (ROW_LENGTH + 4) > size - HEADER_LENGTH) {
+				return null;
+			}
+			return new Cached(readBody(buf, rows, stockCount, isins, firstSeqNum), skippedRows);
+		} catch (RuntimeException e) {
+			// Truncated or otherwise broken cache, parse the CSV instead.
+			return null;
+		}
+	}
+
+	private static List<Transaction> readBody(ByteBuffer buf, int rows, int stockCount, IsinTable isins,
+			int firstSeqNum) {
+		int minutes = buf.position();
+		int prices = minutes + 8 * rows;
+		int totalPrices = prices + 8 * rows;
+		int stockIds = totalPrices + 8 * rows;
+		int quantities = stockIds + 4 * rows;
+		int buys = quantities + 4 * rows;
+		buf.position(buys + rows);
+
+		Stock[] stocks = new Stock[stockCount];
+		for (int i = 0; i < stockCount; i++) {
+			String isin = readString(buf);
+			stocks[i] = isins.intern(isin, readString(buf));
+		}
+		int orderEnds = buf.position();
+		int orderIds = orderEnds + 4 * rows;
+		byte[] orderBytes = new byte[buf.limit() - orderIds];
+		buf.position(orderIds);
+		buf.get(orderBytes);
+
+		List<Transaction> transactions = new ArrayList<>(rows);
+		int orderStart = 0;
+		for (int row = 0; row < rows; row++) {
+			var datetime = LocalDateTime.ofEpochSecond(buf.getLong(minutes + 8 * row) * 60, 0, ZoneOffset.UTC);
+			int orderEnd = buf.getInt(orderEnds + 4 * row);
+			var orderId = new String(orderBytes, orderStart, orderEnd - orderStart, StandardCharsets.UTF_8);
+			orderStart = orderEnd;
+			transactions.add(new Transaction(buf.get(buys + row) != 0, datetime,
+					stocks[buf.getInt(stockIds + 4 * row)], buf.getInt(quantities + 4 * row),
+					buf.getLong(prices + 8 * row), buf.getLong(totalPrices + 8 * row), orderId, firstSeqNum + row));
+		}
+		return transactions;
+	}
+
+	/**
+	 * Write the cache for the given key. The file is replaced in a single move,
+	 * so readers never see half of it.
+	 */
+	static void write(File cacheFile, byte[] hash, List<Transaction> transactions, int skippedRows)
+			throws IOException {
+		int rows = transactions.size();
+		// Stocks of the transactions get ids of their own, in order of first
+		// appearance.
+		var table = new IsinTable();
+		int[] stockIds = new int[rows];
+		byte[][] orderIds = new byte[rows][];
+		long orderBytes = 0;
+		for (int row = 0; row < rows; row++) {
+			var tx = transactions.get(row);
+			stockIds[row] = table.intern(tx.getStock().getIsin(), tx.getStock().getName()).getId();
+			orderIds[row] = tx.getOrderId().getBytes(StandardCharsets.UTF_8);
+			orderBytes += orderIds[row].length;
+		}
+		List<byte[]> stockStrings = new ArrayList<>();
+		long stockBytes = 0;
+		for (int id = 0; id < table.size(); id++) {
+			var stock = table.get(id);
+			stockStrings.add(stock.getIsin().getBytes(StandardCharsets.UTF_8));
+			stockStrings.add(stock.getName().getBytes(StandardCharsets.UTF_8));
+			stockBytes += 8 + stockStrings.get(2 * id).length + stockStrings.get(2 * id + 1).length;
+		}
+		long size = HEADER_LENGTH + (long) ROW_LENGTH * rows + stockBytes + 4L * rows + orderBytes;
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException(String.format("Cache of %d transactions would be too large.", rows));
+		}
+
+		var buf = ByteBuffer.allocate((int) size);
+		buf.putInt(MAGIC).putInt(VERSION).put(hash).putInt(rows).putInt(skippedRows).putInt(table.size());
+		for (var tx : transactions) {
+			buf.putLong(tx.getEpochMinute());
+		}
+		for (var tx : transactions) {
+			buf.putLong(tx.getEuroPrice());
+		}
+		for (var tx : transactions) {
+			buf.putLong(tx.getEuroTotalPrice());
+		}
+		for (int row = 0; row < rows; row++) {
+			buf.putInt(stockIds[row]);
+		}
+		for (var tx : transactions) {
+			buf.putInt(tx.getQuantity());
+		}
+		for (var tx : transactions) {
+			buf.put((byte) (tx.isBuy() ? 1 : 0));
+		}
+		for (var bytes : stockStrings) {
+			buf.putInt(bytes.length).put(bytes);
+		}
+		int orderEnd = 0;
+		for (int row = 0; row < rows; row++) {
+			orderEnd += orderIds[row].length;
+			buf.putInt(orderEnd);
+		}
+		for (int row = 0; row < rows; row++) {
+			buf.put(orderIds[row]);
+		}
+		buf.flip();
+
+		Path target = cacheFile.toPath();
+		Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), cacheFile.getName(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				while (buf.hasRemaining()) {
+					channel.write(buf);
+				}
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private static String readString(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.getInt()];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
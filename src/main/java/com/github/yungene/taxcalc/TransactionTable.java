@@ -0,0 +1,173 @@
+package com.github.yungene.taxcalc;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Transactions as primitive columns, one slot per row, for histories too
+ * large to keep as Transaction objects. A row takes 36 bytes, where a
+ * Transaction with its LocalDateTime and order ID takes well over 100.
+ *
+ * Order IDs are not kept, they are most of the memory of a parsed export and
+ * matching never looks at them. Stocks are kept as their id in the
+ * {@link IsinTable} of the table, so they all have to come from it. Rows are
+ * in the order they were added, see {@link TableTaxEngine} for matching them.
+ */
+class TransactionTable {
+	private static final int DEFAULT_CAPACITY = 1024;
+	// Largest array the JVM reliably hands out.
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+	// Order ID of the transactions made from rows.
+	static final String NO_ORDER_ID = "";
+
+	final IsinTable isins;
+	private long[] epochMinutes;
+	private int[] stockIds;
+	// Sells are stored as ~quantity, so a sell of 0 shares is still a sell.
+	private int[] quantities;
+	private long[] euroPrices;
+	private long[] euroTotalPrices;
+	private int[] seqNums;
+	private int size;
+	// Stock of the last row added, already checked against the IsinTable.
+	private Stock lastStock;
+
+	TransactionTable(IsinTable isins) {
+		this(isins, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param initialCapacity expected number of rows, e.g. from the size of the
+	 *                        file.
+	 */
+	TransactionTable(IsinTable isins, int initialCapacity) {
+		int capacity = Math.max(initialCapacity, 16);
+		this.isins = isins;
+		this.epochMinutes = new long[capacity];
+		this.stockIds = new int[capacity];
+		this.quantities = new int[capacity];
+		this.euroPrices = new long[capacity];
+		this.euroTotalPrices = new long[capacity];
+		this.seqNums = new int[capacity];
+		this.size = 0;
+	}
+
+	/**
+	 * @return a table with the transactions, in the same order.
+	 */
+	static TransactionTable of(List<Transaction> transactions, IsinTable isins) {
+		var table = new TransactionTable(isins, transactions.size());
+		for (var tx : transactions) {
+			table.add(tx);
+		}
+		return table;
+	}
+
+	void add(Transaction tx) {
+		this.add(tx.getEpochMinute(), tx.getStock(), tx.isBuy(), tx.getQuantity(), tx.getEuroPrice(),
+				tx.getEuroTotalPrice(), tx.getSeqNum());
+	}
+
+	/**
+	 * @param stock    interned by the IsinTable of this table.
+	 * @param quantity number of shares, >= 0 for sells too.
+	 */
+	void add(long epochMinute, Stock stock, boolean isBuy, int quantity, long euroPrice, long euroTotalPrice,
+			int seqNum) {
+		int id = stock.getId();
+		if (stock != this.lastStock) {
+			if (id < 0 || id >= this.isins.size() || this.isins.get(id) != stock) {
+				throw new IllegalArgumentException(String.format("%s is not from the IsinTable of the table.", stock));
+			}
+			this.lastStock = stock;
+		}
+		if (quantity < 0 || euroPrice < 0 || euroTotalPrice < 0) {
+			throw new IllegalArgumentException("Some arguments supplied are < 0. Please investigate.");
+		}
+		if (this.size == this.seqNums.length) {
+			this.grow();
+		}
+		int row = this.size++;
+		this.epochMinutes[row] = epochMinute;
+		this.stockIds[row] = id;
+		this.quantities[row] = isBuy ? quantity : ~quantity;
+		this.euroPrices[row] = euroPrice;
+		this.euroTotalPrices[row] = euroTotalPrice;
+		this.seqNums[row] = seqNum;
+	}
+
+	private void grow() {
+		int capacity = this.seqNums.length;
+		if (capacity == MAX_CAPACITY) {
+			throw new IllegalStateException(String.format("Table can't hold more than %d rows.", MAX_CAPACITY));
+		}
+		// Half again rather than double, the columns of a large table are large.
+		int newCapacity = (int) Math.min((long) capacity + (capacity >> 1), MAX_CAPACITY);
+		this.epochMinutes = Arrays.copyOf(this.epochMinutes, newCapacity);
+		this.stockIds = Arrays.copyOf(this.stockIds, newCapacity);
+		this.quantities = Arrays.copyOf(this.quantities, newCapacity);
+		this.euroPrices = Arrays.copyOf(this.euroPrices, newCapacity);
+		this.euroTotalPrices = Arrays.copyOf(this.euroTotalPrices, newCapacity);
+		this.seqNums = Arrays.copyOf(this.seqNums, newCapacity);
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	long epochMinute(int row) {
+		return this.epochMinutes[row];
+	}
+
+	long epochDay(int row) {
+		return Math.floorDiv(this.epochMinutes[row], Transaction.MINUTES_PER_DAY);
+	}
+
+	int stockId(int row) {
+		return this.stockIds[row];
+	}
+
+	boolean isBuy(int row) {
+		return this.quantities[row] >= 0;
+	}
+
+	int quantity(int row) {
+		int quantity = this.quantities[row];
+		return quantity >= 0 ? quantity : ~quantity;
+	}
+
+	long euroPrice(int row) {
+		return this.euroPrices[row];
+	}
+
+	long euroTotalPrice(int row) {
+		return this.euroTotalPrices[row];
+	}
+
+	int seqNum(int row) {
+		return this.seqNums[row];
+	}
+
+	/**
+	 * @return the row as a transaction, without its order ID.
+	 */
+	Transaction toTransaction(int row) {
+		var datetime = LocalDateTime.ofEpochSecond(this.epochMinutes[row] * 60, 0, ZoneOffset.UTC);
+		return new Transaction(this.isBuy(row), datetime, this.isins.get(this.stockIds[row]), this.quantity(row),
+				this.euroPrices[row], this.euroTotalPrices[row], NO_ORDER_ID, this.seqNums[row]);
+	}
+
+	/**
+	 * @return all the rows as transactions, see {@link #toTransaction(int)}.
+	 */
+	List<Transaction> toTransactions() {
+		List<Transaction> transactions = new ArrayList<>(this.size);
+		for (int row = 0; row < this.size; row++) {
+			transactions.add(this.toTransaction(row));
+		}
+		return transactions;
+	}
+}
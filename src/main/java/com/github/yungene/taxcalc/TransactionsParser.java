@@ -2,103 +2,641 @@ package com.github.yungene.taxcalc;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.Reader;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+import com.github.yungene.taxcalc.CsvLayout.Column;
 
 class TransactionsParser {
 	final static String COMMA_DELIMETER = ",";
+	// Files are mapped in parts of at most this size, a single mapping can't be
+	// larger than 2GB.
+	final static int MAX_MAPPED_SEGMENT = 1 << 30;
+	// Smaller files are not worth splitting for parallel parsing.
+	final static long MIN_PARALLEL_CHUNK = 1 << 20;
+	// Header is looked for in this many bytes at the start of the file.
+	private final static int MAX_HEADER_SIZE = 64 << 10;
 
-	/**
-	 * Ugly way of mapping columns to indices.
-	 */
-	static class DegiroCSVMapping {
-		final static int DATE = 0;
-		final static int TIME = 1;
-		final static int PRODUCT_NAME = 2;
-		final static int ISIN = 3;
-		final static int QUANTITY = 6;
-		final static int VALUE_EUR = 11;
-		final static int FEES_EUR = 14;
-		final static int TOTAL_VALUE_EUR = 15;
-		final static int ORDER_ID = 16;
-	}
+	// Columns parseFileToTable decodes.
+	private final static Column[] TABLE_COLUMNS = { Column.DATE, Column.TIME, Column.PRODUCT_NAME, Column.ISIN,
+			Column.QUANTITY, Column.VALUE_EUR, Column.TOTAL_VALUE_EUR };
+	// Columns of the legs of corporate actions, which have no order ID.
+	private final static Column[] LEG_COLUMNS = { Column.DATE, Column.TIME, Column.PRODUCT_NAME, Column.ISIN,
+			Column.QUANTITY };
 
 	private int seqNum;
+	// All the transactions parsed here share one Stock per ISIN, until
+	// reset(IsinTable).
+	IsinTable isins;
+	final CsvLayout layout;
+	// Columns of parseLine, from the last header it saw.
+	private int[] lineColumns;
+	private int skippedRows;
+	// Skipped rows that are legs of corporate actions, in file order.
+	private final List<Transaction> actionLegs;
+	// Byte parser for parseFile, kept so that its buffers are reused.
+	private MappedCsvParser mappedParser;
 
 	TransactionsParser() {
+		this(new IsinTable());
+	}
+
+	TransactionsParser(IsinTable isins) {
+		this(isins, CsvLayout.DEGIRO);
+	}
+
+	TransactionsParser(IsinTable isins, CsvLayout layout) {
+		this.seqNum = 0;
+		this.isins = isins;
+		this.layout = layout;
+		this.lineColumns = layout.defaultColumns();
+		this.skippedRows = 0;
+		this.actionLegs = new ArrayList<>();
+		this.mappedParser = null;
+	}
+
+	/**
+	 * Start sequence numbers from 0 again, e.g. before parsing the file of
+	 * another account. Buffers and interned stocks are kept.
+	 */
+	void reset() {
 		this.seqNum = 0;
+		this.skippedRows = 0;
+		this.actionLegs.clear();
+	}
+
+	/**
+	 * Same as {@link #reset()}, but the stocks of the next files are interned in
+	 * isins, e.g. a table of their own for every account, so that product names
+	 * of one account don't show up in the reports of another.
+	 */
+	void reset(IsinTable isins) {
+		this.reset();
+		this.isins = isins;
+		if (this.mappedParser != null) {
+			this.mappedParser.resetStocks(isins);
+		}
+	}
+
+	/**
+	 * @return number of rows that were not blank, but were not transactions
+	 *         either, e.g. stock splits without an order ID.
+	 */
+	int getSkippedRows() {
+		return this.skippedRows;
+	}
+
+	/**
+	 * @return splits, reverse splits and ISIN changes of the files parsed so
+	 *         far, from the skipped rows that are their legs, in chronological
+	 *         order. Files read from the cache have none, see
+	 *         {@link #parseFileCached(File, boolean)}.
+	 */
+	List<CorporateAction> getCorporateActions() {
+		return CorporateAction.pair(this.actionLegs);
+	}
+
+	private MappedCsvParser mappedParser() {
+		if (this.mappedParser == null) {
+			this.mappedParser = new MappedCsvParser(this.isins, this.layout, null);
+		}
+		// Every file has its own header.
+		this.mappedParser.resetColumns();
+		return this.mappedParser;
+	}
+
+	private void addSkippedRows(MappedCsvParser parser) {
+		this.skippedRows += parser.skippedRows;
+		parser.skippedRows = 0;
+		this.actionLegs.addAll(parser.actionLegs);
+		parser.actionLegs.clear();
 	}
 
 	/**
 	 * Sequence number does not make much sense if this method is called multiple
 	 * times.
 	 * 
+	 * The file is memory mapped and tokenized as bytes, see
+	 * {@link MappedCsvParser}.
+	 * 
 	 * @param file
 	 * @return
 	 * @throws IOException
 	 */
 	public List<Transaction> parseFile(File file) throws IOException {
-		try (FileReader fr = new FileReader(file)) {
-			return parseCsv(fr);
+		List<Transaction> result = new ArrayList<Transaction>();
+		this.parseFile(file, result::add);
+		return result;
+	}
+
+	void parseFile(File file, Consumer<Transaction> sink) throws IOException {
+		this.parseFile(file, MAX_MAPPED_SEGMENT, sink);
+	}
+
+	void parseFile(File file, int segmentSize, Consumer<Transaction> sink) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			var parser = this.mappedParser();
+			var chunk = new Chunk(0, channel.size(), true);
+			this.seqNum = chunk.parse(channel, parser, segmentSize, this.seqNum, sink);
+			this.addSkippedRows(parser);
+		}
+	}
+
+	/**
+	 * Same as {@link #parseFile(File)}, but into the columns of a table. No
+	 * Transaction objects are made, and order IDs are not decoded.
+	 */
+	TransactionTable parseFileToTable(File file) throws IOException {
+		return this.parseFileToTable(file, MAX_MAPPED_SEGMENT);
+	}
+
+	TransactionTable parseFileToTable(File file, int segmentSize) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			var parser = this.mappedParser();
+			// Rows of a Degiro export are about 150 bytes.
+			var table = new TransactionTable(this.isins, (int) Math.min(channel.size() / 150, Integer.MAX_VALUE - 8));
+			int[] seqNum = { this.seqNum };
+			new Chunk(0, channel.size(), true).scan(channel, segmentSize,
+					(buf, lastSegment) -> parser.scan(buf, lastSegment, TABLE_COLUMNS, row -> {
+						int quantity = row.quantity();
+						table.add(row.epochMinute(), row.stock(), quantity >= 0, Math.abs(quantity),
+								perShare(row.euroValue(), quantity), perShare(row.euroTotalValue(), quantity),
+								seqNum[0]++);
+					}));
+			this.seqNum = seqNum[0];
+			this.addSkippedRows(parser);
+			return table;
+		}
+	}
+
+	/**
+	 * Same as {@link #parseFile(File)}, but only the transactions the report of
+	 * one year can depend on, see {@link TaxEngine#calculateTaxYear(int)}.
+	 *
+	 * Only the date and time of every row are decoded first. Rows after the year
+	 * and the four weeks after it are left at that, the rest of their fields are
+	 * never decoded. Sequence numbers are the same as for
+	 * {@link #parseFile(File)}, so the report is the same too.
+	 */
+	List<Transaction> parseFileForYear(File file, int year) throws IOException {
+		return this.parseFileForYear(file, year, MAX_MAPPED_SEGMENT);
+	}
+
+	List<Transaction> parseFileForYear(File file, int year, int segmentSize) throws IOException {
+		long cutoff = StockState.fourWeeksAfter(LocalDate.of(year, 12, 31).toEpochDay());
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			var parser = this.mappedParser();
+			List<Transaction> result = new ArrayList<Transaction>();
+			int[] seqNum = { this.seqNum };
+			new Chunk(0, channel.size(), true).scan(channel, segmentSize,
+					(buf, lastSegment) -> parser.scan(buf, lastSegment, Column.values(), row -> {
+						if (row.epochMinute() < cutoff) {
+							result.add(row.transaction(seqNum[0]));
+						}
+						seqNum[0]++;
+					}));
+			this.seqNum = seqNum[0];
+			this.addSkippedRows(parser);
+			return result;
+		}
+	}
+
+	/**
+	 * Same as {@link #parseFile(File)}, for a file that is already in memory,
+	 * e.g. an upload. Parses from the position to the limit of buf.
+	 */
+	List<Transaction> parseBuffer(ByteBuffer buf) {
+		var parser = this.mappedParser();
+		skipByteOrderMark(buf);
+		List<Transaction> result = new ArrayList<Transaction>();
+		this.seqNum = parser.parse(buf, this.seqNum, true, result::add);
+		this.addSkippedRows(parser);
+		return result;
+	}
+
+	/**
+	 * Same as {@link #parseFile(File)}, but transactions are read from the binary
+	 * cache next to the file if the file did not change since the cache was
+	 * written, see {@link TransactionCache}. Otherwise the file is parsed, in
+	 * parallel if asked to, and the cache is written for the next time.
+	 *
+	 * The cache only has transactions and the count of skipped rows, so it is not
+	 * written for a file with corporate actions, and such a file is parsed every
+	 * time.
+	 */
+	public List<Transaction> parseFileCached(File file, boolean parallel) throws IOException {
+		byte[] hash = TransactionCache.key(file, this.layout);
+		File cacheFile = TransactionCache.cacheFileFor(file);
+		var cached = TransactionCache.read(cacheFile, hash, this.isins, this.seqNum);
+		if (cached != null) {
+			this.seqNum += cached.transactions.size();
+			this.skippedRows += cached.skippedRows;
+			return cached.transactions;
+		}
+		int legs = this.actionLegs.size();
+		int skipped = this.skippedRows;
+		List<Transaction> result = parallel ? this.parseFileParallel(file) : this.parseFile(file);
+		if (this.actionLegs.size() > legs) {
+			return result;
+		}
+		try {
+			TransactionCache.write(cacheFile, hash, result, this.skippedRows - skipped);
+		} catch (IOException e) {
+			System.err.println(String.format("Could not write cache %s: %s", cacheFile, e));
+		}
+		return result;
+	}
+
+	/**
+	 * Same as {@link #parseFile(File)}, but the file is split into chunks that
+	 * are parsed on the common fork-join pool.
+	 */
+	public List<Transaction> parseFileParallel(File file) throws IOException {
+		return this.parseFileParallel(file, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Same as {@link #parseFile(File)}, but the file is split into chunks that
+	 * are parsed on the given pool. Sequence numbers are the same as for
+	 * {@link #parseFile(File)}.
+	 */
+	public List<Transaction> parseFileParallel(File file, ForkJoinPool pool) throws IOException {
+		long chunkSize = Math.max(MIN_PARALLEL_CHUNK, file.length() / (4L * pool.getParallelism()));
+		return this.parseFileParallel(file, pool, Math.min(chunkSize, MAX_MAPPED_SEGMENT), MAX_MAPPED_SEGMENT);
+	}
+
+	List<Transaction> parseFileParallel(File file, ForkJoinPool pool, long chunkSize, int segmentSize)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// Chunks after the first don't see the header.
+			int[] columns = this.readHeaderColumns(channel);
+			List<Chunk> chunks = splitIntoChunks(channel, chunkSize);
+			List<ForkJoinTask<?>> tasks = new ArrayList<>();
+			for (var chunk : chunks) {
+				tasks.add(pool.submit(() -> chunk.parseCollecting(channel, segmentSize, this.layout, columns)));
+			}
+			List<Transaction> result = new ArrayList<Transaction>();
+			// Where the rows of the next chunk have to start. Chunk boundaries are right
+			// after a newline, but that newline could be inside a quoted field. Then the
+			// chunk before does not end at the boundary, and the next chunk is parsed
+			// again from where it did end.
+			long expectedStart = 0;
+			for (int i = 0; i < chunks.size(); i++) {
+				var chunk = chunks.get(i);
+				tasks.get(i).join();
+				if (chunk.start != expectedStart) {
+					chunk = new Chunk(expectedStart, chunk.end, chunk.last);
+					chunk.parseCollecting(channel, segmentSize, this.layout, columns);
+				}
+				if (chunk.error instanceof IOException) {
+					throw (IOException) chunk.error;
+				} else if (chunk.error != null) {
+					throw (RuntimeException) chunk.error;
+				}
+				// Chunks intern stocks into their own tables, so that ids and names are
+				// by first appearance in the file, same as for a sequential parse.
+				Stock[] stocks = new Stock[chunk.isins.size()];
+				for (int id = 0; id < stocks.length; id++) {
+					var stock = chunk.isins.get(id);
+					stocks[id] = this.isins.intern(stock.getIsin(), stock.getName());
+				}
+				for (var transaction : chunk.transactions) {
+					transaction.setSeqNum(this.seqNum++);
+					transaction.setStock(stocks[transaction.getStock().getId()]);
+					result.add(transaction);
+				}
+				for (var leg : chunk.actionLegs) {
+					leg.setStock(stocks[leg.getStock().getId()]);
+					this.actionLegs.add(leg);
+				}
+				this.skippedRows += chunk.skippedRows;
+				expectedStart = chunk.stop;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * @return columns of the header at the start of the file, or where the layout
+	 *         puts them if there is no header.
+	 */
+	private int[] readHeaderColumns(FileChannel channel) throws IOException {
+		long size = channel.size();
+		var buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAX_HEADER_SIZE));
+		skipByteOrderMark(buf);
+		return this.mappedParser().readHeader(buf, size <= MAX_HEADER_SIZE);
+	}
+
+	/**
+	 * Split the file into chunks of about chunkSize that start right after a
+	 * newline.
+	 */
+	private static List<Chunk> splitIntoChunks(FileChannel channel, long chunkSize) throws IOException {
+		long size = channel.size();
+		List<Chunk> chunks = new ArrayList<>();
+		var window = ByteBuffer.allocate(4096);
+		long start = 0;
+		while (start < size) {
+			long end = size;
+			long pos = start + chunkSize;
+			search: while (pos < size) {
+				window.clear();
+				int n = channel.read(window, pos);
+				for (int i = 0; i < n; i++) {
+					if (window.get(i) == '\n') {
+						end = pos + i + 1;
+						break search;
+					}
+				}
+				pos += n;
+			}
+			chunks.add(new Chunk(start, end, end == size));
+			start = end;
+		}
+		return chunks;
+	}
+
+	/**
+	 * Byte range [start, end) of a file. Rows are parsed if they start in the
+	 * range, and, unless the chunk is the last one, end with a newline within the
+	 * range.
+	 */
+	private static class Chunk {
+		final long start;
+		final long end;
+		final boolean last;
+		// Position after the last parsed row.
+		long stop;
+		List<Transaction> transactions;
+		IsinTable isins;
+		int skippedRows;
+		List<Transaction> actionLegs;
+		Exception error;
+
+		Chunk(long start, long end, boolean last) {
+			this.start = start;
+			this.end = end;
+			this.last = last;
+			this.stop = start;
+		}
+
+		/**
+		 * Parse the chunk in mapped segments of at most segmentSize bytes.
+		 *
+		 * @return sequence number for the next transaction.
+		 */
+		int parse(FileChannel channel, MappedCsvParser parser, int segmentSize, int seqNum,
+				Consumer<Transaction> sink) throws IOException {
+			int[] next = { seqNum };
+			this.scan(channel, segmentSize, (buf, lastSegment) -> next[0] = parser.parse(buf, next[0], lastSegment, sink));
+			return next[0];
+		}
+
+		/**
+		 * Map the chunk in segments of at most segmentSize bytes, and hand them to
+		 * the visitor. The visitor leaves the position of a segment after the last
+		 * row it took, and the next segment starts there.
+		 */
+		void scan(FileChannel channel, int segmentSize, SegmentVisitor visitor) throws IOException {
+			long rowStart = this.start;
+			while (rowStart < this.end) {
+				long length = Math.min(segmentSize, this.end - rowStart);
+				boolean lastSegment = this.last && rowStart + length == this.end;
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, rowStart, length);
+				if (rowStart == 0) {
+					skipByteOrderMark(buf);
+				}
+				int firstRow = buf.position();
+				visitor.visit(buf, lastSegment);
+				if (buf.position() == firstRow) {
+					if (rowStart + length < this.end) {
+						throw new IOException(
+								String.format("Row at byte %d is longer than %d bytes.", rowStart, segmentSize));
+					}
+					// Last row continues after the end of the chunk.
+					break;
+				}
+				// Row that did not fit is parsed again from the next segment.
+				rowStart += buf.position();
+			}
+			this.stop = rowStart;
+		}
+
+		/**
+		 * Parse the chunk into its list of transactions, with its own stocks. Errors
+		 * are kept, as they are expected if the chunk does not start at a row.
+		 */
+		void parseCollecting(FileChannel channel, int segmentSize, CsvLayout layout, int[] columns) {
+			this.transactions = new ArrayList<>();
+			this.isins = new IsinTable();
+			var parser = new MappedCsvParser(this.isins, layout, columns);
+			try {
+				this.parse(channel, parser, segmentSize, 0, this.transactions::add);
+			} catch (IOException | RuntimeException e) {
+				this.error = e;
+			}
+			this.skippedRows = parser.skippedRows;
+			this.actionLegs = parser.actionLegs;
+		}
+	}
+
+	private interface SegmentVisitor {
+		void visit(ByteBuffer segment, boolean lastSegment);
+	}
+
+	private static void skipByteOrderMark(ByteBuffer buf) {
+		int pos = buf.position();
+		if (buf.limit() - pos >= 3 && buf.get(pos) == (byte) 0xEF && buf.get(pos + 1) == (byte) 0xBB
+				&& buf.get(pos + 2) == (byte) 0xBF) {
+			buf.position(pos + 3);
 		}
 	}
 
 	List<Transaction> parseCsv(Reader in) throws IOException {
 		List<Transaction> result = new ArrayList<Transaction>();
+		this.parseCsv(in, result::add);
+		return result;
+	}
+
+	/**
+	 * Same as {@link #parseCsv(Reader)}, but passes every transaction to sink as
+	 * soon as it is parsed, instead of collecting them into a list.
+	 */
+	void parseCsv(Reader in, Consumer<Transaction> sink) throws IOException {
+		this.lineColumns = this.layout.defaultColumns();
 		try (BufferedReader br = new BufferedReader(in)) {
 			String line;
 			while ((line = br.readLine()) != null) {
-				String[] values = line.split(COMMA_DELIMETER);
-				// splits don't have order ID
-				if (values.length >= 17) {
-					if (values[0].equals("Date")) {
-						// Skip the first title row if it exists
-						continue;
-					}
+				Transaction transaction = this.parseLine(line, seqNum);
+				if (transaction != null) {
+					seqNum++;
+					sink.accept(transaction);
+				}
+			}
+		}
+	}
 
-					int[] dateVals = Arrays.stream(values[DegiroCSVMapping.DATE].split("-")).mapToInt(Integer::parseInt)
-							.toArray();
-					int[] timeVals = Arrays.stream(values[DegiroCSVMapping.TIME].split(":")).mapToInt(Integer::parseInt)
-							.toArray();
-					LocalDateTime dt = LocalDateTime.of(dateVals[2], dateVals[1], dateVals[0], timeVals[0],
-							timeVals[1]);
-					String productName = values[DegiroCSVMapping.PRODUCT_NAME];
-					String isin = values[DegiroCSVMapping.ISIN];
-					Stock stock = new Stock(productName, isin);
-					int quantity = Integer.parseInt(values[DegiroCSVMapping.QUANTITY]);
-					boolean isBuy = quantity >= 0;
-					long euroValue = decimalStringToLong(values[DegiroCSVMapping.VALUE_EUR]);
-					/*
-					 * String euroFeesString = values[DegiroCSVMapping.FEES_EUR]; if
-					 * (euroFeesString.isBlank()) { euroFeesString = "0"; }
-					 */
-//					long euroFees = decimalStringToLong(euroFeesString);
-//					if (euroFees > 0) {
-//						throw new RuntimeException(String.format("Fees are > 0 for %s", line));
-//					}
-					long euroTotalValue = decimalStringToLong(values[DegiroCSVMapping.TOTAL_VALUE_EUR]);
-					// We might be losing precision here
-					// We don't have any other way since Degiro only provides price in local
-					// currency, so we can only get it if we are dealing with EUR. Alternatively, we
-					// can use exchange rate, but don't think it's necessarily better.
-					long euroPrice = roundWorstCase(euroValue / quantity, isBuy);
-					long euroTotalPrice = roundWorstCase(euroTotalValue / quantity, isBuy);
-					String orderId = values[DegiroCSVMapping.ORDER_ID];
-					Transaction transaction = new Transaction(isBuy, dt, stock, Math.abs(quantity), Math.abs(euroPrice),
-							Math.abs(euroTotalPrice), orderId, seqNum++);
-					result.add(transaction);
+	/**
+	 * Degiro exports list the newest transactions first. This reads the file from
+	 * the end, so that sink gets transactions in chronological order, without the
+	 * whole file being held in memory.
+	 * 
+	 * Sequence numbers count down from -1 at the end of the file, so they are
+	 * ordered the same way as they would be for {@link #parseFile(File)}.
+	 * 
+	 * @param file
+	 * @param sink
+	 * @throws IOException
+	 */
+	public void parseFileChronologically(File file, Consumer<Transaction> sink) throws IOException {
+		// Header is the last line read, its columns are needed first.
+		this.lineColumns = this.layout.defaultColumns();
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String first = br.readLine();
+			if (first != null) {
+				this.readHeaderLine(first.startsWith("\uFEFF") ? first.substring(1) : first);
+			}
+		}
+		try (ReverseLineReader reader = new ReverseLineReader(file)) {
+			int reverseSeqNum = -1;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Transaction transaction = this.parseLine(line, reverseSeqNum);
+				if (transaction != null) {
+					reverseSeqNum--;
+					sink.accept(transaction);
 				}
 			}
 		}
+	}
 
-		return result;
+	/**
+	 * Take the columns from the line if it is a header, i.e. has the name of the
+	 * date column.
+	 *
+	 * @return whether the line is a header.
+	 */
+	private boolean readHeaderLine(String line) {
+		List<String> header = Arrays.asList(line.split(COMMA_DELIMETER));
+		for (var name : header) {
+			if (this.layout.isHeaderDate(name)) {
+				this.lineColumns = this.layout.resolve(header);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return transaction in the line, or null if the line is not a transaction.
+	 */
+	Transaction parseLine(String line, int seqNum) {
+		int[] columns = this.lineColumns;
+		String[] values = line.split(COMMA_DELIMETER);
+		int date = columns[Column.DATE.ordinal()];
+		if (date < values.length && !values[date].isEmpty() && !Character.isDigit(values[date].charAt(0))
+				&& this.readHeaderLine(line)) {
+			return null;
+		}
+		// splits don't have order ID
+		if (values.length < CsvLayout.fieldsNeeded(columns, Column.values())
+				|| values[columns[Column.ORDER_ID.ordinal()]].isEmpty()) {
+			if (!line.isEmpty()) {
+				this.skippedRows++;
+				this.addActionLeg(values);
+			}
+			return null;
+		}
+
+		LocalDateTime dt = this.parseDateTime(values);
+		Stock stock = this.isins.intern(values[columns[Column.ISIN.ordinal()]],
+				values[columns[Column.PRODUCT_NAME.ordinal()]]);
+		int quantity = Integer.parseInt(values[columns[Column.QUANTITY.ordinal()]]);
+		long euroValue = decimalStringToLong(values[columns[Column.VALUE_EUR.ordinal()]]);
+		long euroTotalValue = decimalStringToLong(values[columns[Column.TOTAL_VALUE_EUR.ordinal()]]);
+		String orderId = values[columns[Column.ORDER_ID.ordinal()]];
+		return newTransaction(dt, stock, quantity, euroValue, euroTotalValue, orderId, seqNum);
+	}
+
+	private LocalDateTime parseDateTime(String[] values) {
+		int[] columns = this.lineColumns;
+		int[] dateVals = Arrays.stream(values[columns[Column.DATE.ordinal()]].split(String.valueOf(this.layout.dateSeparator)))
+				.mapToInt(Integer::parseInt).toArray();
+		int[] timeVals = Arrays.stream(values[columns[Column.TIME.ordinal()]].split(":")).mapToInt(Integer::parseInt)
+				.toArray();
+		boolean dayFirst = this.layout.dateOrder == CsvLayout.DateOrder.DAY_MONTH_YEAR;
+		return LocalDateTime.of(dayFirst ? dateVals[2] : dateVals[0], dateVals[1],
+				dayFirst ? dateVals[0] : dateVals[2], timeVals[0], timeVals[1]);
+	}
+
+	/**
+	 * Keep the fields of a skipped line as a leg of a corporate action, if they
+	 * have the date, stock and quantity of one.
+	 */
+	private void addActionLeg(String[] values) {
+		int[] columns = this.lineColumns;
+		if (values.length < CsvLayout.fieldsNeeded(columns, LEG_COLUMNS)) {
+			return;
+		}
+		try {
+			int quantity = Integer.parseInt(values[columns[Column.QUANTITY.ordinal()]]);
+			LocalDateTime dt = this.parseDateTime(values);
+			if (quantity != 0) {
+				Stock stock = this.isins.intern(values[columns[Column.ISIN.ordinal()]],
+						values[columns[Column.PRODUCT_NAME.ordinal()]]);
+				this.actionLegs.add(newActionLeg(dt, stock, quantity));
+			}
+		} catch (IllegalArgumentException | DateTimeException | ArrayIndexOutOfBoundsException e) {
+			// Not a corporate action either.
+		}
+	}
+
+	/**
+	 * @param quantity shares as in the CSV, negative for the shares given up.
+	 * @return leg of a corporate action, as a transaction without prices or
+	 *         order ID, see {@link CorporateAction#pair(List)}.
+	 */
+	static Transaction newActionLeg(LocalDateTime dt, Stock stock, int quantity) {
+		return new Transaction(quantity > 0, dt, stock, Math.abs(quantity), 0, 0, "", 0);
+	}
+
+	/**
+	 * Build the transaction from the decoded fields of a row. Quantity and values
+	 * are signed as in the CSV.
+	 */
+	static Transaction newTransaction(LocalDateTime dt, Stock stock, int quantity, long euroValue, long euroTotalValue,
+			String orderId, int seqNum) {
+		return new Transaction(quantity >= 0, dt, stock, Math.abs(quantity), perShare(euroValue, quantity),
+				perShare(euroTotalValue, quantity), orderId, seqNum);
+	}
+
+	/**
+	 * @return price of a single share from the value of a row, >= 0.
+	 */
+	static long perShare(long euroValue, int quantity) {
+		// We might be losing precision here
+		// We don't have any other way since Degiro only provides price in local
+		// currency, so we can only get it if we are dealing with EUR. Alternatively, we
+		// can use exchange rate, but don't think it's necessarily better.
+		return Math.abs(roundWorstCase(euroValue / quantity, quantity >= 0));
 	}
 
 	static long decimalStringToLong(String val) {
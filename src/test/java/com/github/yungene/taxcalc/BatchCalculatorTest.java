@@ -0,0 +1,92 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class BatchCalculatorTest {
+	final static String buyRow = "08-08-2022,12:00,RYANAIR HOLDINGS PLC,IE00BYTBXV33,IRL,XMSM,20,12.0600,EUR,-241.20,EUR,-241.20,,,-2.50,-243.70,a1";
+	final static String sellRow = "09-10-2022,12:00,RYANAIR HOLDINGS PLC,IE00BYTBXV33,IRL,XMSM,-20,14.0000,EUR,280.00,EUR,280.00,,,-2.50,277.50,a2";
+
+	private static File writeAccount(Path dir, String... rows) throws IOException {
+		Files.createDirectories(dir);
+		File file = dir.resolve("Transactions.csv").toFile();
+		Files.write(file.toPath(), List.of(TransactionsParserTest.degiroHeader, String.join("\n", rows)));
+		return file;
+	}
+
+	private static String expectedReport(File file) throws IOException {
+		var taxEngine = new TaxEngine(new TransactionsParser().parseFile(file));
+		taxEngine.calculateTaxFull();
+		var sb = new StringBuilder();
+		for (var report : taxEngine.reports.values()) {
+			sb.append(report.prettyPrint()).append(System.lineSeparator());
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testBatchDirectory(@TempDir Path tempDir) throws Exception {
+		var fileA = writeAccount(tempDir.resolve("a"), sellRow, buyRow);
+		var fileB = writeAccount(tempDir.resolve("b"), buyRow);
+		// Sell without a buy fails, but does not stop the other files.
+		var fileC = writeAccount(tempDir.resolve("c"), sellRow);
+
+		var inputs = BatchCalculator.listInputs(tempDir.toFile());
+		assertEquals(List.of(fileA, fileB, fileC), inputs);
+		var batch = new BatchCalculator(2);
+		assertEquals(1, batch.run(inputs));
+
+		for (var file : List.of(fileA, fileB)) {
+			var report = BatchCalculator.reportFile(file);
+			assertEquals(new File(file.getParentFile(), "Transactions.report.txt"), report);
+			assertEquals(expectedReport(file), Files.readString(report.toPath(), StandardCharsets.UTF_8));
+		}
+		assertFalse(BatchCalculator.reportFile(fileC).exists());
+		// Reports are not picked up as inputs of the next run.
+		assertEquals(inputs, BatchCalculator.listInputs(tempDir.toFile()));
+	}
+
+	@Test
+	public void testBatchManifest(@TempDir Path tempDir) throws Exception {
+		var fileA = writeAccount(tempDir.resolve("a"), sellRow, buyRow);
+		var fileB = writeAccount(tempDir.resolve("b"), sellRow, buyRow);
+		var manifest = tempDir.resolve("manifest.txt");
+		Files.write(manifest, List.of("# accounts", "a/Transactions.csv", "", fileB.getAbsolutePath()));
+
+		var inputs = BatchCalculator.listInputs(manifest.toFile());
+		assertEquals(List.of(fileA.getAbsoluteFile(), fileB.getAbsoluteFile()), inputs);
+		var batch = new BatchCalculator(1);
+		assertEquals(0, batch.run(inputs));
+		// Same output no matter what the thread parsed before.
+		assertEquals(Files.readString(BatchCalculator.reportFile(fileA).toPath()),
+				Files.readString(BatchCalculator.reportFile(fileB).toPath()));
+		assertTrue(Files.readString(BatchCalculator.reportFile(fileB).toPath()).contains("seqNum=0"));
+	}
+
+	@Test
+	public void testBatchCsvReports(@TempDir Path tempDir) throws Exception {
+		var file = writeAccount(tempDir.resolve("a"), sellRow, buyRow);
+		var inputs = BatchCalculator.listInputs(tempDir.toFile());
+		assertEquals(0, new BatchCalculator(1, false, ReportWriter.Format.CSV).run(inputs));
+
+		var report = BatchCalculator.reportFile(file, ReportWriter.Format.CSV);
+		assertEquals(new File(file.getParentFile(), "Transactions.report.csv"), report);
+		var lines = Files.readAllLines(report.toPath());
+		assertEquals(List.of(ReportWriter.CSV_HEADER,
+				"2022,2022-10-09T12:00,2022-08-08T12:00,IE00BYTBXV33,RYANAIR HOLDINGS PLC,20,13.8750,12.1850,33.8000,33.8000,false,a2,a1"),
+				lines);
+		// CSV reports are not picked up as inputs of the next run.
+		assertEquals(inputs, BatchCalculator.listInputs(tempDir.toFile()));
+	}
+}
@@ -0,0 +1,88 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class ChronologicalSortTest {
+
+	private static void assertSorted(List<Transaction> txs) {
+		List<Transaction> expected = new ArrayList<>(txs);
+		expected.sort(TaxEngine.CHRONOLOGICAL_ORDER);
+		var actual = ChronologicalSort.sort(txs);
+		// Same instances, so equal transactions must keep their order too.
+		assertIterableEquals(expected, actual);
+		for (int i = 0; i < expected.size(); i++) {
+			assertSame(expected.get(i), actual.get(i));
+		}
+		assertIterableEquals(expected, Arrays.asList(ChronologicalSort.radixSort(txs.toArray(new Transaction[0]))));
+	}
+
+	/**
+	 * Transactions with many in the same minute, and some with the same minute
+	 * and sequence number.
+	 */
+	private static List<Transaction> history(Random random, int count) {
+		Stock stock = new Stock("Stock", "Isin");
+		List<Transaction> txs = new ArrayList<>();
+		var datetime = LocalDateTime.of(2018, 1, 1, 0, 0);
+		for (int seqNum = count; seqNum > 0; seqNum--) {
+			datetime = datetime.plusMinutes(random.nextInt(3));
+			int seq = random.nextInt(10) == 0 ? seqNum + 1 : seqNum;
+			txs.add(new Transaction(true, datetime, stock, 1, 0, 0, "o" + txs.size(), seq));
+		}
+		Collections.reverse(txs);
+		return txs;
+	}
+
+	@Test
+	public void testNewestFirstAndSorted() {
+		var txs = history(new Random(1), 1000);
+		assertSorted(txs);
+		List<Transaction> ascending = new ArrayList<>(txs);
+		ascending.sort(TaxEngine.CHRONOLOGICAL_ORDER);
+		assertSorted(ascending);
+		assertSorted(List.of());
+		assertSorted(txs.subList(0, 1));
+	}
+
+	@Test
+	public void testMergedExports() {
+		var random = new Random(2);
+		for (int files : new int[] { 2, 3, ChronologicalSort.MAX_MERGED_RUNS, ChronologicalSort.MAX_MERGED_RUNS + 1 }) {
+			List<Transaction> txs = new ArrayList<>();
+			for (int i = 0; i < files; i++) {
+				txs.addAll(history(random, 50 + random.nextInt(100)));
+			}
+			assertSorted(txs);
+			boolean merged = ChronologicalSort.sortRuns(txs.toArray(new Transaction[0]));
+			if (files > ChronologicalSort.MAX_MERGED_RUNS) {
+				assertFalse(merged);
+			}
+		}
+	}
+
+	@Test
+	public void testShuffled() {
+		var random = new Random(3);
+		var txs = history(random, 5000);
+		Collections.shuffle(txs, random);
+		assertSorted(txs);
+		assertFalse(ChronologicalSort.sortRuns(txs.toArray(new Transaction[0])));
+
+		// Negative sequence numbers and a long history.
+		Stock stock = new Stock("Stock", "Isin");
+		txs.add(new Transaction(false, LocalDateTime.of(1990, 1, 1, 0, 0), stock, 1, 0, 0, "a", -5));
+		txs.add(new Transaction(false, LocalDateTime.of(2090, 1, 1, 0, 0), stock, 1, 0, 0, "b", -1));
+		assertSorted(txs);
+	}
+}
@@ -0,0 +1,54 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class CorporateActionTest {
+
+	@Test
+	public void testPair() {
+		Stock stockA = new Stock("StockA", "IsinA");
+		Stock stockB = new Stock("StockB", "IsinB");
+		Stock stockC = new Stock("StockC", "IsinC");
+		var time = LocalDateTime.of(2021, 6, 1, 8, 0);
+		var actions = CorporateAction.pair(List.of(
+				// Newest first, as exported. ISIN change of A to C with a 1 for 2
+				// reverse split.
+				TransactionsParser.newActionLeg(time.plusDays(1), stockC, 5),
+				TransactionsParser.newActionLeg(time.plusDays(1), stockA, -10),
+				// Split of B and A at the same time.
+				TransactionsParser.newActionLeg(time, stockA, -10),
+				TransactionsParser.newActionLeg(time, stockB, -3),
+				TransactionsParser.newActionLeg(time, stockB, 9),
+				TransactionsParser.newActionLeg(time, stockA, 20),
+				// Leg without a pair.
+				TransactionsParser.newActionLeg(time.plusDays(2), stockB, 1)));
+
+		assertEquals(3, actions.size());
+		var splitA = actions.get(0);
+		assertSame(stockA, splitA.getFrom());
+		assertSame(stockA, splitA.getTo());
+		assertEquals(10, splitA.getFromQuantity());
+		assertEquals(20, splitA.getToQuantity());
+		assertFalse(splitA.isIsinChange());
+		var splitB = actions.get(1);
+		assertSame(stockB, splitB.getTo());
+		assertEquals(3, splitB.getFromQuantity());
+		assertEquals(9, splitB.getToQuantity());
+		var change = actions.get(2);
+		assertSame(stockA, change.getFrom());
+		assertSame(stockC, change.getTo());
+		assertEquals(time.plusDays(1), change.getDatetime());
+		assertTrue(change.isIsinChange());
+
+		assertThrows(IllegalArgumentException.class, () -> new CorporateAction(time, stockA, stockA, 0, 1));
+	}
+}
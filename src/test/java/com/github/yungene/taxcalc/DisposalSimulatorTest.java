@@ -0,0 +1,114 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class DisposalSimulatorTest {
+
+	@Test
+	public void testSimulationMatchesFullRun() {
+		var random = new Random(17);
+		List<Transaction> txs = TaxEngineTest.generateHistory(random, 8, 2000);
+		var engine = new TaxEngine(txs);
+		engine.calculateTaxFull();
+		var simulator = new DisposalSimulator(engine);
+		var end = txs.get(0).getDatetime();
+		String before = engine.reports.toString();
+
+		for (int i = 0; i < 200; i++) {
+			var stock = txs.get(random.nextInt(txs.size())).getStock();
+			int held = simulator.getHeld(stock.getIsin());
+			if (held == 0) {
+				continue;
+			}
+			int quantity = 1 + random.nextInt(held);
+			// Same day as the last transaction, within 4 weeks of it, or later.
+			var datetime = end.plusMinutes(random.nextInt(3) * random.nextInt(40 * 24 * 60));
+			long price = Transaction.euroToMil(1 + random.nextInt(100), random.nextInt(100));
+			var result = simulator.simulateSale(stock.getIsin(), quantity, datetime, price);
+
+			var sell = new Transaction(false, datetime, stock, quantity, price, price, "simulated", -1);
+			var withSell = new ArrayList<>(txs);
+			withSell.add(sell);
+			var expected = new TaxEngine(withSell);
+			expected.calculateTaxFull();
+			var expectedReport = expected.reports.get(datetime.getYear());
+			List<SellReport> expectedSales = new ArrayList<>();
+			for (var sale : expectedReport.sales) {
+				if (sale.originalSellTransaction == sell) {
+					expectedSales.add(sale);
+				}
+			}
+			assertEquals(expectedSales.toString(), result.getSales().toString());
+			assertEquals(expectedReport.getTaxableNetGains(), result.getYearNetGains());
+			assertEquals(TaxEngine.taxDue(expectedReport.getTaxableNetGains()), result.getTaxDue());
+		}
+		// The engine itself is not changed.
+		assertEquals(before, engine.reports.toString());
+	}
+
+	@Test
+	public void testSimulatedTax() {
+		Stock stock = new Stock("Stock A", "IsinA");
+		var buy = new Transaction(true, LocalDateTime.of(2023, 1, 2, 12, 0), stock, 1000, Transaction.euroToMil(10, 0),
+				Transaction.euroToMil(10, 0), "b1", 0);
+		var engine = new TaxEngine(List.of(buy));
+		engine.calculateTaxFull();
+		var simulator = new DisposalSimulator(engine);
+
+		// Gain of 2000 euro, 1270 of which is exempt.
+		var result = simulator.simulateSale("IsinA", 1000, LocalDateTime.of(2023, 6, 1, 12, 0),
+				Transaction.euroToMil(12, 0));
+		assertEquals(Transaction.euroToMil(2000, 0), result.getTaxableNetGains());
+		assertEquals(Transaction.euroToMil(730, 0) * 33 / 100, result.getAdditionalTax());
+		// Within 4 weeks of the buy, the loss is not allowed.
+		result = simulator.simulateSale("IsinA", 10, LocalDateTime.of(2023, 1, 20, 12, 0), Transaction.euroToMil(5, 0));
+		assertEquals(0, result.getTaxableNetGains());
+		assertTrue(result.getSales().get(0).fourWeekRuleApplied);
+		result = simulator.simulateSale("IsinA", 10, LocalDateTime.of(2023, 1, 20, 12, 0), Transaction.euroToMil(5, 0));
+		assertEquals(0, result.getAdditionalTax());
+
+		assertThrows(IllegalArgumentException.class,
+				() -> simulator.simulateSale("IsinA", 1001, LocalDateTime.of(2023, 6, 1, 12, 0), 0));
+		assertThrows(IllegalArgumentException.class,
+				() -> simulator.simulateSale("IsinB", 1, LocalDateTime.of(2023, 6, 1, 12, 0), 0));
+		assertThrows(IllegalArgumentException.class,
+				() -> simulator.simulateSale("IsinA", 1, LocalDateTime.of(2023, 1, 1, 12, 0), 0));
+		assertThrows(IllegalArgumentException.class, () -> new DisposalSimulator(new TaxEngine(List.of(buy))));
+	}
+
+	@Test
+	public void testCorporateActions() {
+		Stock stockA = new Stock("Stock A", "IsinA");
+		Stock stockB = new Stock("Stock B", "IsinB");
+		var buyA = new Transaction(true, LocalDateTime.of(2023, 1, 2, 12, 0), stockA, 10, Transaction.euroToMil(8, 0),
+				Transaction.euroToMil(8, 0), "b1", 1);
+		var buyB = new Transaction(true, LocalDateTime.of(2023, 1, 3, 12, 0), stockB, 5, Transaction.euroToMil(10, 0),
+				Transaction.euroToMil(10, 0), "b2", 0);
+		// A is split 1 to 4 after its last buy, and B is changed into A.
+		var split = new CorporateAction(LocalDateTime.of(2023, 3, 1, 8, 0), stockA, stockA, 1, 4);
+		var change = new CorporateAction(LocalDateTime.of(2023, 4, 1, 8, 0), stockB, stockA, 1, 1);
+		var engine = new TaxEngine(List.of(buyB, buyA), List.of(change, split));
+		engine.calculateTaxFull();
+		int states = engine.states.values().size();
+		var simulator = new DisposalSimulator(engine);
+		assertEquals(states, engine.states.values().size());
+
+		assertEquals(45, simulator.getHeld("IsinA"));
+		assertEquals(0, simulator.getHeld("IsinB"));
+		assertThrows(IllegalArgumentException.class,
+				() -> simulator.simulateSale("IsinA", 46, LocalDateTime.of(2023, 6, 1, 12, 0), 0));
+		var result = simulator.simulateSale("IsinA", 45, LocalDateTime.of(2023, 6, 1, 12, 0),
+				Transaction.euroToMil(3, 0));
+		assertEquals(40 * Transaction.euroToMil(1, 0) + 5 * Transaction.euroToMil(-7, 0),
+				result.getTaxableNetGains());
+	}
+}
@@ -0,0 +1,108 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class EngineStatsTest {
+
+	private static Transaction tx(boolean isBuy, Stock stock, LocalDateTime datetime, int quantity, int seqNum) {
+		return new Transaction(isBuy, datetime, stock, quantity, Transaction.euroToMil(quantity, 0),
+				Transaction.euroToMil(quantity, 0), "o" + seqNum, seqNum);
+	}
+
+	@Test
+	public void testCounters() {
+		Stock stock = new Stock("Stock A", "IsinA");
+		var txs = List.of(tx(true, stock, LocalDateTime.of(2020, 1, 1, 12, 0), 100, 5),
+				tx(true, stock, LocalDateTime.of(2020, 1, 2, 12, 0), 100, 4),
+				// Sold within 4 weeks, takes part of the second lot.
+				tx(false, stock, LocalDateTime.of(2020, 1, 10, 12, 0), 30, 3),
+				// All of the first lot and the rest of the second one.
+				tx(false, stock, LocalDateTime.of(2021, 1, 10, 12, 0), 170, 2),
+				tx(true, stock, LocalDateTime.of(2021, 1, 20, 12, 0), 10, 1));
+		var engine = new TaxEngine(txs);
+		engine.calculateTaxFull();
+
+		var stats = engine.stats;
+		assertEquals(1, stats.isins);
+		assertEquals(5, stats.transactions);
+		assertEquals(2, stats.sells);
+		// Second sell: 10 reacquired within 4 weeks, then 100 and 60.
+		assertEquals(4, stats.matches);
+		// Second lot split by the first sell, first lot by the reacquired 10.
+		assertEquals(2, stats.lotSplits);
+		assertEquals(2, stats.fourWeekMatches);
+		assertEquals(1, stats.sellWithinFourWeeksAfterBuy);
+		assertEquals(1, stats.buyWithinFourWeeksAfterSell);
+		assertEquals(2, stats.maxQueueDepth);
+		assertEquals("IsinA", stats.maxQueueDepthIsin);
+		assertTrue(stats.getPhaseNanos(EngineStats.SORT) > 0);
+		assertTrue(stats.getPhaseNanos(EngineStats.MATCH) > 0);
+		assertEquals(0, stats.getPhaseNanos(EngineStats.PARSE));
+		assertTrue(stats.summary().startsWith("Phases: sort "), stats.summary());
+	}
+
+	@Test
+	public void testParallelSameCounters() {
+		List<Transaction> txs = TaxEngineTest.generateHistory(new Random(5), 20, 3000);
+		var sequential = new TaxEngine(txs);
+		sequential.calculateTaxFull();
+		var parallel = new TaxEngine(txs);
+		parallel.calculateTaxFullParallel();
+		String expected = sequential.stats.matches + " " + sequential.stats.lotSplits + " "
+				+ sequential.stats.fourWeekMatches + " " + sequential.stats.queueDepthSum;
+		assertEquals(expected, parallel.stats.matches + " " + parallel.stats.lotSplits + " "
+				+ parallel.stats.fourWeekMatches + " " + parallel.stats.queueDepthSum);
+		long sales = 0;
+		for (var report : sequential.reports.values()) {
+			sales += report.sales.size();
+		}
+		assertEquals(sales, sequential.stats.matches);
+	}
+
+	@Test
+	public void testFlightRecorderEvents() throws Exception {
+		List<Transaction> txs = TaxEngineTest.generateHistory(new Random(6), 4, 200);
+		var file = Files.createTempFile("engine", ".jfr");
+		List<RecordedEvent> events = new ArrayList<>();
+		try (var recording = new Recording()) {
+			recording.enable(EngineStats.PhaseEvent.class);
+			recording.enable(EngineStats.IsinMatchEvent.class);
+			recording.start();
+			new TaxEngine(txs).calculateTaxFull();
+			recording.stop();
+			recording.dump(file);
+			events.addAll(RecordingFile.readAllEvents(file));
+		} finally {
+			Files.delete(file);
+		}
+
+		List<String> phases = new ArrayList<>();
+		long transactions = 0;
+		for (var event : events) {
+			String name = event.getEventType().getName();
+			if (name.equals("com.github.yungene.taxcalc.Phase")) {
+				phases.add(event.getString("phase"));
+				assertEquals(txs.size(), event.getInt("items"));
+			} else if (name.equals("com.github.yungene.taxcalc.IsinMatch")) {
+				assertTrue(event.getString("isin").startsWith("Isin"));
+				transactions += event.getInt("transactions");
+			}
+		}
+		assertTrue(phases.contains(EngineStats.SORT), phases.toString());
+		assertTrue(phases.contains(EngineStats.MATCH), phases.toString());
+		assertEquals(txs.size(), transactions);
+	}
+}
@@ -0,0 +1,146 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+public class HarvestOptimizerTest {
+	private static final LocalDateTime SALE = LocalDateTime.of(2023, 12, 1, 12, 0);
+
+	private static Transaction buy(Stock stock, LocalDateTime datetime, int quantity, int euros, int seqNum) {
+		return new Transaction(true, datetime, stock, quantity, Transaction.euroToMil(euros, 0),
+				Transaction.euroToMil(euros, 0), "b" + seqNum, seqNum);
+	}
+
+	private static Transaction sell(Stock stock, LocalDateTime datetime, int quantity, int euros, int seqNum) {
+		return new Transaction(false, datetime, stock, quantity, Transaction.euroToMil(euros, 0),
+				Transaction.euroToMil(euros, 0), "s" + seqNum, seqNum);
+	}
+
+	@Test
+	public void testUsesExemption() {
+		Stock stockA = new Stock("Stock A", "IsinA");
+		Stock stockB = new Stock("Stock B", "IsinB");
+		var txs = List.of(buy(stockA, LocalDateTime.of(2020, 1, 1, 12, 0), 100, 10, 0),
+				buy(stockA, LocalDateTime.of(2021, 1, 1, 12, 0), 100, 20, 1),
+				buy(stockB, LocalDateTime.of(2020, 1, 1, 12, 0), 100, 50, 2));
+		var engine = new TaxEngine(txs);
+		engine.calculateTaxFull();
+
+		// A gains 30 and 20 per share, B 7 per share. 1270 = 30 * 42 + 7 * 1 + 3.
+		Map<String, Long> prices = Map.of("IsinA", Transaction.euroToMil(40, 0), "IsinB",
+				Transaction.euroToMil(57, 0));
+		var plan = new HarvestOptimizer(engine, 0, 1_000_000).optimize(SALE, prices);
+		assertEquals(0, plan.getTaxDue());
+		assertTrue(plan.getUnusedExemption() < Transaction.euroToMil(7, 0), plan.toString());
+		long gains = 0;
+		for (var disposal : plan.getDisposals()) {
+			gains += disposal.getTaxableNetGains();
+		}
+		assertEquals(plan.getYearNetGains(), gains);
+	}
+
+	@Test
+	public void testFillsWithIsinNotChosen() {
+		Stock stockA = new Stock("Stock A", "IsinA");
+		Stock stockB = new Stock("Stock B", "IsinB");
+		var txs = List.of(buy(stockA, LocalDateTime.of(2020, 1, 1, 12, 0), 100, 10, 0),
+				buy(stockB, LocalDateTime.of(2020, 1, 1, 12, 0), 100, 50, 1));
+		var engine = new TaxEngine(txs);
+		engine.calculateTaxFull();
+
+		// All of A gains 3000, so the search only sells B for 700. The 570 left
+		// is 19 shares of A at 30.
+		Map<String, Long> prices = Map.of("IsinA", Transaction.euroToMil(40, 0), "IsinB",
+				Transaction.euroToMil(57, 0));
+		var plan = new HarvestOptimizer(engine, 0, 1_000_000).optimize(SALE, prices);
+		assertEquals(2, plan.getDisposals().size(), plan.toString());
+		assertEquals(19, plan.getDisposals().get(0).getQuantity());
+		assertEquals(100, plan.getDisposals().get(1).getQuantity());
+		assertEquals(0, plan.getUnusedExemption());
+		assertEquals(0, plan.getTaxDue());
+	}
+
+	@Test
+	public void testHarvestsLossesOutsideFourWeeks() {
+		Stock stockA = new Stock("Stock A", "IsinA");
+		Stock stockB = new Stock("Stock B", "IsinB");
+		Stock stockC = new Stock("Stock C", "IsinC");
+		var txs = List.of(buy(stockA, LocalDateTime.of(2020, 1, 1, 12, 0), 1000, 10, 0),
+				sell(stockA, LocalDateTime.of(2023, 2, 1, 12, 0), 1000, 20, 1),
+				buy(stockB, LocalDateTime.of(2021, 1, 1, 12, 0), 100, 50, 2),
+				// Loss on these does not count, bought within 4 weeks of the sale.
+				buy(stockC, LocalDateTime.of(2023, 11, 20, 12, 0), 100, 50, 3));
+		var engine = new TaxEngine(txs);
+		engine.calculateTaxFull();
+		assertEquals(Transaction.euroToMil(10000, 0), engine.reports.get(2023).getTaxableNetGains());
+
+		Map<String, Long> prices = Map.of("IsinB", Transaction.euroToMil(30, 0), "IsinC",
+				Transaction.euroToMil(30, 0));
+		var plan = new HarvestOptimizer(engine).optimize(SALE, prices);
+		assertEquals(1, plan.getDisposals().size());
+		assertEquals("IsinB", plan.getDisposals().get(0).getIsin());
+		assertEquals(100, plan.getDisposals().get(0).getQuantity());
+		assertEquals(Transaction.euroToMil(8000, 0), plan.getYearNetGains());
+		assertEquals(TaxEngine.taxDue(Transaction.euroToMil(8000, 0)), plan.getTaxDue());
+	}
+
+	@Test
+	public void testAtLeastAsGoodAsExhaustiveSearch() {
+		var random = new Random(23);
+		for (int round = 0; round < 20; round++) {
+			int isinCount = 2 + random.nextInt(3);
+			List<Transaction> txs = new ArrayList<>();
+			Map<String, Long> prices = new HashMap<>();
+			int seqNum = 1000;
+			for (int s = 0; s < isinCount; s++) {
+				var stock = new Stock("Stock " + s, "Isin" + s);
+				for (int lot = 0; lot < 1 + random.nextInt(3); lot++) {
+					txs.add(buy(stock, LocalDateTime.of(2020 + lot, 1, 1, 12, 0), 1 + random.nextInt(20),
+							1 + random.nextInt(100), seqNum--));
+				}
+				prices.put(stock.getIsin(), Transaction.euroToMil(1 + random.nextInt(200), 0));
+			}
+			var engine = new TaxEngine(txs);
+			engine.calculateTaxFull();
+			var simulator = new DisposalSimulator(engine);
+
+			// Best net gains over all the combinations of quantities that end a
+			// match. Filling the exemption with part of a match can only do better.
+			long[] reachable = { 0 };
+			for (var isin : prices.keySet()) {
+				var matches = simulator.simulateSale(isin, simulator.getHeld(isin), SALE, prices.get(isin)).getSales();
+				long[] next = new long[reachable.length * (matches.size() + 1)];
+				long gains = 0;
+				for (int m = 0; m <= matches.size(); m++) {
+					for (int r = 0; r < reachable.length; r++) {
+						next[m * reachable.length + r] = reachable[r] + gains;
+					}
+					if (m < matches.size()) {
+						gains += matches.get(m).getTaxableNetGains();
+					}
+				}
+				reachable = next;
+			}
+			long bestUnused = Long.MAX_VALUE;
+			for (long gains : reachable) {
+				if (gains <= TaxEngine.TAX_EXEMPTION_MIL) {
+					bestUnused = Math.min(bestUnused, TaxEngine.TAX_EXEMPTION_MIL - gains);
+				}
+			}
+
+			var plan = new HarvestOptimizer(engine, 0, 10_000_000).optimize(SALE, prices, new ForkJoinPool(2));
+			assertEquals(0, plan.getTaxDue());
+			assertTrue(plan.getUnusedExemption() <= bestUnused, plan.toString());
+		}
+	}
+}
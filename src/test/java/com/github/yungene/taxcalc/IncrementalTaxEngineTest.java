@@ -0,0 +1,102 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class IncrementalTaxEngineTest {
+
+	@Test
+	public void testReacquireInNextBatchReopensSell() {
+		Stock stockA = new Stock("Stock A", "IsinA");
+		var txBuyA1 = new Transaction(true, LocalDateTime.of(2023, 1, 1, 12, 0), stockA, 1000,
+				Transaction.euroToMil(3, 0), Transaction.euroToMil(3, 0), "ba1", 1);
+		var txSellA1 = new Transaction(false, LocalDateTime.of(2023, 5, 1, 12, 0), stockA, 1000,
+				Transaction.euroToMil(2, 0), Transaction.euroToMil(2, 0), "sa1", 0);
+		// Comes from a later export, so sequence numbers start again.
+		var txBuyA2 = new Transaction(true, LocalDateTime.of(2023, 5, 20, 15, 0), stockA, 1000,
+				Transaction.euroToMil(6, 0), Transaction.euroToMil(6, 0), "ba2", 0);
+
+		var te = new IncrementalTaxEngine();
+		te.addTransactions(List.of(txSellA1, txBuyA1));
+		// Without the re-acquire we have a loss.
+		assertEquals(-1000 * Transaction.euroToMil(1, 0), te.reports.get(2023).getTaxableNetGains());
+		assertEquals(1, te.reports.get(2023).sales.size());
+
+		te.addTransactions(List.of(txBuyA2));
+		// Sell got re-opened, and the loss is restricted by the four weeks rule.
+		assertEquals(0, te.reports.get(2023).getTaxableNetGains());
+		assertEquals(1, te.reports.get(2023).sales.size());
+	}
+
+	@Test
+	public void testSameMinuteAcrossBatches() {
+		Stock stockA = new Stock("Stock A", "IsinA");
+		var txBuyA1 = new Transaction(true, LocalDateTime.of(2023, 1, 1, 12, 0), stockA, 10,
+				Transaction.euroToMil(3, 0), Transaction.euroToMil(3, 0), "ba1", 1);
+		var txSellA1 = new Transaction(false, LocalDateTime.of(2023, 5, 1, 12, 0), stockA, 10,
+				Transaction.euroToMil(2, 0), Transaction.euroToMil(2, 0), "sa1", 0);
+		// Same minute as the sell, from a later export with a higher sequence
+		// number. It is still after the sell.
+		var txBuyA2 = new Transaction(true, LocalDateTime.of(2023, 5, 1, 12, 0), stockA, 10,
+				Transaction.euroToMil(6, 0), Transaction.euroToMil(6, 0), "ba2", 5);
+
+		var te = new IncrementalTaxEngine();
+		te.addTransactions(List.of(txSellA1, txBuyA1));
+		te.addTransactions(List.of(txBuyA2));
+		var sales = te.reports.get(2023).sales;
+		assertEquals(1, sales.size());
+		assertEquals("ba1", sales.get(0).getBuyTransaction().getOrderId());
+		assertTrue(sales.get(0).buyWithinFourWeeksAfterSell);
+
+		var full = new TaxEngine(List.of(txBuyA2.copyWithNewSeqNum(-1), txSellA1, txBuyA1));
+		full.calculateTaxFull();
+		assertEquals(full.reports.get(2023).sales.toString(), sales.toString());
+	}
+
+	@Test
+	public void testAppendBeforeHorizonFails() {
+		Stock stockA = new Stock("Stock A", "IsinA");
+		var txBuyA1 = new Transaction(true, LocalDateTime.of(2023, 1, 1, 12, 0), stockA, 1000,
+				Transaction.euroToMil(3, 0), Transaction.euroToMil(3, 0), "ba1", 0);
+		var te = new IncrementalTaxEngine();
+		te.addTransactions(List.of(txBuyA1), LocalDateTime.of(2023, 2, 1, 0, 0));
+		var txBuyA2 = new Transaction(true, LocalDateTime.of(2023, 1, 15, 12, 0), stockA, 10,
+				Transaction.euroToMil(3, 0), Transaction.euroToMil(3, 0), "ba2", 0);
+		assertThrows(IllegalArgumentException.class, () -> te.addTransactions(List.of(txBuyA2)));
+	}
+
+	@Test
+	public void testMonthlyBatchesMatchFullRun() {
+		List<Transaction> txs = TaxEngineTest.generateHistory(new Random(7), 25, 3000);
+		TaxEngine full = new TaxEngine(txs);
+		full.calculateTaxFull();
+
+		var incremental = new IncrementalTaxEngine();
+		List<Transaction> batch = new ArrayList<>();
+		for (var tx : full.transactions) {
+			if (!batch.isEmpty() && batch.get(0).getDatetime().getMonth() != tx.getDatetime().getMonth()) {
+				incremental.addTransactions(batch);
+				batch = new ArrayList<>();
+			}
+			batch.add(tx);
+		}
+		incremental.addTransactions(batch);
+
+		assertEquals(full.reports.keySet(), incremental.reports.keySet());
+		for (var year : full.reports.keySet()) {
+			var expected = full.reports.get(year);
+			var actual = incremental.reports.get(year);
+			assertEquals(expected.getTaxableNetGains(), actual.getTaxableNetGains());
+			assertEquals(expected.sales.toString(), actual.sales.toString());
+		}
+		assertEquals(TaxLedger.of(full.reports).years().toString(), incremental.getLedger().years().toString());
+	}
+}
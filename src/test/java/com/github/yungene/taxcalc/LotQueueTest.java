@@ -0,0 +1,158 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.jupiter.api.Test;
+
+public class LotQueueTest {
+
+	@Test
+	public void testGrowAcrossWrapAround() {
+		Stock stock = new Stock("Stock Name", "ISIN");
+		var time = LocalDateTime.of(2022, 8, 8, 12, 0);
+		LotQueue queue = new LotQueue(4);
+		List<Transaction> expected = new ArrayList<>();
+		int seqNum = 0;
+		// Move the head forward, so that the buffer wraps around before it grows.
+		for (int i = 0; i < 3; i++) {
+			queue.addLast(new Transaction(true, time, stock, 1, 0, 0, "x", seqNum++));
+			queue.removeFirst();
+		}
+		for (int i = 0; i < 50; i++) {
+			var tx = new Transaction(true, time.plusMinutes(i), stock, i + 1, i, i, "o" + i, seqNum++);
+			expected.add(tx);
+			queue.addLast(tx);
+		}
+		assertEquals(50, queue.size());
+		assertIterableEquals(expected, queue);
+		for (var tx : expected) {
+			assertEquals(tx.getEpochMinute(), queue.firstTimestamp());
+			assertSame(tx, queue.removeFirst());
+		}
+		assertTrue(queue.isEmpty());
+		assertThrows(NoSuchElementException.class, () -> queue.removeFirst());
+	}
+
+	@Test
+	public void testPartialRemoveAndMove() {
+		Stock stock = new Stock("Stock Name", "ISIN");
+		var time = LocalDateTime.of(2022, 8, 8, 12, 0);
+		var tx1 = new Transaction(true, time, stock, 10, 100, 110, "1", 1);
+		var tx2 = new Transaction(true, time.plusDays(1), stock, 5, 200, 210, "0", 0);
+		LotQueue src = new LotQueue();
+		LotQueue dst = new LotQueue();
+		src.addAll(List.of(tx1, tx2));
+
+		// Take part of the first lot, rest stays in place.
+		assertEquals(tx1.copyWithNewQuantity(3), src.removeFirst(3));
+		assertEquals(7, src.firstQuantity());
+		assertEquals(110, src.firstCost());
+		assertSame(tx1, src.firstSource());
+
+		// Move part of the first lot to another queue.
+		assertEquals(4, src.moveFirstTo(dst, 4));
+		assertIterableEquals(List.of(tx1.copyWithNewQuantity(3), tx2), src);
+		assertIterableEquals(List.of(tx1.copyWithNewQuantity(4)), dst);
+
+		// Moving more than what is left in the lot only moves the lot.
+		assertEquals(3, src.moveFirstTo(dst, 100));
+		src.moveFirstTo(dst);
+		assertTrue(src.isEmpty());
+		assertIterableEquals(List.of(tx1.copyWithNewQuantity(4), tx1.copyWithNewQuantity(3), tx2), dst);
+	}
+
+	@Test
+	public void testSnapshotIsCopiedOnWrite() {
+		Stock stock = new Stock("Stock Name", "ISIN");
+		var time = LocalDateTime.of(2022, 8, 8, 12, 0);
+		var tx1 = new Transaction(true, time, stock, 10, 100, 110, "1", 2);
+		var tx2 = new Transaction(true, time.plusDays(1), stock, 5, 200, 210, "2", 1);
+		var tx3 = new Transaction(true, time.plusDays(2), stock, 7, 300, 310, "3", 0);
+		LotQueue queue = new LotQueue(4);
+		queue.addLast(tx1);
+		queue.addLast(tx2);
+
+		var snapshot = queue.snapshot();
+		assertEquals(4, snapshot.dropFirst(4));
+		assertEquals(6, snapshot.firstQuantity());
+		assertEquals(10, queue.firstQuantity());
+		// Snapshot of a snapshot keeps the partially consumed head.
+		var nested = snapshot.snapshot();
+		assertEquals(6, nested.dropFirst(10));
+		assertSame(tx2, nested.getFirst());
+		assertEquals(6, snapshot.firstQuantity());
+
+		// Adding a lot copies the arrays, with the consumed head.
+		snapshot.addLast(tx3);
+		assertIterableEquals(List.of(tx1.copyWithNewQuantity(6), tx2, tx3), snapshot);
+		assertIterableEquals(List.of(tx1, tx2), queue);
+		assertIterableEquals(List.of(tx2), nested);
+
+		// Growing from a shared queue works the same.
+		for (int i = 0; i < 3; i++) {
+			nested.addLast(tx3);
+		}
+		assertIterableEquals(List.of(tx2, tx3, tx3, tx3), nested);
+		queue.removeFirst();
+		assertIterableEquals(List.of(tx2), queue);
+		assertIterableEquals(List.of(tx1.copyWithNewQuantity(6), tx2, tx3), snapshot);
+	}
+
+	@Test
+	public void testAdjustFirst() {
+		Stock stock = new Stock("Stock Name", "ISIN");
+		var time = LocalDateTime.of(2022, 8, 8, 12, 0);
+		var tx1 = new Transaction(true, time, stock, 10, 100_0000, 101_0000, "o1", 1);
+		var tx2 = new Transaction(true, time.plusDays(1), stock, 3, 50_0000, 50_0000, "o2", 0);
+		LotQueue queue = new LotQueue();
+		queue.addLast(tx1);
+		queue.addLast(tx2);
+		assertEquals(4, queue.dropFirst(4));
+		assertEquals(4, queue.headPosition());
+		assertEquals(13, queue.endPosition());
+		var snapshot = queue.snapshot();
+
+		// 4 for 1 split, only the first lot is adjusted.
+		queue.rebase(36);
+		var split = new Transaction(true, time, stock, 40, 25_0000, 25_2500, "o1", 1);
+		queue.adjustFirst(1, 24, 25_2500, split, 24);
+		assertEquals(24, queue.firstQuantity());
+		assertEquals(25_2500, queue.firstCost());
+		assertEquals(1, queue.firstActions());
+		assertSame(split, queue.firstSource());
+		assertEquals(tx1.getEpochMinute(), queue.firstTimestamp());
+		assertEquals(0, queue.headPosition());
+		assertEquals(12, queue.dropFirst(12));
+		assertEquals(12, queue.headPosition());
+		// Lots further back are left as they are.
+		assertEquals(0, queue.actionsOf(1));
+		assertEquals(13, queue.endOf(1));
+		assertSame(tx2, queue.sourceOf(1));
+		// Snapshot is left as it was.
+		assertEquals(6, snapshot.firstQuantity());
+		assertEquals(0, snapshot.firstActions());
+		assertEquals(13, snapshot.endPosition());
+		queue.removeFirst();
+		assertSame(tx2, queue.getFirst());
+
+		// Lots left without a share are removed.
+		snapshot.adjustFirst(1, 0, 0, tx1, 0);
+		assertSame(tx2, snapshot.getFirst());
+		// A lot of another ISIN keeps its shares and source, only its position
+		// changes.
+		snapshot.adjustFirst(1, 3, 50_0000, tx2, 5);
+		assertSame(tx2, snapshot.getFirst());
+		assertEquals(2, snapshot.headPosition());
+		assertEquals(3, queue.firstQuantity());
+		assertEquals(13, queue.headPosition() + queue.firstQuantity());
+	}
+}
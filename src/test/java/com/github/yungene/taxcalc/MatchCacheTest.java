@@ -0,0 +1,102 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class MatchCacheTest {
+
+	private static String fullReports(List<Transaction> txs) {
+		var engine = new TaxEngine(txs);
+		engine.calculateTaxFull();
+		return engine.reports.toString();
+	}
+
+	@Test
+	public void testUploadedAgain() {
+		var cache = new MatchCache(1_000_000);
+		var txs = TaxEngineTest.generateHistory(new Random(11), 10, 3000);
+		var engine = new TaxEngine(txs);
+		engine.calculateTaxFull(cache);
+		assertEquals(fullReports(txs), engine.reports.toString());
+		assertEquals(10, cache.getMisses());
+		assertEquals(10, cache.size());
+		assertNotNull(engine.states);
+
+		// Same export parsed again, so other transaction instances.
+		var again = TaxEngineTest.generateHistory(new Random(11), 10, 3000);
+		engine = new TaxEngine(again);
+		engine.calculateTaxFull(cache);
+		assertEquals(10, cache.getHits());
+		assertEquals(10, engine.stats.cachedIsins);
+		assertNull(engine.states);
+		assertEquals(fullReports(again), engine.reports.toString());
+		Set<Transaction> parsed = Collections.newSetFromMap(new IdentityHashMap<>());
+		parsed.addAll(again);
+		for (var report : engine.reports.values()) {
+			for (var sale : report.sales) {
+				assertTrue(parsed.contains(sale.originalSellTransaction));
+				assertTrue(parsed.contains(sale.getBuySource()));
+			}
+		}
+
+		// A new trade in one ISIN.
+		var last = again.get(0);
+		List<Transaction> withTrade = new ArrayList<>(again);
+		withTrade.add(0, new Transaction(false, last.getDatetime().plusDays(1), last.getStock(), 1,
+				Transaction.euroToMil(50, 0), Transaction.euroToMil(50, 0), "new", last.getSeqNum() + 1));
+		engine = new TaxEngine(withTrade);
+		engine.calculateTaxFull(cache);
+		assertEquals(19, cache.getHits());
+		assertEquals(11, cache.getMisses());
+		assertEquals(fullReports(withTrade), engine.reports.toString());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEvicted() {
+		Stock stock = new Stock("Stock", "Isin");
+		List<List<Transaction>> histories = new ArrayList<>();
+		List<MatchCache.Key> keys = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			var datetime = LocalDateTime.of(2020, 1, 1, 12, 0);
+			// Three buys and a sell of all of them, 3 matches each.
+			var txs = List.of(
+					new Transaction(true, datetime, stock, 1 + i, 10000, 10000, "b1", 3),
+					new Transaction(true, datetime.plusYears(1), stock, 1, 10000, 10000, "b2", 2),
+					new Transaction(true, datetime.plusYears(2), stock, 1, 10000, 10000, "b3", 1),
+					new Transaction(false, datetime.plusYears(3), stock, 3 + i, 20000, 20000, "s", 0));
+			histories.add(txs);
+			keys.add(MatchCache.key(txs));
+		}
+		var cache = new MatchCache(7);
+		for (int i = 0; i < 2; i++) {
+			cache.put(keys.get(i), histories.get(i), TaxEngine.matchIsin(histories.get(i), new StockState("Isin")));
+		}
+		assertEquals(6, cache.getMatches());
+		// First one is used, so the second one goes.
+		assertNotNull(cache.get(keys.get(0), histories.get(0)));
+		cache.put(keys.get(2), histories.get(2), TaxEngine.matchIsin(histories.get(2), new StockState("Isin")));
+		assertEquals(2, cache.size());
+		assertTrue(cache.getMatches() <= 7);
+		assertNotNull(cache.get(keys.get(0), histories.get(0)));
+		assertNull(cache.get(keys.get(1), histories.get(1)));
+		assertEquals(TaxEngine.matchIsin(histories.get(2), new StockState("Isin")).toString(),
+				cache.get(keys.get(2), histories.get(2)).toString());
+
+		// Too large for the cache.
+		var small = new MatchCache(2);
+		small.put(keys.get(0), histories.get(0), TaxEngine.matchIsin(histories.get(0), new StockState("Isin")));
+		assertEquals(0, small.size());
+	}
+}
@@ -0,0 +1,108 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringWriter;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class ReportWriterTest {
+	private static final Stock stock = new Stock("Stock, \"A\"", "IE00A");
+
+	private static TaxReport sampleReport() {
+		var buy = new Transaction(true, LocalDateTime.of(2023, 1, 2, 9, 5), stock, 10, Transaction.euroToMil(3, 0),
+				Transaction.euroToMil(3, 5), "b1", 1);
+		var sell = new Transaction(false, LocalDateTime.of(2023, 5, 1, 12, 30), stock, 4, Transaction.euroToMil(4, 0),
+				Transaction.euroToMil(3, 95), "s1", 0);
+		var engine = new TaxEngine(List.of(sell, buy));
+		engine.calculateTaxFull();
+		return engine.reports.get(2023);
+	}
+
+	private static String write(ReportWriter.Format format, List<TaxReport> reports) {
+		var sw = new StringWriter();
+		var writer = new ReportWriter(sw, format);
+		for (var report : reports) {
+			writer.writeReport(report);
+		}
+		writer.finish();
+		return sw.toString();
+	}
+
+	@Test
+	public void testMilToString() {
+		assertEquals("4.05", Transaction.milToString(Transaction.euroToMil(4, 5)));
+		assertEquals("0.00", Transaction.milToString(99));
+		assertEquals("-1.50", Transaction.milToString(-15099));
+		assertEquals("123456.78", Transaction.milToString(1234567800));
+		char[] buf = new char[Transaction.MAX_FIXED_LENGTH];
+		assertEquals("-922337203685477.5808",
+				new String(buf, 0, Transaction.formatMil(Long.MIN_VALUE, 4, buf, 0)));
+		assertEquals("-9223372036854775808", new String(buf, 0, Transaction.formatFixed(Long.MIN_VALUE, 0, buf, 0)));
+		assertEquals("0", new String(buf, 0, Transaction.formatFixed(0, 0, buf, 0)));
+	}
+
+	@Test
+	public void testTextMatchesToString() {
+		List<Transaction> txs = TaxEngineTest.generateHistory(new Random(5), 10, 2000);
+		var engine = new TaxEngine(txs);
+		engine.calculateTaxFull();
+		for (var report : engine.reports.values()) {
+			var sb = new StringBuilder();
+			for (var sale : report.sales) {
+				sb.append("\t").append(sale).append("\n");
+			}
+			String text = report.prettyPrint();
+			assertTrue(text.startsWith("TaxReport for year " + report.year + ". Total sales: "
+					+ Transaction.milToString(report.getTotalSales()) + ". Total taxable gains are "
+					+ Transaction.milToString(report.getTaxableNetGains()) + ". Sales for the year were:\n"));
+			assertTrue(text.endsWith("were:\n" + sb));
+		}
+	}
+
+	@Test
+	public void testCsv() {
+		var report = sampleReport();
+		assertEquals(ReportWriter.CSV_HEADER + "\n"
+				+ "2023,2023-05-01T12:30,2023-01-02T09:05,IE00A,\"Stock, \"\"A\"\"\",4,3.9500,3.0500,3.6000,3.6000,false,s1,b1\n",
+				write(ReportWriter.Format.CSV, List.of(report)));
+		assertEquals(ReportWriter.CSV_HEADER + "\n", write(ReportWriter.Format.CSV, List.of()));
+	}
+
+	@Test
+	public void testJson() {
+		var report = sampleReport();
+		String sale = "{\"sellDate\":\"2023-05-01T12:30\",\"buyDate\":\"2023-01-02T09:05\",\"isin\":\"IE00A\","
+				+ "\"product\":\"Stock, \\\"A\\\"\",\"quantity\":4,\"sellPrice\":3.9500,\"buyPrice\":3.0500,"
+				+ "\"netGains\":3.6000,\"taxableNetGains\":3.6000,\"fourWeekRuleApplied\":false,"
+				+ "\"sellOrderId\":\"s1\",\"buyOrderId\":\"b1\"}";
+		String year = "{\"year\":2023,\"totalSales\":15.8000,\"taxableNetGains\":3.6000,\"sales\":[\n" + sale + "\n]}";
+		assertEquals("[\n" + year + ",\n" + year + "\n]\n", write(ReportWriter.Format.JSON, List.of(report, report)));
+		assertEquals("[]\n", write(ReportWriter.Format.JSON, List.of()));
+	}
+
+	@Test
+	public void testLedger() {
+		var ledger = TaxLedger.of(Map.of(2023, sampleReport()));
+		assertEquals(ReportWriter.LEDGER_CSV_HEADER + "\n" + "2023,3.6000,0.0000,0.0000,3.6000,0.0000,0.0000,0.0000\n",
+				writeLedger(ReportWriter.Format.CSV, ledger));
+		assertEquals("[\n{\"year\":2023,\"netGains\":3.6000,\"lossesBroughtForward\":0.0000,\"lossesUsed\":0.0000,"
+				+ "\"exemptionUsed\":3.6000,\"chargeableGains\":0.0000,\"taxDue\":0.0000,"
+				+ "\"lossesCarriedForward\":0.0000}\n]\n", writeLedger(ReportWriter.Format.JSON, ledger));
+		assertEquals("Tax for year 2023. Net gains: 3.60. Losses brought forward: 0.00, used: 0.00. Exemption used: "
+				+ "3.60. Chargeable gains: 0.00. Tax due: 0.00. Losses carried forward: 0.00.\n",
+				writeLedger(ReportWriter.Format.TEXT, ledger));
+		assertEquals("[]\n", writeLedger(ReportWriter.Format.JSON, ledger.only(2022)));
+	}
+
+	private static String writeLedger(ReportWriter.Format format, TaxLedger ledger) {
+		var sw = new StringWriter();
+		new ReportWriter(sw, format).writeLedger(ledger);
+		return sw.toString();
+	}
+}
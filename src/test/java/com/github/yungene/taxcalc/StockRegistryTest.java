@@ -0,0 +1,36 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class StockRegistryTest {
+
+	@Test
+	public void testOneValuePerIsin() {
+		var table = new IsinTable();
+		var stockA = table.intern("IsinA", "Stock A");
+		var stockB = table.intern("IsinB", "Stock B");
+		// Same id as stockA, but from another table.
+		var otherTableStock = new IsinTable().intern("IsinC", "Stock C");
+		var plainStockA = new Stock("Stock A", "IsinA");
+
+		StockRegistry<List<String>> registry = new StockRegistry<>(isin -> new ArrayList<>());
+		registry.get(stockB).add("b");
+		registry.get(stockA).add("a");
+		registry.get(otherTableStock).add("c");
+		registry.get(plainStockA).add("a2");
+		registry.get(stockA).add("a3");
+
+		assertEquals(0, otherTableStock.getId());
+		assertSame(registry.get(stockA), registry.get(plainStockA));
+		assertNotSame(registry.get(stockA), registry.get(otherTableStock));
+		assertIterableEquals(List.of(List.of("b"), List.of("a", "a2", "a3"), List.of("c")), registry.values());
+	}
+}
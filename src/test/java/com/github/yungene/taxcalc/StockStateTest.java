@@ -1,8 +1,12 @@
 package com.github.yungene.taxcalc;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.junit.jupiter.api.Test;
@@ -97,4 +101,47 @@ public class StockStateTest {
 		assertIterableEquals(List.of(), ss.futureBuys);
 	}
 
+	@Test
+	public void testSplitOnlyAdjustsLotsMatched() {
+		Stock stock = new Stock("Stock Name", "ISIN");
+		var time = LocalDateTime.of(2022, 1, 3, 12, 0);
+		List<Transaction> buys = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			buys.add(new Transaction(true, time.plusMinutes(i), stock, 3, 10_0000, 10_0000, "b" + i, 0));
+		}
+		// A sell of the first lot, after which the others are held for over 4
+		// weeks, a 1 for 2 reverse split of the 297 shares left, and a sell of 2
+		// of them.
+		var first = new Transaction(false, time.plusDays(40), stock, 3, 25_0000, 25_0000, "s1", 0);
+		var split = new CorporateAction(time.plusDays(60), stock, stock, 2, 1);
+		var sell = new Transaction(false, time.plusDays(61), stock, 2, 25_0000, 25_0000, "s2", 0);
+		List<Transaction> txs = new ArrayList<>(buys);
+		txs.add(first);
+		txs.add(sell);
+		var ss = new StockState(stock.getIsin());
+		ss.setActions(List.of(split));
+
+		var sales = TaxEngine.matchIsin(txs, ss);
+		// Lots of 3 shares are 1 or 2 shares after the split, as the fraction is
+		// rounded for the holding: the second lot is 1 and the third 2.
+		assertEquals(3, sales.size());
+		assertEquals(1, sales.get(1).getQuantity());
+		assertEquals(1, sales.get(2).getQuantity());
+		// Lots the sell did not get to are left as they were bought.
+		assertEquals(98, ss.oldBuys.size());
+		assertEquals(1, ss.oldBuys.actionsOf(0));
+		for (int i = 1; i < 98; i++) {
+			assertSame(buys.get(i + 2), ss.oldBuys.sourceOf(i));
+			assertEquals(0, ss.oldBuys.actionsOf(i));
+			assertEquals(3, ss.oldBuys.quantityOf(i));
+		}
+		assertEquals(146, ss.held());
+
+		// The rest is still all the shares after the split.
+		var sellAll = new Transaction(false, time.plusDays(62), stock, 146, 25_0000, 25_0000, "s3", 0);
+		ss.syncQueues(sellAll);
+		List<SellReport> rest = new ArrayList<>();
+		TaxEngine.matchSell(ss, sellAll, rest);
+		assertTrue(ss.oldBuys.isEmpty());
+	}
 }
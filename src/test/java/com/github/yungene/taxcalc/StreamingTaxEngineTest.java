@@ -0,0 +1,61 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class StreamingTaxEngineTest {
+
+	@Test
+	public void testStreamMatchesFullRun() {
+		List<Transaction> txs = TaxEngineTest.generateHistory(new Random(11), 25, 3000);
+		TaxEngine full = new TaxEngine(txs);
+		full.calculateTaxFull();
+		List<SellReport> expected = new ArrayList<>();
+		for (var year : full.reports.keySet()) {
+			expected.addAll(full.reports.get(year).sales);
+		}
+
+		List<SellReport> actual = new ArrayList<>();
+		var streaming = new StreamingTaxEngine(actual::add);
+		for (var tx : full.transactions) {
+			streaming.accept(tx);
+		}
+		streaming.finish();
+
+		assertEquals(expected.toString(), actual.toString());
+	}
+
+	@Test
+	public void testReportIsEmittedWhenWindowCloses() {
+		Stock stockA = new Stock("Stock A", "IsinA");
+		Stock stockB = new Stock("Stock B", "IsinB");
+		var txBuyA1 = new Transaction(true, LocalDateTime.of(2023, 1, 1, 12, 0), stockA, 1000,
+				Transaction.euroToMil(3, 0), Transaction.euroToMil(3, 0), "ba1", 4);
+		var txSellA1 = new Transaction(false, LocalDateTime.of(2023, 5, 1, 12, 0), stockA, 1000,
+				Transaction.euroToMil(2, 0), Transaction.euroToMil(2, 0), "sa1", 3);
+		// Last day of the window.
+		var txBuyB1 = new Transaction(true, LocalDateTime.of(2023, 5, 29, 23, 59), stockB, 10,
+				Transaction.euroToMil(1, 0), Transaction.euroToMil(1, 0), "bb1", 2);
+		var txBuyB2 = new Transaction(true, LocalDateTime.of(2023, 5, 30, 0, 0), stockB, 10,
+				Transaction.euroToMil(1, 0), Transaction.euroToMil(1, 0), "bb2", 1);
+
+		List<SellReport> actual = new ArrayList<>();
+		var streaming = new StreamingTaxEngine(actual::add);
+		streaming.accept(txBuyA1);
+		streaming.accept(txSellA1);
+		streaming.accept(txBuyB1);
+		assertEquals(0, actual.size());
+		streaming.accept(txBuyB2);
+		assertEquals(1, actual.size());
+		assertEquals(-1000 * Transaction.euroToMil(1, 0), actual.get(0).getTaxableNetGains());
+
+		assertThrows(IllegalArgumentException.class, () -> streaming.accept(txSellA1));
+	}
+}
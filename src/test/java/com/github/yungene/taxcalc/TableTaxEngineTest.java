@@ -0,0 +1,89 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class TableTaxEngineTest {
+
+	/**
+	 * @return table of the transactions, with their stocks interned.
+	 */
+	static TransactionTable toTable(List<Transaction> txs) {
+		var isins = new IsinTable();
+		var table = new TransactionTable(isins, 16);
+		for (var tx : txs) {
+			var stock = isins.intern(tx.getStock().getIsin(), tx.getStock().getName());
+			table.add(tx.getEpochMinute(), stock, tx.isBuy(), tx.getQuantity(), tx.getEuroPrice(),
+					tx.getEuroTotalPrice(), tx.getSeqNum());
+		}
+		return table;
+	}
+
+	private static void assertSameReports(TransactionTable table) {
+		var expected = new TaxEngine(table.toTransactions());
+		expected.calculateTaxFull();
+		var actual = new TableTaxEngine(table);
+		actual.calculateTaxFull();
+
+		assertEquals(expected.reports.keySet(), actual.reports.keySet());
+		for (var year : expected.reports.keySet()) {
+			assertEquals(expected.reports.get(year).getTaxableNetGains(), actual.reports.get(year).getTaxableNetGains());
+			assertEquals(expected.reports.get(year).sales.toString(), actual.reports.get(year).sales.toString());
+		}
+		var e = expected.stats;
+		var a = actual.stats;
+		assertEquals(e.transactions, a.transactions);
+		assertEquals(e.sells, a.sells);
+		assertEquals(e.matches, a.matches);
+		assertEquals(e.lotSplits, a.lotSplits);
+		assertEquals(e.fourWeekMatches, a.fourWeekMatches);
+		assertEquals(e.buyWithinFourWeeksAfterSell, a.buyWithinFourWeeksAfterSell);
+		assertEquals(e.sellWithinFourWeeksAfterBuy, a.sellWithinFourWeeksAfterBuy);
+		assertEquals(e.queueDepthSum, a.queueDepthSum);
+	}
+
+	@Test
+	public void testSameReportsAsTaxEngine() {
+		for (int seed = 0; seed < 5; seed++) {
+			var txs = TaxEngineTest.generateHistory(new Random(seed), 1 + seed * 7, 3000);
+			assertSameReports(toTable(txs));
+			// Any order of the rows.
+			Collections.shuffle(txs, new Random(seed));
+			assertSameReports(toTable(txs));
+		}
+	}
+
+	@Test
+	public void testSameMinute() {
+		Stock stock = new Stock("Stock", "Isin");
+		var datetime = LocalDateTime.of(2020, 3, 1, 12, 0);
+		List<Transaction> txs = new ArrayList<>();
+		// Newest first, as in an export. Buys and sells within the same minute are
+		// ordered by sequence number only.
+		for (int i = 0; i < 20; i++) {
+			boolean isBuy = i % 3 != 1;
+			txs.add(new Transaction(isBuy, datetime.plusDays(i / 4), stock, isBuy ? 10 : 7,
+					Transaction.euroToMil(10 + i, 0), Transaction.euroToMil(10 + i, 0), "o" + i, 100 - i));
+		}
+		Collections.reverse(txs);
+		assertSameReports(toTable(txs));
+	}
+
+	@Test
+	public void testSellWithoutBuys() {
+		Stock stock = new Stock("Stock", "Isin");
+		var table = toTable(List.of(new Transaction(false, LocalDateTime.of(2020, 1, 1, 12, 0), stock, 1, 10000,
+				10000, "s", 0)));
+		var e = assertThrows(RuntimeException.class, () -> new TableTaxEngine(table).calculateTaxFull());
+		assertTrue(e.getMessage().startsWith("Was not able to find enough buys"), e.getMessage());
+	}
+}
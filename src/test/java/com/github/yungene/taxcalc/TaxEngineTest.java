@@ -1,10 +1,19 @@
 package com.github.yungene.taxcalc;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.jupiter.api.Test;
 
@@ -569,6 +578,43 @@ public class TaxEngineTest {
 		assertEquals(-1000 * Transaction.euroToMil(1, 0), actualTR2023.getTaxableNetGains());
 	}
 
+	@Test
+	public void testFourWeekRuleBoundariesSaleMidnight() {
+		Stock stockA = new Stock("Stock A", "IsinA");
+		var txBuyA1 = new Transaction(true, LocalDateTime.of(2023, 1, 1, 0, 0), stockA, 1000,
+				Transaction.euroToMil(3, 0), Transaction.euroToMil(3, 0), "ba1", 10);
+		// sell on the 29th day, buy was at the very start of the window
+		var txSellA1 = new Transaction(false, LocalDateTime.of(2023, 1, 29, 15, 0), stockA, 1000,
+				Transaction.euroToMil(2, 0), Transaction.euroToMil(2, 0), "sa1", 7);
+
+		TaxEngine te = new TaxEngine(List.of(txBuyA1, txSellA1));
+		te.calculateTaxFull();
+
+		var actualTR2023 = te.reports.get(2023);
+		assertNotNull(actualTR2023);
+		// We expect 4 weeks rule to restrict the use of loss
+		assertEquals(0, actualTR2023.getTaxableNetGains());
+	}
+
+	@Test
+	public void testSellInSameMinuteAsBuy() {
+		Stock stockA = new Stock("Stock A", "IsinA");
+		var txBuyA1 = new Transaction(true, LocalDateTime.of(2023, 1, 1, 10, 0), stockA, 1000,
+				Transaction.euroToMil(2, 0), Transaction.euroToMil(2, 0), "ba1", 10);
+		// sell in the same minute, but after the buy in the CSV order
+		var txSellA1 = new Transaction(false, LocalDateTime.of(2023, 1, 1, 10, 0), stockA, 1000,
+				Transaction.euroToMil(3, 0), Transaction.euroToMil(3, 0), "sa1", 7);
+
+		TaxEngine te = new TaxEngine(List.of(txBuyA1, txSellA1));
+		te.calculateTaxFull();
+
+		var actualTR2023 = te.reports.get(2023);
+		assertNotNull(actualTR2023);
+		assertEquals(1000 * Transaction.euroToMil(1, 0), actualTR2023.getTaxableNetGains());
+		assertTrue(actualTR2023.sales.get(0).sellWithinFourWeeksAfterBuy);
+		assertFalse(actualTR2023.sales.get(0).buyWithinFourWeeksAfterSell);
+	}
+
 	// Test 4 week boundary for FIFO, assume profit and check that it first matches
 	// with 4 weeks.
 	@Test
@@ -658,4 +704,267 @@ public class TaxEngineTest {
 		// add up all profits and disregard all losses.
 		assertEquals(500 * Transaction.euroToMil(1, 0), actualTR2023.getTaxableNetGains());
 	}
+
+	// Sell is matched against several old buys, and is re-acquired in several
+	// buys within 4 weeks after the sell. Every re-acquired share should restrict
+	// the loss on exactly one sold share.
+	@Test
+	public void testFourWeekRuleReacquireAcrossSplitSell() {
+		Stock stockA = new Stock("Stock A", "IsinA");
+		var txBuyA1 = new Transaction(true, LocalDateTime.of(2022, 1, 1, 12, 0), stockA, 10,
+				Transaction.euroToMil(5, 0), Transaction.euroToMil(5, 0), "ba1", 10);
+		var txBuyA2 = new Transaction(true, LocalDateTime.of(2022, 2, 1, 12, 0), stockA, 90,
+				Transaction.euroToMil(5, 0), Transaction.euroToMil(5, 0), "ba2", 9);
+		var txSellA1 = new Transaction(false, LocalDateTime.of(2022, 6, 1, 12, 0), stockA, 100,
+				Transaction.euroToMil(3, 0), Transaction.euroToMil(3, 0), "sa1", 8);
+		// Re-acquire everything in 2 tranches.
+		var txBuyA3 = new Transaction(true, LocalDateTime.of(2022, 6, 10, 12, 0), stockA, 50,
+				Transaction.euroToMil(3, 0), Transaction.euroToMil(3, 0), "ba3", 7);
+		var txBuyA4 = new Transaction(true, LocalDateTime.of(2022, 6, 20, 12, 0), stockA, 50,
+				Transaction.euroToMil(3, 0), Transaction.euroToMil(3, 0), "ba4", 6);
+
+		TaxEngine te = new TaxEngine(List.of(txBuyA4, txBuyA3, txSellA1, txBuyA2, txBuyA1));
+		te.calculateTaxFull();
+
+		var actualTR2022 = te.reports.get(2022);
+		assertNotNull(actualTR2022);
+		// Whole loss of 200.00 falls under the four weeks rule.
+		assertEquals(0, actualTR2022.getTaxableNetGains());
+		int sold = 0;
+		for (var sellReport : actualTR2022.sales) {
+			assertSame(txSellA1, sellReport.originalSellTransaction);
+			assertTrue(sellReport.buyWithinFourWeeksAfterSell);
+			sold += sellReport.getQuantity();
+		}
+		assertEquals(100, sold);
+	}
+
+	@Test
+	public void testSplitAndReverseSplit() {
+		Stock stockA = new Stock("Stock A", "IsinA");
+		var txBuyA1 = new Transaction(true, LocalDateTime.of(2020, 1, 10, 12, 0), stockA, 10,
+				Transaction.euroToMil(100, 0), Transaction.euroToMil(100, 0), "ba1", 5);
+		// 4 for 1 split, the lot is 40 shares at 25.00 after it.
+		var split = new CorporateAction(LocalDateTime.of(2020, 6, 1, 8, 0), stockA, stockA, 1, 4);
+		var txSellA1 = new Transaction(false, LocalDateTime.of(2020, 9, 1, 12, 0), stockA, 30,
+				Transaction.euroToMil(30, 0), Transaction.euroToMil(30, 0), "sa1", 4);
+		// 1 for 3 reverse split of the 10 shares left, 3 shares at 75.00 are left
+		// of them, and the third of a share is dropped.
+		var reverseSplit = new CorporateAction(LocalDateTime.of(2021, 3, 1, 8, 0), stockA, stockA, 3, 1);
+		var txBuyA2 = new Transaction(true, LocalDateTime.of(2021, 4, 1, 12, 0), stockA, 2,
+				Transaction.euroToMil(90, 0), Transaction.euroToMil(90, 0), "ba2", 3);
+		var txSellA2 = new Transaction(false, LocalDateTime.of(2021, 7, 1, 12, 0), stockA, 4,
+				Transaction.euroToMil(100, 0), Transaction.euroToMil(100, 0), "sa2", 2);
+
+		TaxEngine te = new TaxEngine(List.of(txSellA2, txBuyA2, txSellA1, txBuyA1), List.of(reverseSplit, split));
+		te.calculateTaxFull();
+
+		var report2020 = te.reports.get(2020);
+		assertEquals(1, report2020.sales.size());
+		assertEquals(30 * Transaction.euroToMil(5, 0), report2020.getTaxableNetGains());
+		var buy = report2020.sales.get(0).getBuyTransaction();
+		assertEquals(30, buy.getQuantity());
+		assertEquals(Transaction.euroToMil(25, 0), buy.getEuroTotalPrice());
+		assertEquals(txBuyA1.getDatetime(), buy.getDatetime());
+
+		var report2021 = te.reports.get(2021);
+		assertEquals(2, report2021.sales.size());
+		assertEquals(3 * Transaction.euroToMil(25, 0) + Transaction.euroToMil(10, 0),
+				report2021.getTaxableNetGains());
+		assertEquals(3, report2021.sales.get(0).getQuantity());
+
+		// Without the actions, the second sell is not covered.
+		TaxEngine unadjusted = new TaxEngine(List.of(txSellA2, txBuyA2, txSellA1, txBuyA1));
+		assertThrows(RuntimeException.class, () -> unadjusted.calculateTaxFull());
+	}
+
+	@Test
+	public void testIsinChange() {
+		Stock stockA = new Stock("Stock A", "IsinA");
+		Stock stockB = new Stock("Stock B", "IsinB");
+		var txBuyA1 = new Transaction(true, LocalDateTime.of(2020, 1, 10, 12, 0), stockA, 10,
+				Transaction.euroToMil(10, 0), Transaction.euroToMil(10, 0), "ba1", 4);
+		var txSellA1 = new Transaction(false, LocalDateTime.of(2020, 2, 10, 12, 0), stockA, 4,
+				Transaction.euroToMil(11, 0), Transaction.euroToMil(11, 0), "sa1", 3);
+		// A becomes B, 2 shares of B for every share of A.
+		var change = new CorporateAction(LocalDateTime.of(2020, 6, 1, 8, 0), stockA, stockB, 1, 2);
+		var txSellB1 = new Transaction(false, LocalDateTime.of(2020, 9, 1, 12, 0), stockB, 12,
+				Transaction.euroToMil(6, 0), Transaction.euroToMil(6, 0), "sb1", 2);
+
+		for (int mode = 0; mode < 3; mode++) {
+			TaxEngine te = new TaxEngine(List.of(txSellB1, txSellA1, txBuyA1), List.of(change));
+			if (mode == 0) {
+				te.calculateTaxFull();
+			} else if (mode == 1) {
+				te.calculateTaxFullParallel(new ForkJoinPool(2));
+			} else {
+				te.calculateTaxYear(2020);
+			}
+			var report = te.reports.get(2020);
+			assertEquals(2, report.sales.size());
+			assertEquals(4 * Transaction.euroToMil(1, 0) + 12 * Transaction.euroToMil(1, 0),
+					report.getTaxableNetGains());
+			var sellReport = report.sales.get(1);
+			assertSame(stockB, sellReport.stock);
+			assertSame(stockA, sellReport.getBuyTransaction().getStock());
+		}
+		// One holding, with the state of B.
+		TaxEngine te = new TaxEngine(List.of(txSellB1, txSellA1, txBuyA1), List.of(change));
+		te.calculateTaxFull();
+		assertEquals(1, te.states.values().size());
+		assertEquals("IsinB", te.states.get(stockB).isin);
+	}
+
+	@Test
+	public void testFourWeekRuleAcrossSplit() {
+		Stock stockA = new Stock("Stock A", "IsinA");
+		var txBuyA1 = new Transaction(true, LocalDateTime.of(2020, 1, 10, 12, 0), stockA, 10,
+				Transaction.euroToMil(10, 0), Transaction.euroToMil(10, 0), "ba1", 3);
+		var txSellA1 = new Transaction(false, LocalDateTime.of(2020, 5, 1, 12, 0), stockA, 10,
+				Transaction.euroToMil(8, 0), Transaction.euroToMil(8, 0), "sa1", 2);
+		var split = new CorporateAction(LocalDateTime.of(2020, 5, 5, 8, 0), stockA, stockA, 1, 2);
+		// Re-acquired after the split, 20 new shares are the 10 sold.
+		var txBuyA2 = new Transaction(true, LocalDateTime.of(2020, 5, 10, 12, 0), stockA, 20,
+				Transaction.euroToMil(4, 0), Transaction.euroToMil(4, 0), "ba2", 1);
+
+		TaxEngine te = new TaxEngine(List.of(txBuyA2, txSellA1, txBuyA1), List.of(split));
+		te.calculateTaxFull();
+		var report = te.reports.get(2020);
+		assertEquals(1, report.sales.size());
+		var sellReport = report.sales.get(0);
+		assertEquals(10, sellReport.getQuantity());
+		assertTrue(sellReport.buyWithinFourWeeksAfterSell);
+		// Loss of 20.00 is not allowed.
+		assertEquals(0, report.getTaxableNetGains());
+		assertEquals(10 * Transaction.euroToMil(-2, 0), sellReport.getNetGains());
+	}
+
+	@Test
+	public void testSellBeforeSplitAndBuyAfter() {
+		Stock stockA = new Stock("Stock A", "IsinA");
+		var txBuyA1 = new Transaction(true, LocalDateTime.of(2020, 1, 10, 12, 0), stockA, 20,
+				Transaction.euroToMil(10, 0), Transaction.euroToMil(10, 0), "ba1", 4);
+		var txSellA1 = new Transaction(false, LocalDateTime.of(2020, 5, 1, 12, 0), stockA, 10,
+				Transaction.euroToMil(12, 0), Transaction.euroToMil(12, 0), "sa1", 3);
+		var split = new CorporateAction(LocalDateTime.of(2020, 5, 5, 8, 0), stockA, stockA, 1, 4);
+		var txSellA2 = new Transaction(false, LocalDateTime.of(2020, 9, 1, 12, 0), stockA, 50,
+				Transaction.euroToMil(4, 0), Transaction.euroToMil(4, 0), "sa2", 1);
+
+		// Buy in the 4 weeks after the first sell, and long after it. The buy is
+		// 2.5 shares of the sell, it is left as 10 shares either way.
+		for (var buyTime : List.of(LocalDateTime.of(2020, 5, 10, 12, 0), LocalDateTime.of(2020, 6, 30, 12, 0))) {
+			var txBuyA2 = new Transaction(true, buyTime, stockA, 10, Transaction.euroToMil(3, 0),
+					Transaction.euroToMil(3, 0), "ba2", 2);
+			TaxEngine te = new TaxEngine(List.of(txSellA2, txBuyA2, txSellA1, txBuyA1), List.of(split));
+			te.calculateTaxFull();
+			int sold = 0;
+			for (var sellReport : te.reports.get(2020).sales) {
+				if (sellReport.originalSellTransaction == txSellA2) {
+					sold += sellReport.getQuantity();
+				}
+			}
+			assertEquals(50, sold);
+			var first = te.reports.get(2020).sales.get(0);
+			assertEquals(buyTime.getMonthValue() == 5, first.buyWithinFourWeeksAfterSell);
+			assertEquals(buyTime.getMonthValue() == 5 ? 2 : 10, first.getQuantity());
+		}
+	}
+
+	@Test
+	public void testReverseSplitOfSeveralLots() {
+		Stock stockA = new Stock("Stock A", "IsinA");
+		var txBuyA1 = new Transaction(true, LocalDateTime.of(2020, 1, 10, 12, 0), stockA, 4,
+				Transaction.euroToMil(10, 0), Transaction.euroToMil(10, 0), "ba1", 3);
+		var txBuyA2 = new Transaction(true, LocalDateTime.of(2020, 2, 10, 12, 0), stockA, 5,
+				Transaction.euroToMil(20, 0), Transaction.euroToMil(20, 0), "ba2", 2);
+		// 1 for 3 reverse split, the 9 shares are 3.
+		var reverseSplit = new CorporateAction(LocalDateTime.of(2020, 6, 1, 8, 0), stockA, stockA, 3, 1);
+		var txSellA1 = new Transaction(false, LocalDateTime.of(2020, 9, 1, 12, 0), stockA, 3,
+				Transaction.euroToMil(70, 0), Transaction.euroToMil(70, 0), "sa1", 1);
+
+		TaxEngine te = new TaxEngine(List.of(txSellA1, txBuyA2, txBuyA1), List.of(reverseSplit));
+		te.calculateTaxFull();
+		var sales = te.reports.get(2020).sales;
+		assertEquals(2, sales.size());
+		assertEquals(1, sales.get(0).getQuantity());
+		assertEquals(Transaction.euroToMil(30, 0), sales.get(0).getBuyTransaction().getEuroTotalPrice());
+		assertEquals(2, sales.get(1).getQuantity());
+		assertEquals(Transaction.euroToMil(60, 0), sales.get(1).getBuyTransaction().getEuroTotalPrice());
+	}
+
+	@Test
+	public void testParallelMatchesSequential() {
+		List<Transaction> txs = generateHistory(new Random(42), 40, 2000);
+
+		TaxEngine sequential = new TaxEngine(txs);
+		sequential.calculateTaxFull();
+		TaxEngine parallel = new TaxEngine(txs);
+		parallel.calculateTaxFullParallel(new ForkJoinPool(4));
+
+		assertEquals(sequential.reports.keySet(), parallel.reports.keySet());
+		for (var year : sequential.reports.keySet()) {
+			var expected = sequential.reports.get(year);
+			var actual = parallel.reports.get(year);
+			assertEquals(expected.getTaxableNetGains(), actual.getTaxableNetGains());
+			assertEquals(expected.sales.toString(), actual.sales.toString());
+		}
+	}
+
+	@Test
+	public void testSingleYearMatchesFull() {
+		// Few transactions over many ISINs, so some ISINs have no sells in a year.
+		List<Transaction> txs = generateHistory(new Random(43), 60, 1500);
+		TaxEngine full = new TaxEngine(txs);
+		full.calculateTaxFull();
+
+		int skipped = 0;
+		for (var year : full.reports.keySet()) {
+			TaxEngine single = new TaxEngine(txs);
+			single.calculateTaxYear(year);
+			assertEquals(Set.of(year), single.reports.keySet());
+			var expected = full.reports.get(year);
+			var actual = single.reports.get(year);
+			assertEquals(expected.getTaxableNetGains(), actual.getTaxableNetGains());
+			assertEquals(expected.sales.toString(), actual.sales.toString());
+			assertTrue(single.stats.transactions < txs.size());
+			skipped += single.stats.skippedIsins;
+		}
+		assertTrue(skipped > 0);
+
+		// Year without any transactions.
+		TaxEngine single = new TaxEngine(txs);
+		single.calculateTaxYear(2000);
+		assertTrue(single.reports.get(2000).sales.isEmpty());
+	}
+
+	/**
+	 * Random history of buys and sells over a few years. Sells never exceed what
+	 * is held, and transactions are returned in reverse chronological order like
+	 * in Degiro exports.
+	 */
+	static List<Transaction> generateHistory(Random random, int isinCount, int txCount) {
+		Stock[] stocks = new Stock[isinCount];
+		int[] held = new int[isinCount];
+		for (int i = 0; i < isinCount; i++) {
+			stocks[i] = new Stock("Stock " + i, "Isin" + i);
+		}
+		List<Transaction> txs = new ArrayList<>();
+		var datetime = LocalDateTime.of(2018, 1, 1, 0, 0);
+		for (int seqNum = txCount; seqNum > 0; seqNum--) {
+			datetime = datetime.plusMinutes(random.nextInt(3 * 24 * 60));
+			int s = random.nextInt(isinCount);
+			long price = Transaction.euroToMil(1 + random.nextInt(100), random.nextInt(100));
+			if (held[s] > 0 && random.nextInt(3) == 0) {
+				int quantity = 1 + random.nextInt(held[s]);
+				held[s] -= quantity;
+				txs.add(new Transaction(false, datetime, stocks[s], quantity, price, price, "s" + seqNum, seqNum));
+			} else {
+				int quantity = 1 + random.nextInt(100);
+				held[s] += quantity;
+				txs.add(new Transaction(true, datetime, stocks[s], quantity, price, price, "b" + seqNum, seqNum));
+			}
+		}
+		Collections.reverse(txs);
+		return txs;
+	}
 }
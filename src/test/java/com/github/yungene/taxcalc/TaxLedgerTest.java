@@ -0,0 +1,117 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+public class TaxLedgerTest {
+	private static final Stock stock = new Stock("Stock A", "IE00A");
+
+	/**
+	 * @return report of the year with a single sale of the net gains, in euro.
+	 */
+	private static TaxReport report(int year, int gains) {
+		var buy = new Transaction(true, LocalDateTime.of(year, 1, 2, 9, 0), stock, 1, Transaction.euroToMil(10000, 0),
+				Transaction.euroToMil(10000, 0), "b" + year, 0);
+		var sell = new Transaction(false, LocalDateTime.of(year, 6, 1, 9, 0), stock, 1,
+				Transaction.euroToMil(10000 + gains, 0), Transaction.euroToMil(10000 + gains, 0), "s" + year, 0);
+		var engine = new TaxEngine(List.of(buy, sell));
+		engine.calculateTaxFull();
+		return engine.reports.get(year);
+	}
+
+	private static Map<Integer, TaxReport> reports(int... yearsAndGains) {
+		Map<Integer, TaxReport> reports = new TreeMap<>();
+		for (int i = 0; i < yearsAndGains.length; i += 2) {
+			reports.put(yearsAndGains[i], report(yearsAndGains[i], yearsAndGains[i + 1]));
+		}
+		return reports;
+	}
+
+	@Test
+	public void testExemption() {
+		var ledger = TaxLedger.of(reports(2020, 1000, 2021, 5000));
+
+		var y2020 = ledger.get(2020);
+		assertEquals(Transaction.euroToMil(1000, 0), y2020.getExemptionUsed());
+		assertEquals(0, y2020.getChargeableGains());
+		assertEquals(0, y2020.getTaxDue());
+
+		// The unused exemption of 2020 is not carried forward.
+		var y2021 = ledger.get(2021);
+		assertEquals(TaxEngine.TAX_EXEMPTION_MIL, y2021.getExemptionUsed());
+		assertEquals(Transaction.euroToMil(5000, 0) - TaxEngine.TAX_EXEMPTION_MIL, y2021.getChargeableGains());
+		assertEquals(TaxEngine.taxDue(Transaction.euroToMil(5000, 0)), y2021.getTaxDue());
+		assertNull(ledger.get(2022));
+	}
+
+	@Test
+	public void testLossesCarriedForward() {
+		var ledger = TaxLedger.of(reports(2019, -3000, 2020, 2000, 2021, 4000));
+
+		var y2019 = ledger.get(2019);
+		assertEquals(0, y2019.getTaxDue());
+		assertEquals(Transaction.euroToMil(3000, 0), y2019.getLossesCarriedForward());
+
+		// Losses are used before the exemption, even if that leaves it unused.
+		var y2020 = ledger.get(2020);
+		assertEquals(Transaction.euroToMil(3000, 0), y2020.getLossesBroughtForward());
+		assertEquals(Transaction.euroToMil(2000, 0), y2020.getLossesUsed());
+		assertEquals(0, y2020.getExemptionUsed());
+		assertEquals(0, y2020.getTaxDue());
+		assertEquals(Transaction.euroToMil(1000, 0), y2020.getLossesCarriedForward());
+
+		var y2021 = ledger.get(2021);
+		assertEquals(Transaction.euroToMil(1000, 0), y2021.getLossesUsed());
+		assertEquals(TaxEngine.TAX_EXEMPTION_MIL, y2021.getExemptionUsed());
+		assertEquals(TaxEngine.taxDue(Transaction.euroToMil(3000, 0)), y2021.getTaxDue());
+		assertEquals(0, y2021.getLossesCarriedForward());
+	}
+
+	@Test
+	public void testUpdateOnlyFoldsLaterYears() {
+		var ledger = TaxLedger.of(reports(2018, 2000, 2019, -500, 2020, 3000, 2021, 3000));
+		assertEquals(4, ledger.yearsFolded);
+
+		// More gains in 2018 don't change what is brought into 2019.
+		ledger.update(report(2018, 4000));
+		assertEquals(5, ledger.yearsFolded);
+
+		// A loss in 2019 changes 2020, which then still carries nothing forward.
+		ledger.update(report(2019, -2000));
+		assertEquals(7, ledger.yearsFolded);
+		assertEquals(Transaction.euroToMil(2000, 0), ledger.get(2020).getLossesUsed());
+		assertEquals(0, ledger.get(2021).getLossesBroughtForward());
+
+		// A new year at the end is the only one folded.
+		ledger.update(report(2022, -100));
+		assertEquals(8, ledger.yearsFolded);
+		assertEquals(Transaction.euroToMil(100, 0), ledger.get(2022).getLossesCarriedForward());
+	}
+
+	@Test
+	public void testUpdateSameAsOf() {
+		List<Transaction> txs = TaxEngineTest.generateHistory(new Random(11), 10, 2000);
+		var engine = new TaxEngine(txs);
+		engine.calculateTaxFull();
+		var expected = TaxLedger.of(engine.reports);
+
+		var ledger = new TaxLedger();
+		for (var report : engine.reports.values()) {
+			ledger.update(report);
+		}
+		assertEquals(expected.years().toString(), ledger.years().toString());
+		for (var year : ledger.years()) {
+			if (year.getLossesBroughtForward() == 0) {
+				assertEquals(TaxEngine.taxDue(year.getNetGains()), year.getTaxDue());
+			}
+		}
+	}
+}
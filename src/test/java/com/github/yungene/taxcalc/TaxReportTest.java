@@ -0,0 +1,86 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class TaxReportTest {
+
+	private static void assertTotals(TaxReport report) {
+		long gains = 0;
+		long losses = 0;
+		long sales = 0;
+		Map<String, Long> isinNetGains = new HashMap<>();
+		for (var sale : report.sales) {
+			long taxable = sale.getTaxableNetGains();
+			gains += Math.max(taxable, 0);
+			losses += Math.max(-taxable, 0);
+			sales += sale.originalSellTransaction.getEuroTotalPrice() * sale.getQuantity();
+			isinNetGains.merge(sale.stock.getIsin(), taxable, Long::sum);
+		}
+		assertEquals(gains, report.getTotalGains());
+		assertEquals(losses, report.getTotalLosses());
+		assertEquals(gains - losses, report.getTaxableNetGains());
+		assertEquals(sales, report.getTotalSales());
+		assertEquals(report.sales.size(), report.getTotal().getCount());
+		assertEquals(isinNetGains.keySet(), report.getIsinSubtotals().keySet());
+		for (var entry : isinNetGains.entrySet()) {
+			assertEquals(entry.getValue(), report.getIsinSubtotal(entry.getKey()).getNetGains());
+		}
+	}
+
+	@Test
+	public void testTotalsMatchSales() {
+		List<Transaction> txs = TaxEngineTest.generateHistory(new Random(3), 20, 3000);
+		var engine = new TaxEngine(txs);
+		engine.calculateTaxFull();
+		for (var report : engine.reports.values()) {
+			assertTotals(report);
+			long netGains = report.getTaxableNetGains();
+			report.calculateGains();
+			assertEquals(netGains, report.getTaxableNetGains());
+			assertTotals(report);
+		}
+	}
+
+	@Test
+	public void testGainsAndLosses() {
+		Stock stockA = new Stock("Stock A", "IsinA");
+		Stock stockB = new Stock("Stock B", "IsinB");
+		var txs = new ArrayList<Transaction>();
+		txs.add(new Transaction(true, LocalDateTime.of(2023, 1, 1, 12, 0), stockA, 10, Transaction.euroToMil(2, 0),
+				Transaction.euroToMil(2, 0), "ba", 3));
+		txs.add(new Transaction(true, LocalDateTime.of(2023, 1, 1, 12, 0), stockB, 10, Transaction.euroToMil(2, 0),
+				Transaction.euroToMil(2, 0), "bb", 2));
+		txs.add(new Transaction(false, LocalDateTime.of(2023, 6, 1, 12, 0), stockA, 10, Transaction.euroToMil(3, 0),
+				Transaction.euroToMil(3, 0), "sa", 1));
+		txs.add(new Transaction(false, LocalDateTime.of(2023, 6, 1, 12, 0), stockB, 10, Transaction.euroToMil(1, 0),
+				Transaction.euroToMil(1, 0), "sb", 0));
+		var engine = new TaxEngine(txs);
+		engine.calculateTaxFull();
+		var report = engine.reports.get(2023);
+
+		assertEquals(10 * Transaction.euroToMil(1, 0), report.getTotalGains());
+		assertEquals(10 * Transaction.euroToMil(1, 0), report.getTotalLosses());
+		assertEquals(0, report.getTaxableNetGains());
+		assertEquals(10 * Transaction.euroToMil(4, 0), report.getTotalSales());
+		assertEquals(List.of("IsinA", "IsinB"), new ArrayList<>(report.getIsinSubtotals().keySet()));
+		assertEquals(10 * Transaction.euroToMil(1, 0), report.getIsinSubtotal("IsinA").getGains());
+		assertEquals(0, report.getIsinSubtotal("IsinA").getLosses());
+		assertEquals(-10 * Transaction.euroToMil(1, 0), report.getIsinSubtotal("IsinB").getNetGains());
+
+		report.removeLastSales(1);
+		assertEquals(10 * Transaction.euroToMil(1, 0), report.getTaxableNetGains());
+		assertEquals(0, report.getTotalLosses());
+		assertNull(report.getIsinSubtotal("IsinB"));
+		assertTotals(report);
+	}
+}
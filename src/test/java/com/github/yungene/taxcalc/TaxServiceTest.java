@@ -0,0 +1,148 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class TaxServiceTest {
+	final static String upload = String.join("\n", TransactionsParserTest.degiroHeader, BatchCalculatorTest.sellRow,
+			BatchCalculatorTest.buyRow) + "\n";
+
+	static class Response {
+		int status;
+		String body;
+	}
+
+	private static TaxService start(int threads, int queue, int maxUpload) throws IOException {
+		var service = new TaxService(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), threads, queue,
+				maxUpload, ReportWriter.Format.TEXT, new MatchCache(1000));
+		service.start();
+		return service;
+	}
+
+	private static Response request(TaxService service, String method, String path, String body) throws IOException {
+		var url = new URL("http", "localhost", service.getPort(), path);
+		var connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod(method);
+		if (body != null) {
+			connection.setDoOutput(true);
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write(body.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		var response = new Response();
+		response.status = connection.getResponseCode();
+		InputStream in = response.status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		response.body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		in.close();
+		return response;
+	}
+
+	private static String expectedReport(ReportWriter.Format format) throws IOException {
+		var taxEngine = new TaxEngine(new TransactionsParser().parseCsv(new StringReader(upload)));
+		taxEngine.calculateTaxFull();
+		var sw = new StringWriter();
+		var writer = new ReportWriter(sw, format);
+		for (var report : taxEngine.reports.values()) {
+			writer.writeReport(report);
+		}
+		writer.finish();
+		return sw.toString();
+	}
+
+	@Test
+	public void testReports() throws Exception {
+		var service = start(2, 4, TaxService.DEFAULT_MAX_UPLOAD);
+		try {
+			for (int i = 0; i < 3; i++) {
+				var response = request(service, "POST", TaxService.REPORT_PATH, upload);
+				assertEquals(200, response.status);
+				assertEquals(expectedReport(ReportWriter.Format.TEXT), response.body);
+			}
+			var response = request(service, "POST", TaxService.REPORT_PATH + "?format=json", upload);
+			assertEquals(200, response.status);
+			assertEquals(expectedReport(ReportWriter.Format.JSON), response.body);
+
+			response = request(service, "POST", TaxService.REPORT_PATH + "?year=2022&format=csv", upload);
+			assertEquals(expectedReport(ReportWriter.Format.CSV), response.body);
+			response = request(service, "POST", TaxService.REPORT_PATH + "?year=2021&format=csv", upload);
+			assertEquals(ReportWriter.CSV_HEADER + "\n", response.body);
+			assertEquals(400, request(service, "POST", TaxService.REPORT_PATH + "?year=last", upload).status);
+
+			// Byte order mark is skipped.
+			response = request(service, "POST", TaxService.REPORT_PATH, "\uFEFF" + upload);
+			assertEquals(expectedReport(ReportWriter.Format.TEXT), response.body);
+
+			assertEquals(200, request(service, "GET", TaxService.HEALTH_PATH, null).status);
+			assertEquals(405, request(service, "GET", TaxService.REPORT_PATH, null).status);
+			assertEquals(400, request(service, "POST", TaxService.REPORT_PATH + "?format=xml", upload).status);
+			// Sell without its buy.
+			response = request(service, "POST", TaxService.REPORT_PATH,
+					TransactionsParserTest.degiroHeader + "\n" + BatchCalculatorTest.sellRow + "\n");
+			assertEquals(400, response.status);
+			assertTrue(response.body.startsWith("Was not able to find enough buys"), response.body);
+		} finally {
+			service.stop();
+		}
+	}
+
+	@Test
+	public void testUploadTooLarge() throws Exception {
+		var service = start(1, 0, upload.length() - 1);
+		try {
+			assertEquals(413, request(service, "POST", TaxService.REPORT_PATH, upload).status);
+		} finally {
+			service.stop();
+		}
+		service = start(1, 0, upload.length());
+		try {
+			assertEquals(200, request(service, "POST", TaxService.REPORT_PATH, upload).status);
+		} finally {
+			service.stop();
+		}
+	}
+
+	@Test
+	public void testBusyServiceTurnsRequestsAway() throws Exception {
+		var service = start(1, 0, TaxService.DEFAULT_MAX_UPLOAD);
+		try (var socket = new Socket(InetAddress.getLoopbackAddress(), service.getPort())) {
+			// Only half of the upload, so its worker waits for the rest.
+			byte[] body = upload.getBytes(StandardCharsets.UTF_8);
+			var out = socket.getOutputStream();
+			out.write(String.format("POST %s HTTP/1.1\r\nHost: localhost\r\nContent-Length: %d\r\n\r\n",
+					TaxService.REPORT_PATH, body.length).getBytes(StandardCharsets.US_ASCII));
+			out.write(body, 0, body.length / 2);
+			out.flush();
+
+			// Until the half upload is admitted, other requests are still served.
+			Response response;
+			long deadline = System.currentTimeMillis() + 10_000;
+			do {
+				response = request(service, "POST", TaxService.REPORT_PATH, upload);
+			} while (response.status == 200 && System.currentTimeMillis() < deadline);
+			assertEquals(503, response.status);
+
+			out.write(body, body.length / 2, body.length - body.length / 2);
+			out.flush();
+			var in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+			assertEquals("HTTP/1.1 200 OK", in.readLine());
+		} finally {
+			service.stop();
+		}
+	}
+}
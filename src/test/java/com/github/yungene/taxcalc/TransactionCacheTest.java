@@ -0,0 +1,108 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TransactionCacheTest {
+
+	private static File writeCsv(Path tempDir, List<String> rows) throws IOException {
+		List<String> lines = new ArrayList<>();
+		lines.add(TransactionsParserTest.degiroHeader);
+		lines.addAll(rows);
+		File file = tempDir.resolve("Transactions.csv").toFile();
+		Files.write(file.toPath(), lines);
+		return file;
+	}
+
+	@Test
+	public void testCacheRoundTrip(@TempDir Path tempDir) throws IOException {
+		File file = writeCsv(tempDir, TransactionsParserTest.degiroRows);
+		List<Transaction> expected = new TransactionsParser().parseFile(file);
+
+		var first = new TransactionsParser();
+		assertIterableEquals(expected, first.parseFileCached(file, false));
+		File cacheFile = TransactionCache.cacheFileFor(file);
+		assertTrue(cacheFile.isFile());
+
+		var isins = new IsinTable();
+		var cached = TransactionCache.read(cacheFile, TransactionCache.key(file, CsvLayout.DEGIRO), isins, 0);
+		assertNotNull(cached);
+		assertIterableEquals(expected, cached.transactions);
+		assertSame(isins.get(0), cached.transactions.get(0).getStock());
+
+		// Sequence numbers continue, same as for parseFile.
+		var second = new TransactionsParser();
+		second.parseFile(file);
+		var again = second.parseFileCached(file, false);
+		assertEquals(3, again.get(0).getSeqNum());
+		assertEquals(6, second.parseFile(file).get(0).getSeqNum());
+	}
+
+	@Test
+	public void testCacheInvalidatedByChange(@TempDir Path tempDir) throws IOException {
+		File file = writeCsv(tempDir, TransactionsParserTest.degiroRows);
+		new TransactionsParser().parseFileCached(file, false);
+		byte[] oldHash = TransactionCache.key(file, CsvLayout.DEGIRO);
+
+		file = writeCsv(tempDir, TransactionsParserTest.degiroRows.subList(1, 3));
+		File cacheFile = TransactionCache.cacheFileFor(file);
+		assertNull(TransactionCache.read(cacheFile, TransactionCache.key(file, CsvLayout.DEGIRO), new IsinTable(), 0));
+		assertEquals(2, new TransactionsParser().parseFileCached(file, true).size());
+		// Cache was written again for the new content.
+		assertNull(TransactionCache.read(cacheFile, oldHash, new IsinTable(), 0));
+		assertEquals(2, TransactionCache.read(cacheFile, TransactionCache.key(file, CsvLayout.DEGIRO), new IsinTable(), 0).transactions.size());
+	}
+
+	@Test
+	public void testBrokenCacheIsIgnored(@TempDir Path tempDir) throws IOException {
+		File file = writeCsv(tempDir, TransactionsParserTest.degiroRows);
+		new TransactionsParser().parseFileCached(file, false);
+		File cacheFile = TransactionCache.cacheFileFor(file);
+		byte[] bytes = Files.readAllBytes(cacheFile.toPath());
+		Files.write(cacheFile.toPath(), java.util.Arrays.copyOf(bytes, bytes.length - 20));
+
+		assertNull(TransactionCache.read(cacheFile, TransactionCache.key(file, CsvLayout.DEGIRO), new IsinTable(), 0));
+		assertIterableEquals(new TransactionsParser().parseFile(file), new TransactionsParser().parseFileCached(file, false));
+	}
+
+	@Test
+	public void testCacheKeepsSkippedRows(@TempDir Path tempDir) throws IOException {
+		List<String> rows = new ArrayList<>(TransactionsParserTest.degiroRows);
+		// Row without an order ID or shares, skipped but not a corporate action.
+		rows.add("01-06-2022,09:00,RYANAIR HOLDINGS PLC,IE00BYTBXV33,IRL,,0,0.0000,EUR,0.00,EUR,0.00,,,,-2.00,");
+		File file = writeCsv(tempDir, rows);
+		var first = new TransactionsParser();
+		assertEquals(3, first.parseFileCached(file, false).size());
+		assertEquals(1, first.getSkippedRows());
+		assertTrue(TransactionCache.cacheFileFor(file).isFile());
+
+		var second = new TransactionsParser();
+		assertEquals(3, second.parseFileCached(file, false).size());
+		assertEquals(1, second.getSkippedRows());
+	}
+
+	@Test
+	public void testCacheKeyedByLayout(@TempDir Path tempDir) throws IOException {
+		File file = writeCsv(tempDir, TransactionsParserTest.degiroRows);
+		new TransactionsParser().parseFileCached(file, false);
+		File cacheFile = TransactionCache.cacheFileFor(file);
+		var other = new CsvLayout("Other", CsvLayout.DateOrder.DAY_MONTH_YEAR, '-');
+
+		assertNotNull(TransactionCache.read(cacheFile, TransactionCache.key(file, CsvLayout.DEGIRO), new IsinTable(), 0));
+		assertNull(TransactionCache.read(cacheFile, TransactionCache.key(file, other), new IsinTable(), 0));
+	}
+}
@@ -0,0 +1,81 @@
+package com.github.yungene.taxcalc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class TransactionTableTest {
+
+	@Test
+	public void testRows() {
+		var isins = new IsinTable();
+		var stock = isins.intern("Isin", "Stock");
+		var datetime = LocalDateTime.of(2020, 2, 29, 23, 59);
+		var buy = new Transaction(true, datetime, stock, 10, 12_3400, 12_5900, "b", 1);
+		// Sell of nothing is still a sell.
+		var sell = new Transaction(false, datetime.plusMinutes(1), stock, 0, 1, 2, "s", 0);
+		// Many rows, so that the columns grow.
+		List<Transaction> txs = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			txs.add(i % 2 == 0 ? buy : sell);
+		}
+		var table = TransactionTable.of(txs, isins);
+		assertEquals(50, table.size());
+		for (int row = 0; row < 50; row++) {
+			var tx = table.toTransaction(row);
+			var expected = txs.get(row);
+			assertEquals(expected.getDatetime(), tx.getDatetime());
+			assertEquals(expected.isBuy(), tx.isBuy());
+			assertEquals(expected.getQuantity(), tx.getQuantity());
+			assertEquals(expected.getEuroPrice(), tx.getEuroPrice());
+			assertEquals(expected.getEuroTotalPrice(), tx.getEuroTotalPrice());
+			assertEquals(expected.getSeqNum(), tx.getSeqNum());
+			assertSame(stock, tx.getStock());
+			assertEquals(TransactionTable.NO_ORDER_ID, tx.getOrderId());
+		}
+		assertFalse(table.isBuy(1));
+		assertEquals(buy.getEpochDay(), table.epochDay(0));
+
+		// Stocks have to come from the table's IsinTable.
+		assertThrows(IllegalArgumentException.class, () -> table.add(new Transaction(true, datetime,
+				new Stock("Stock", "Isin"), 1, 1, 1, "o", 2)));
+	}
+
+	@Test
+	public void testSortRows() {
+		var txs = TaxEngineTest.generateHistory(new Random(3), 5, 500);
+		// Same minute for some, so the sequence number decides.
+		var first = txs.get(10);
+		txs.add(new Transaction(true, first.getDatetime(), first.getStock(), 1, 1, 1, "x", 1000));
+		for (int shuffle = 0; shuffle < 3; shuffle++) {
+			var table = TableTaxEngineTest.toTable(txs);
+			List<Transaction> expected = new ArrayList<>(table.toTransactions());
+			expected.sort(TaxEngine.CHRONOLOGICAL_ORDER);
+			int[] rows = ChronologicalSort.sortRows(table);
+			assertEquals(expected.size(), rows.length);
+			for (int i = 0; i < rows.length; i++) {
+				assertEquals(expected.get(i), table.toTransaction(rows[i]));
+			}
+			Collections.shuffle(txs, new Random(shuffle));
+		}
+
+		// Newest first, as exported, is only reversed.
+		var exported = TaxEngineTest.generateHistory(new Random(4), 5, 100);
+		int[] rows = ChronologicalSort.sortRows(TableTaxEngineTest.toTable(exported));
+		int[] reversed = new int[100];
+		for (int i = 0; i < 100; i++) {
+			reversed[i] = 99 - i;
+		}
+		assertArrayEquals(reversed, rows);
+	}
+}
@@ -2,15 +2,28 @@ package com.github.yungene.taxcalc;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.DateTimeException;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 
 public class TransactionsParserTest {
@@ -147,4 +160,373 @@ public class TransactionsParserTest {
 	// 	assertEquals(3, txsOut.size());
 	// 	assertIterableEquals(expectedTxs, txsOut);
 	// }
+
+	final static String degiroHeader = "Date,Time,Product,ISIN,Reference exchange,Venue,Quantity,Price,,Local value,,Value EUR,Exchange rate,AutoFX Fee,Transaction and/or third party fees EUR,Total EUR,Order ID";
+	final static List<String> degiroRows = List.of(
+			"11-04-2023,14:05,F&C INVESTMENT TRUST PLC,GB0003466074,LSE,MESI,-70,899.0000,GBX,62930.00,GBX,733.63,85.7795,-1.84,-4.90,728.73,f0eda334-4321-1234-88ec-b20fcbef968a",
+			"08-10-2022,12:12,BERKSHIRE HATHAWAY INC,US0846707026,NSY,SOHO,2,349.5500,USD,-699.10,USD,-653.37,1.0700,-1.63,-2.00,-657.00,500c21cf-4321-1234-88ec-b20fcbef968a",
+			"08-08-2022,12:00,RYANAIR HOLDINGS PLC,IE00BYTBXV33,IRL,XMSM,20,12.0600,EUR,-241.20,EUR,-241.20,,,-2.50,-243.70,a28e99c3-4321-1234-88ec-b20fcbef968a");
+
+	@Test
+	public void testParseFileChronologically(@TempDir Path tempDir) throws IOException {
+		List<String> lines = new ArrayList<>();
+		lines.add(degiroHeader);
+		lines.addAll(degiroRows);
+		File file = tempDir.resolve("Transactions.csv").toFile();
+		Files.write(file.toPath(), lines);
+
+		List<Transaction> expected = new TransactionsParser().parseFile(file);
+		List<Transaction> actual = new ArrayList<>();
+		new TransactionsParser().parseFileChronologically(file, actual::add);
+
+		assertEquals(3, actual.size());
+		for (int i = 0; i < 3; i++) {
+			var exp = expected.get(2 - i);
+			var act = actual.get(i);
+			assertEquals(exp.getDatetime(), act.getDatetime());
+			assertEquals(exp.getStock(), act.getStock());
+			assertEquals(exp.getQuantity(), act.getQuantity());
+			assertEquals(exp.getEuroTotalPrice(), act.getEuroTotalPrice());
+			assertEquals(exp.getOrderId(), act.getOrderId());
+		}
+		// Same order as for the normal parse.
+		assertEquals(-1, actual.get(0).getSeqNum());
+		assertEquals(-3, actual.get(2).getSeqNum());
+		assertTrue(TaxEngine.CHRONOLOGICAL_ORDER.compare(expected.get(0), expected.get(1)) > 0);
+		assertTrue(TaxEngine.CHRONOLOGICAL_ORDER.compare(actual.get(2), actual.get(1)) > 0);
+	}
+
+	@Test
+	public void testParseFileMatchesParseCsv(@TempDir Path tempDir) throws IOException {
+		List<String> lines = new ArrayList<>();
+		lines.add(degiroHeader);
+		lines.addAll(degiroRows);
+		File file = tempDir.resolve("Transactions.csv").toFile();
+		Files.write(file.toPath(), lines);
+
+		List<Transaction> expected = new TransactionsParser().parseCsv(new StringReader(String.join("\n", lines)));
+		List<Transaction> actual = new TransactionsParser().parseFile(file);
+		assertEquals(3, actual.size());
+		assertIterableEquals(expected, actual);
+	}
+
+	@Test
+	public void testParseFileQuotedFields(@TempDir Path tempDir) throws IOException {
+		String row = "08-08-2022,12:00,\"VANGUARD FTSE ALL-WORLD, \"\"ACC\"\"\",IE00BK5BQT80,\"AEB\",XAMS,-3,\"105.5000\",EUR,316.50,EUR,316.50,,,-2.50,314.00,\"a28e99c3-4321\"";
+		// Byte order mark, Windows line endings and no newline at the end.
+		String csv = "\uFEFF" + degiroHeader + "\r\n" + row;
+		File file = tempDir.resolve("Transactions.csv").toFile();
+		Files.write(file.toPath(), csv.getBytes(StandardCharsets.UTF_8));
+
+		List<Transaction> actual = new TransactionsParser().parseFile(file);
+		assertEquals(1, actual.size());
+		var tx = actual.get(0);
+		assertEquals(new Stock("VANGUARD FTSE ALL-WORLD, \"ACC\"", "IE00BK5BQT80"), tx.getStock());
+		assertEquals(LocalDateTime.of(2022, 8, 8, 12, 0), tx.getDatetime());
+		assertEquals(false, tx.isBuy());
+		assertEquals(3, tx.getQuantity());
+		assertEquals(Transaction.euroToMil(105, 50), tx.getEuroPrice());
+		// 314.00 / 3
+		assertEquals(104_6666, tx.getEuroTotalPrice());
+		assertEquals("a28e99c3-4321", tx.getOrderId());
+	}
+
+	@Test
+	public void testParseFileSegments(@TempDir Path tempDir) throws IOException {
+		List<String> lines = new ArrayList<>();
+		lines.add(degiroHeader);
+		for (int i = 0; i < 50; i++) {
+			lines.addAll(degiroRows);
+		}
+		// Quoted newline, so that segments can't just be cut at newlines.
+		lines.add("08-08-2022,12:00,\"RYANAIR\nHOLDINGS PLC\",IE00BYTBXV99,IRL,XMSM,20,12.0600,EUR,-241.20,EUR,-241.20,,,-2.50,-243.70,a28e99c3");
+		File file = tempDir.resolve("Transactions.csv").toFile();
+		Files.write(file.toPath(), lines);
+
+		List<Transaction> expected = new TransactionsParser().parseFile(file);
+		List<Transaction> actual = new ArrayList<>();
+		new TransactionsParser().parseFile(file, 300, actual::add);
+		assertEquals(151, expected.size());
+		assertEquals("RYANAIR\nHOLDINGS PLC", expected.get(150).getStock().getName());
+		assertIterableEquals(expected, actual);
+
+		assertThrows(IOException.class, () -> new TransactionsParser().parseFile(file, 100, tx -> {
+		}));
+	}
+
+	@Test
+	public void testParseFileParallel(@TempDir Path tempDir) throws IOException {
+		List<String> lines = new ArrayList<>();
+		lines.add(degiroHeader);
+		for (int i = 0; i < 20; i++) {
+			lines.addAll(degiroRows);
+			// Chunk boundaries will also fall inside the quoted newline.
+			lines.add("08-08-2022,12:00,\"RYANAIR\nHOLDINGS PLC\",IE00BYTBXV33,IRL,XMSM,20,12.0600,EUR,-241.20,EUR,-241.20,,,-2.50,-243.70,r" + i);
+		}
+		File file = tempDir.resolve("Transactions.csv").toFile();
+		Files.write(file.toPath(), lines);
+
+		List<Transaction> expected = new TransactionsParser().parseFile(file);
+		assertEquals(80, expected.size());
+		var pool = new ForkJoinPool(4);
+		try {
+			for (int chunkSize = 1; chunkSize < 500; chunkSize += 7) {
+				List<Transaction> actual = new TransactionsParser().parseFileParallel(file, pool, chunkSize, 300);
+				assertIterableEquals(expected, actual);
+			}
+			assertIterableEquals(expected, new TransactionsParser().parseFileParallel(file, pool));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testParseFileInternsStocks(@TempDir Path tempDir) throws IOException {
+		List<String> lines = new ArrayList<>();
+		lines.add(degiroHeader);
+		lines.addAll(degiroRows);
+		// Product was renamed, first name wins.
+		lines.add(degiroRows.get(2).replace("RYANAIR HOLDINGS PLC", "RYANAIR HLDGS"));
+		File file = tempDir.resolve("Transactions.csv").toFile();
+		Files.write(file.toPath(), lines);
+
+		var parser = new TransactionsParser();
+		List<Transaction> txs = parser.parseFile(file);
+		assertEquals(3, parser.isins.size());
+		assertSame(txs.get(2).getStock(), txs.get(3).getStock());
+		assertEquals("RYANAIR HOLDINGS PLC", txs.get(3).getStock().getName());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(i, txs.get(i).getStock().getId());
+			assertSame(txs.get(i).getStock(), parser.isins.get(i));
+		}
+		// Parsing the same file again reuses the stocks.
+		List<Transaction> again = parser.parseFile(file);
+		assertSame(txs.get(0).getStock(), again.get(0).getStock());
+		// The string parser shares the table as well.
+		List<Transaction> fromCsv = parser.parseCsv(new StringReader(String.join("\n", lines)));
+		assertSame(txs.get(1).getStock(), fromCsv.get(1).getStock());
+	}
+
+	@Test
+	public void testParseFileInvalidNumber(@TempDir Path tempDir) throws IOException {
+		File file = tempDir.resolve("Transactions.csv").toFile();
+		Files.write(file.toPath(), List.of(degiroRows.get(0).replace("733.63", "733.6x")));
+		assertThrows(NumberFormatException.class, () -> new TransactionsParser().parseFile(file));
+	}
+
+	@Test
+	public void testParseFileInvalidTime(@TempDir Path tempDir) throws IOException {
+		File file = tempDir.resolve("Transactions.csv").toFile();
+		Files.write(file.toPath(), List.of(degiroHeader, degiroRows.get(0).replace("14:05", "25:99")));
+		assertThrows(DateTimeException.class, () -> new TransactionsParser().parseFile(file));
+		assertThrows(DateTimeException.class, () -> new TransactionsParser().parseFileToTable(file));
+		assertThrows(DateTimeException.class, () -> new TransactionsParser().parseFileForYear(file, 2022));
+	}
+
+	/**
+	 * Same row with its fields in reverse order.
+	 */
+	private static String reversed(String row) {
+		List<String> fields = Arrays.asList(row.split(",", -1));
+		Collections.reverse(fields);
+		return String.join(",", fields);
+	}
+
+	@Test
+	public void testParseFileReorderedColumns(@TempDir Path tempDir) throws IOException {
+		List<String> lines = new ArrayList<>();
+		lines.add(degiroHeader);
+		lines.addAll(degiroRows);
+		File file = tempDir.resolve("Transactions.csv").toFile();
+		Files.write(file.toPath(), lines);
+		List<Transaction> expected = new TransactionsParser().parseFile(file);
+
+		List<String> reordered = new ArrayList<>();
+		for (var line : lines) {
+			reordered.add(reversed(line));
+		}
+		File reorderedFile = tempDir.resolve("Reordered.csv").toFile();
+		Files.write(reorderedFile.toPath(), reordered);
+		assertIterableEquals(expected, new TransactionsParser().parseFile(reorderedFile));
+		assertIterableEquals(expected,
+				new TransactionsParser().parseCsv(new StringReader(String.join("\n", reordered))));
+		var pool = new ForkJoinPool(2);
+		try {
+			assertIterableEquals(expected, new TransactionsParser().parseFileParallel(reorderedFile, pool, 100, 300));
+		} finally {
+			pool.shutdown();
+		}
+		List<Transaction> chronological = new ArrayList<>();
+		new TransactionsParser().parseFileChronologically(reorderedFile, chronological::add);
+		assertEquals(expected.get(0).getOrderId(), chronological.get(2).getOrderId());
+
+		// Without the header, columns are where Degiro puts them.
+		File headerless = tempDir.resolve("Headerless.csv").toFile();
+		Files.write(headerless.toPath(), degiroRows);
+		assertIterableEquals(expected, new TransactionsParser().parseFile(headerless));
+	}
+
+	@Test
+	public void testParseFileMissingColumn(@TempDir Path tempDir) throws IOException {
+		File file = tempDir.resolve("Transactions.csv").toFile();
+		Files.write(file.toPath(), List.of(degiroHeader.replace("Order ID", "Reference"), degiroRows.get(0)));
+		var e = assertThrows(IllegalArgumentException.class, () -> new TransactionsParser().parseFile(file));
+		assertTrue(e.getMessage().contains("ORDER_ID"), e.getMessage());
+		assertThrows(IllegalArgumentException.class,
+				() -> new TransactionsParser().parseCsv(new StringReader(String.join("\n", Files.readAllLines(file.toPath())))));
+	}
+
+	@Test
+	public void testSkippedRows(@TempDir Path tempDir) throws IOException {
+		List<String> lines = new ArrayList<>();
+		lines.add(degiroHeader);
+		lines.addAll(degiroRows);
+		// Stock split, without an order ID, and a blank line.
+		lines.add("01-06-2022,09:00,RYANAIR HOLDINGS PLC,IE00BYTBXV33,IRL,,20,0.0000,EUR,0.00,EUR,0.00,,,,0.00,");
+		lines.add("");
+		File file = tempDir.resolve("Transactions.csv").toFile();
+		Files.write(file.toPath(), lines);
+
+		var parser = new TransactionsParser();
+		assertEquals(3, parser.parseFile(file).size());
+		assertEquals(1, parser.getSkippedRows());
+		parser.reset();
+		assertEquals(3, parser.parseCsv(new StringReader(String.join("\n", lines))).size());
+		assertEquals(1, parser.getSkippedRows());
+	}
+
+	@Test
+	public void testResetIsinTable(@TempDir Path tempDir) throws IOException {
+		File first = tempDir.resolve("first.csv").toFile();
+		Files.write(first.toPath(), List.of(degiroHeader, degiroRows.get(2)));
+		File renamed = tempDir.resolve("renamed.csv").toFile();
+		Files.write(renamed.toPath(), List.of(degiroHeader, degiroRows.get(2).replace("RYANAIR HOLDINGS PLC", "RYANAIR")));
+
+		var parser = new TransactionsParser();
+		assertEquals("RYANAIR HOLDINGS PLC", parser.parseFile(first).get(0).getStock().getName());
+		// The name first seen wins within a table.
+		parser.reset();
+		assertEquals("RYANAIR HOLDINGS PLC", parser.parseFile(renamed).get(0).getStock().getName());
+		var isins = new IsinTable();
+		parser.reset(isins);
+		var stock = parser.parseFile(renamed).get(0).getStock();
+		assertEquals("RYANAIR", stock.getName());
+		assertEquals(1, isins.size());
+	}
+
+	@Test
+	public void testCorporateActions(@TempDir Path tempDir) throws IOException {
+		List<String> lines = new ArrayList<>();
+		lines.add(degiroHeader);
+		// ISIN change of F&C, newest first as exported.
+		lines.add("01-05-2023,07:00,F&C INVESTMENT TRUST PLC,GB00BYTBXV99,LSE,,70,0.0000,GBP,0.00,GBP,0.00,,,,0.00,");
+		lines.add("01-05-2023,07:00,F&C INVESTMENT TRUST PLC,GB0003466074,LSE,,-70,0.0000,GBP,0.00,GBP,0.00,,,,0.00,");
+		lines.addAll(degiroRows);
+		// 2 for 1 split of Ryanair.
+		lines.add("01-09-2022,07:00,RYANAIR HOLDINGS PLC,IE00BYTBXV33,IRL,,40,0.0000,EUR,0.00,EUR,0.00,,,,0.00,");
+		lines.add("01-09-2022,07:00,RYANAIR HOLDINGS PLC,IE00BYTBXV33,IRL,,-20,0.0000,EUR,0.00,EUR,0.00,,,,0.00,");
+		// Not an action.
+		lines.add("01-09-2022,07:00,RYANAIR HOLDINGS PLC,IE00BYTBXV33,IRL,,,,EUR,0.00,EUR,0.00,,,,,");
+		File file = tempDir.resolve("Transactions.csv").toFile();
+		Files.write(file.toPath(), lines);
+
+		List<List<CorporateAction>> parsed = new ArrayList<>();
+		var parser = new TransactionsParser();
+		assertEquals(3, parser.parseFile(file).size());
+		assertEquals(5, parser.getSkippedRows());
+		parsed.add(parser.getCorporateActions());
+		parser.reset();
+		parser.parseCsv(new StringReader(String.join("\n", lines)));
+		parsed.add(parser.getCorporateActions());
+		parser.reset();
+		parser.parseFileParallel(file, new ForkJoinPool(2), 200, 300);
+		parsed.add(parser.getCorporateActions());
+		parser.reset();
+		parser.parseFileChronologically(file, tx -> {
+		});
+		parsed.add(parser.getCorporateActions());
+
+		for (var actions : parsed) {
+			assertEquals(2, actions.size());
+			var split = actions.get(0);
+			assertEquals(LocalDateTime.of(2022, 9, 1, 7, 0), split.getDatetime());
+			assertEquals("IE00BYTBXV33", split.getTo().getIsin());
+			assertEquals(20, split.getFromQuantity());
+			assertEquals(40, split.getToQuantity());
+			var change = actions.get(1);
+			assertEquals("GB0003466074", change.getFrom().getIsin());
+			assertEquals("GB00BYTBXV99", change.getTo().getIsin());
+			assertSame(parser.isins.intern("GB00BYTBXV99", ""), change.getTo());
+		}
+
+		// Transactions of a file with actions are not cached.
+		parser.reset();
+		parser.parseFileCached(file, false);
+		assertEquals(2, parser.getCorporateActions().size());
+		assertTrue(!TransactionCache.cacheFileFor(file).exists());
+	}
+
+	private static String toDegiroRow(Transaction tx) {
+		var dt = tx.getDatetime();
+		int quantity = tx.isBuy() ? tx.getQuantity() : -tx.getQuantity();
+		long value = -quantity * tx.getEuroPrice();
+		String euros = String.format("%s%d.%04d", value < 0 ? "-" : "", Math.abs(value) / 10000, Math.abs(value) % 10000);
+		return String.format("%02d-%02d-%d,%02d:%02d,%s,%s,XET,XETA,%d,1.0000,EUR,%s,EUR,%s,,,0.00,%s,%s",
+				dt.getDayOfMonth(), dt.getMonthValue(), dt.getYear(), dt.getHour(), dt.getMinute(),
+				tx.getStock().getName(), tx.getStock().getIsin(), quantity, euros, euros, euros, tx.getOrderId());
+	}
+
+	@Test
+	public void testParseFileForYear(@TempDir Path tempDir) throws IOException {
+		List<String> lines = new ArrayList<>();
+		lines.add(degiroHeader);
+		for (var tx : TaxEngineTest.generateHistory(new Random(44), 30, 1500)) {
+			lines.add(toDegiroRow(tx));
+		}
+		File file = tempDir.resolve("Transactions.csv").toFile();
+		Files.write(file.toPath(), lines);
+
+		var all = new TransactionsParser().parseFile(file);
+		var full = new TaxEngine(all);
+		full.calculateTaxFull();
+		for (var year : full.reports.keySet()) {
+			var parser = new TransactionsParser();
+			List<Transaction> txs = parser.parseFileForYear(file, year, 4096);
+			if (year < Collections.max(full.reports.keySet())) {
+				assertTrue(txs.size() < all.size());
+			}
+			var single = new TaxEngine(txs);
+			single.calculateTaxYear(year);
+			assertEquals(full.reports.get(year).sales.toString(), single.reports.get(year).sales.toString());
+		}
+		assertEquals(0, new TransactionsParser().parseFileForYear(file, 2000).size());
+	}
+
+	@Test
+	public void testParseFileToTable(@TempDir Path tempDir) throws IOException {
+		List<String> lines = new ArrayList<>();
+		lines.add(degiroHeader);
+		lines.addAll(degiroRows);
+		lines.add("");
+		lines.addAll(degiroRows);
+		File file = tempDir.resolve("Transactions.csv").toFile();
+		Files.write(file.toPath(), lines);
+
+		List<Transaction> expected = new TransactionsParser().parseFile(file);
+		var parser = new TransactionsParser();
+		var table = parser.parseFileToTable(file, 300);
+		assertEquals(expected.size(), table.size());
+		for (int row = 0; row < table.size(); row++) {
+			var tx = table.toTransaction(row);
+			var exp = expected.get(row);
+			assertEquals(exp.getDatetime(), tx.getDatetime());
+			assertEquals(exp.getStock(), tx.getStock());
+			assertSame(parser.isins.get(tx.getStock().getId()), tx.getStock());
+			assertEquals(exp.isBuy(), tx.isBuy());
+			assertEquals(exp.getQuantity(), tx.getQuantity());
+			assertEquals(exp.getEuroPrice(), tx.getEuroPrice());
+			assertEquals(exp.getEuroTotalPrice(), tx.getEuroTotalPrice());
+			assertEquals(exp.getSeqNum(), tx.getSeqNum());
+		}
+	}
 }